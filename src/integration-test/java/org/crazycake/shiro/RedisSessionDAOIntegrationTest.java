@@ -2,7 +2,7 @@ package org.crazycake.shiro;
 
 import org.apache.shiro.session.Session;
 import org.apache.shiro.session.UnknownSessionException;
-import org.crazycake.shiro.common.SessionInMemory;
+import org.crazycake.shiro.common.SessionsInMemory;
 import org.crazycake.shiro.exception.SerializationException;
 import org.crazycake.shiro.integration.fixture.model.FakeSession;
 import org.crazycake.shiro.serializer.ObjectSerializer;
@@ -139,8 +139,8 @@ public class RedisSessionDAOIntegrationTest {
         Thread.sleep(1000);
         redisSessionDAO.doCreate(session2);
         redisSessionDAO.doReadSession(session2.getId());
-        Map<Serializable, SessionInMemory> sessionMap = (Map<Serializable, SessionInMemory>) redisSessionDAO.getSessionsInThread().get();
-        assertEquals(sessionMap.size(), 1);
+        SessionsInMemory sessionsInMemory = (SessionsInMemory) redisSessionDAO.getSessionsInThread().get();
+        assertEquals(sessionsInMemory.size(), 1);
     }
 
     @Test
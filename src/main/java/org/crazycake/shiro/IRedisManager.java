@@ -1,10 +1,23 @@
 package org.crazycake.shiro;
 
+import org.crazycake.shiro.common.RedisMessageListener;
+import org.crazycake.shiro.common.RedisSubscription;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * redisManager interface
  *
+ * Only get, set, del, dbSize and keys have to be implemented.
+ * Other methods have default implementations, which are built on those five methods without being atomic or pipelined,
+ * or throw UnsupportedOperationException if they can't be. Features of RedisSessionDAO and RedisCacheManager
+ * which need an unsupported command fail when they are used, so they should stay disabled with such an implementation.
  **/
 
 public interface IRedisManager {
@@ -16,6 +29,21 @@ public interface IRedisManager {
      */
     byte[] get(byte[] key);
 
+    /**
+     * get part of the value from redis
+     * @param key key
+     * @param start start offset
+     * @param end end offset (inclusive)
+     * @return part of the value, or an empty array if key doesn't exist
+     */
+    default byte[] getRange(byte[] key, long start, long end) {
+        byte[] value = get(key);
+        if (value == null || start >= value.length) {
+            return new byte[0];
+        }
+        return Arrays.copyOfRange(value, (int) start, (int) Math.min(end + 1, value.length));
+    }
+
     /**
      * set value
      * @param key  key
@@ -25,12 +53,178 @@ public interface IRedisManager {
      */
     byte[] set(byte[] key, byte[] value, int expire);
 
+    /**
+     * Set value atomically, only if the value stored at key starts with expectedPrefix.
+     * An empty expectedPrefix only matches a key which doesn't exist.
+     * @param key key
+     * @param expectedPrefix expected prefix of the stored value
+     * @param value new value
+     * @param expire expire time in seconds. If it's not positive, key doesn't expire
+     * @return true if value is set
+     */
+    default boolean compareAndSet(byte[] key, byte[] expectedPrefix, byte[] value, int expire) {
+        throw new UnsupportedOperationException("compareAndSet is not supported by " + getClass().getName());
+    }
+
+    /**
+     * set expire time of key
+     * @param key key
+     * @param expire expire time in seconds. Expire time is not changed if it's not positive.
+     */
+    default void expire(byte[] key, int expire) {
+        throw new UnsupportedOperationException("expire is not supported by " + getClass().getName());
+    }
+
     /**
      * del
      * @param key key
      */
     void del(byte[] key);
 
+    /**
+     * get the value of key and delete key atomically, in one round trip.
+     * The default implementation uses get and del, which is neither atomic nor one round trip.
+     * @param key key
+     * @return value, or null if key doesn't exist
+     */
+    default byte[] getDel(byte[] key) {
+        byte[] value = get(key);
+        del(key);
+        return value;
+    }
+
+    /**
+     * increment the number stored at key by one. A key which doesn't exist is set to 0 before it's incremented.
+     * @param key key
+     * @return value after the increment
+     */
+    default long incr(byte[] key) {
+        throw new UnsupportedOperationException("incr is not supported by " + getClass().getName());
+    }
+
+    /**
+     * get value of a hash field
+     * @param key key
+     * @param field field
+     * @return value
+     */
+    default byte[] hget(byte[] key, byte[] field) {
+        throw new UnsupportedOperationException("hget is not supported by " + getClass().getName());
+    }
+
+    /**
+     * get all fields and values of a hash
+     * @param key key
+     * @return fields and values, or an empty map if key doesn't exist
+     */
+    default Map<byte[], byte[]> hgetAll(byte[] key) {
+        throw new UnsupportedOperationException("hgetAll is not supported by " + getClass().getName());
+    }
+
+    /**
+     * get all fields and values of multiple hashes. Commands are pipelined.
+     * @param keys keys
+     * @return fields and values, in the same order as keys. It's an empty map if the key doesn't exist.
+     */
+    default List<Map<byte[], byte[]>> mhgetAll(byte[]... keys) {
+        List<Map<byte[], byte[]>> hashes = new ArrayList<Map<byte[], byte[]>>(keys.length);
+        for (byte[] key : keys) {
+            hashes.add(hgetAll(key));
+        }
+        return hashes;
+    }
+
+    /**
+     * get all field names of a hash
+     * @param key key
+     * @return field names
+     */
+    default Set<byte[]> hkeys(byte[] key) {
+        throw new UnsupportedOperationException("hkeys is not supported by " + getClass().getName());
+    }
+
+    /**
+     * set fields of a hash
+     * @param key key
+     * @param hash fields and values
+     * @param expire expire time in seconds. Expire time is not changed if it's not positive.
+     */
+    default void hset(byte[] key, Map<byte[], byte[]> hash, int expire) {
+        throw new UnsupportedOperationException("hset is not supported by " + getClass().getName());
+    }
+
+    /**
+     * delete fields of a hash
+     * @param key key
+     * @param fields fields
+     */
+    default void hdel(byte[] key, byte[]... fields) {
+        throw new UnsupportedOperationException("hdel is not supported by " + getClass().getName());
+    }
+
+    /**
+     * get remaining time to live of multiple keys. Commands are pipelined.
+     * @param keys keys
+     * @return time to live in milliseconds, in the same order as keys. It's -1 if the key has no expire time, or -2 if the key doesn't exist.
+     */
+    default List<Long> pttl(byte[]... keys) {
+        throw new UnsupportedOperationException("pttl is not supported by " + getClass().getName());
+    }
+
+    /**
+     * add a member to a sorted set, or update its score
+     * @param key key
+     * @param score score
+     * @param member member
+     */
+    default void zadd(byte[] key, double score, byte[] member) {
+        throw new UnsupportedOperationException("zadd is not supported by " + getClass().getName());
+    }
+
+    /**
+     * remove members from a sorted set
+     * @param key key
+     * @param members members
+     */
+    default void zrem(byte[] key, byte[]... members) {
+        throw new UnsupportedOperationException("zrem is not supported by " + getClass().getName());
+    }
+
+    /**
+     * count members of a sorted set whose scores are between min and max (inclusive)
+     * @param key key
+     * @param min min score. Double.NEGATIVE_INFINITY means no lower bound
+     * @param max max score. Double.POSITIVE_INFINITY means no upper bound
+     * @return number of members
+     */
+    default long zcount(byte[] key, double min, double max) {
+        throw new UnsupportedOperationException("zcount is not supported by " + getClass().getName());
+    }
+
+    /**
+     * get members of a sorted set whose scores are between min and max (inclusive), ordered by score
+     * @param key key
+     * @param min min score. Double.NEGATIVE_INFINITY means no lower bound
+     * @param max max score. Double.POSITIVE_INFINITY means no upper bound
+     * @param offset number of members to skip
+     * @param limit max number of members to return. Negative means no limit
+     * @return members
+     */
+    default List<byte[]> zrangeByScore(byte[] key, double min, double max, int offset, int limit) {
+        throw new UnsupportedOperationException("zrangeByScore is not supported by " + getClass().getName());
+    }
+
+    /**
+     * remove members of a sorted set whose scores are between min and max (inclusive)
+     * @param key key
+     * @param min min score. Double.NEGATIVE_INFINITY means no lower bound
+     * @param max max score. Double.POSITIVE_INFINITY means no upper bound
+     * @return number of removed members
+     */
+    default long zremrangeByScore(byte[] key, double min, double max) {
+        throw new UnsupportedOperationException("zremrangeByScore is not supported by " + getClass().getName());
+    }
+
     /**
      * dbsize
      * @param pattern pattern
@@ -45,4 +239,61 @@ public interface IRedisManager {
      */
     Set<byte[]> keys(byte[] pattern);
 
+    /**
+     * scan keys page by page.
+     * Every page is fetched by one SCAN call when it's needed, so keys are never held in memory all at once.
+     * A key may be returned more than once if the keyspace is changed during the iteration.
+     * @param pattern key pattern
+     * @return iterator of key pages
+     */
+    default Iterator<List<byte[]>> scan(byte[] pattern) {
+        Set<byte[]> keys = keys(pattern);
+        List<byte[]> page = keys == null ? new ArrayList<byte[]>() : new ArrayList<byte[]>(keys);
+        return Collections.singletonList(page).iterator();
+    }
+
+    /**
+     * get values of multiple keys in as few round trips as possible
+     * @param keys keys
+     * @return values in the same order as keys. Value is null if the key doesn't exist.
+     */
+    default List<byte[]> mget(byte[]... keys) {
+        List<byte[]> values = new ArrayList<byte[]>(keys.length);
+        for (byte[] key : keys) {
+            values.add(get(key));
+        }
+        return values;
+    }
+
+    /**
+     * delete multiple keys in as few round trips as possible
+     * @param keys keys
+     */
+    default void mdel(byte[]... keys) {
+        for (byte[] key : keys) {
+            del(key);
+        }
+    }
+
+    /**
+     * publish a message
+     * @param channel channel
+     * @param message message
+     */
+    default void publish(byte[] channel, byte[] message) {
+        throw new UnsupportedOperationException("publish is not supported by " + getClass().getName());
+    }
+
+    /**
+     * subscribe channels in background. Channels are subscribed again automatically after the connection is broken or master is failed over.
+     * In cluster mode, channels are subscribed on every master node, because keyspace notifications are only published on the node which holds the key.
+     * So a message published by PUBLISH might be received once from every master node.
+     * @param listener listener of messages
+     * @param channels channels
+     * @return subscription, which should be closed when it's not needed any more
+     */
+    default RedisSubscription subscribe(RedisMessageListener listener, byte[]... channels) {
+        throw new UnsupportedOperationException("subscribe is not supported by " + getClass().getName());
+    }
+
 }
@@ -1,6 +1,8 @@
 package org.crazycake.shiro;
 
 import io.lettuce.core.*;
+import io.lettuce.core.api.async.RedisScriptingAsyncCommands;
+import io.lettuce.core.api.sync.RedisScriptingCommands;
 import io.lettuce.core.cluster.ClusterClientOptions;
 import io.lettuce.core.cluster.RedisClusterClient;
 import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
@@ -10,17 +12,31 @@ import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
 import io.lettuce.core.cluster.api.sync.RedisClusterCommands;
 import io.lettuce.core.cluster.models.partitions.ClusterPartitionParser;
 import io.lettuce.core.cluster.models.partitions.Partitions;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+import io.lettuce.core.cluster.pubsub.RedisClusterPubSubAdapter;
+import io.lettuce.core.cluster.pubsub.StatefulRedisClusterPubSubConnection;
 import io.lettuce.core.codec.ByteArrayCodec;
 import io.lettuce.core.support.ConnectionPoolSupport;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.crazycake.shiro.common.KeyPageIterator;
+import org.crazycake.shiro.common.RedisMessageListener;
+import org.crazycake.shiro.common.RedisScripts;
+import org.crazycake.shiro.common.RedisSubscription;
 import org.crazycake.shiro.exception.PoolException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
@@ -31,6 +47,8 @@ import java.util.stream.Collectors;
  */
 public class LettuceRedisClusterManager implements IRedisManager {
 
+    private static Logger logger = LoggerFactory.getLogger(LettuceRedisClusterManager.class);
+
     /**
      * Comma-separated list of "host:port" pairs to bootstrap from. This represents an
      * "initial" list of cluster nodes and is required to have at least one entry.
@@ -42,6 +60,10 @@ public class LettuceRedisClusterManager implements IRedisManager {
      */
     private static final int DEFAULT_COUNT = 100;
 
+    private static final String SUBSCRIPTION_THREAD_NAME = "shiro-redis-subscription";
+
+    private static final long SUBSCRIPTION_REFRESH_INTERVAL = 30L;
+
     /**
      * timeout for RedisClient try to connect to redis server, not expire time! unit seconds.
      */
@@ -62,6 +84,12 @@ public class LettuceRedisClusterManager implements IRedisManager {
      */
     private boolean isAsync = true;
 
+    /**
+     * Whether or not the server knows GETDEL (Redis 6.2+). It's set to false after GETDEL is rejected,
+     * and the GET_DEL script is used instead.
+     */
+    private volatile boolean getDelSupported = true;
+
     /**
      * The number of elements returned at every iteration.
      */
@@ -82,11 +110,13 @@ public class LettuceRedisClusterManager implements IRedisManager {
      */
     private ClusterClientOptions clusterClientOptions = ClusterClientOptions.create();
 
+    private RedisClusterClient redisClusterClient;
+
     private void initialize() {
         if (genericObjectPool == null) {
             synchronized (LettuceRedisClusterManager.class) {
                 if (genericObjectPool == null) {
-                    RedisClusterClient redisClusterClient = RedisClusterClient.create(getClusterRedisURI());
+                    redisClusterClient = RedisClusterClient.create(getClusterRedisURI());
                     redisClusterClient.setOptions(clusterClientOptions);
                     StatefulRedisClusterConnection<byte[], byte[]> connect = redisClusterClient.connect(new ByteArrayCodec());
                     genericObjectPool = ConnectionPoolSupport.createGenericObjectPool(() -> connect, genericObjectPoolConfig);
@@ -140,6 +170,24 @@ public class LettuceRedisClusterManager implements IRedisManager {
         return value;
     }
 
+    @Override
+    public byte[] getRange(byte[] key, long start, long end) {
+        if (key == null) {
+            return null;
+        }
+        byte[] value = null;
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                value = LettuceFutures.awaitOrCancel(async.getrange(key, start, end), timeout.getSeconds(), TimeUnit.SECONDS);
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                value = sync.getrange(key, start, end);
+            }
+        }
+        return value;
+    }
+
     @Override
     public byte[] set(byte[] key, byte[] value, int expire) {
         if (key == null) {
@@ -165,6 +213,43 @@ public class LettuceRedisClusterManager implements IRedisManager {
         return value;
     }
 
+    @Override
+    public boolean compareAndSet(byte[] key, byte[] expectedPrefix, byte[] value, int expire) {
+        if (key == null) {
+            return false;
+        }
+        Long result;
+        byte[][] keys = new byte[][] {key};
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                result = evalCached(async, RedisScripts.COMPARE_AND_SET_SHA1, RedisScripts.COMPARE_AND_SET, ScriptOutputType.INTEGER, keys,
+                        expectedPrefix, value, RedisScripts.toArg(expire));
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                result = evalCached(sync, RedisScripts.COMPARE_AND_SET_SHA1, RedisScripts.COMPARE_AND_SET, ScriptOutputType.INTEGER, keys,
+                        expectedPrefix, value, RedisScripts.toArg(expire));
+            }
+        }
+        return Long.valueOf(1L).equals(result);
+    }
+
+    @Override
+    public void expire(byte[] key, int expire) {
+        if (key == null || expire <= 0) {
+            return;
+        }
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                async.expire(key, expire);
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                sync.expire(key, expire);
+            }
+        }
+    }
+
     @Override
     public void del(byte[] key) {
         try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
@@ -178,6 +263,406 @@ public class LettuceRedisClusterManager implements IRedisManager {
         }
     }
 
+    @Override
+    public byte[] getDel(byte[] key) {
+        if (key == null) {
+            return null;
+        }
+        byte[][] keys = new byte[][] {key};
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                if (getDelSupported) {
+                    try {
+                        return LettuceFutures.awaitOrCancel(async.getdel(key), timeout.getSeconds(), TimeUnit.SECONDS);
+                    } catch (RedisCommandExecutionException e) {
+                        if (!RedisScripts.isUnknownCommand(e)) {
+                            throw e;
+                        }
+                        getDelSupported = false;
+                    }
+                }
+                return evalCached(async, RedisScripts.GET_DEL_SHA1, RedisScripts.GET_DEL, ScriptOutputType.VALUE, keys);
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                if (getDelSupported) {
+                    try {
+                        return sync.getdel(key);
+                    } catch (RedisCommandExecutionException e) {
+                        if (!RedisScripts.isUnknownCommand(e)) {
+                            throw e;
+                        }
+                        getDelSupported = false;
+                    }
+                }
+                return evalCached(sync, RedisScripts.GET_DEL_SHA1, RedisScripts.GET_DEL, ScriptOutputType.VALUE, keys);
+            }
+        }
+    }
+
+    /**
+     * Run a script by EVALSHA. If the server hasn't cached it yet, it's run by EVAL, which caches it.
+     * @param async async commands
+     * @param sha1 SHA1 digest of script
+     * @param script script
+     * @param type type of result
+     * @param keys keys
+     * @param args arguments
+     * @param <T> type of result
+     * @return result of script
+     */
+    private <T> T evalCached(RedisScriptingAsyncCommands<byte[], byte[]> async, String sha1, String script, ScriptOutputType type,
+                             byte[][] keys, byte[]... args) {
+        try {
+            return LettuceFutures.awaitOrCancel(async.<T>evalsha(sha1, type, keys, args), timeout.getSeconds(), TimeUnit.SECONDS);
+        } catch (RedisCommandExecutionException e) {
+            if (!RedisScripts.isNoScript(e)) {
+                throw e;
+            }
+            return LettuceFutures.awaitOrCancel(async.<T>eval(script, type, keys, args), timeout.getSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Same as evalCached of async commands
+     * @param sync sync commands
+     * @param sha1 SHA1 digest of script
+     * @param script script
+     * @param type type of result
+     * @param keys keys
+     * @param args arguments
+     * @param <T> type of result
+     * @return result of script
+     */
+    private static <T> T evalCached(RedisScriptingCommands<byte[], byte[]> sync, String sha1, String script, ScriptOutputType type,
+                                    byte[][] keys, byte[]... args) {
+        try {
+            return sync.<T>evalsha(sha1, type, keys, args);
+        } catch (RedisCommandExecutionException e) {
+            if (!RedisScripts.isNoScript(e)) {
+                throw e;
+            }
+            return sync.<T>eval(script, type, keys, args);
+        }
+    }
+
+    @Override
+    public long incr(byte[] key) {
+        Long value;
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                value = LettuceFutures.awaitOrCancel(async.incr(key), timeout.getSeconds(), TimeUnit.SECONDS);
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                value = sync.incr(key);
+            }
+        }
+        return value == null ? 0L : value;
+    }
+
+    @Override
+    public byte[] hget(byte[] key, byte[] field) {
+        if (key == null) {
+            return null;
+        }
+        byte[] value = null;
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                value = LettuceFutures.awaitOrCancel(async.hget(key, field), timeout.getSeconds(), TimeUnit.SECONDS);
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                value = sync.hget(key, field);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public Map<byte[], byte[]> hgetAll(byte[] key) {
+        if (key == null) {
+            return null;
+        }
+        Map<byte[], byte[]> hash = null;
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                hash = LettuceFutures.awaitOrCancel(async.hgetall(key), timeout.getSeconds(), TimeUnit.SECONDS);
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                hash = sync.hgetall(key);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Get all fields and values of multiple hashes. The async API is always used, so that commands are pipelined.
+     * @param keys keys
+     * @return fields and values
+     */
+    @Override
+    public List<Map<byte[], byte[]>> mhgetAll(byte[]... keys) {
+        List<Map<byte[], byte[]>> hashes = new ArrayList<>();
+        if (keys == null || keys.length == 0) {
+            return hashes;
+        }
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+            List<RedisFuture<Map<byte[], byte[]>>> futures = new ArrayList<>(keys.length);
+            for (byte[] key : keys) {
+                futures.add(async.hgetall(key));
+            }
+            for (RedisFuture<Map<byte[], byte[]>> future : futures) {
+                hashes.add(LettuceFutures.awaitOrCancel(future, timeout.getSeconds(), TimeUnit.SECONDS));
+            }
+        }
+        return hashes;
+    }
+
+    @Override
+    public Set<byte[]> hkeys(byte[] key) {
+        if (key == null) {
+            return null;
+        }
+        Set<byte[]> fields = new HashSet<>();
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                fields.addAll(LettuceFutures.awaitOrCancel(async.hkeys(key), timeout.getSeconds(), TimeUnit.SECONDS));
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                fields.addAll(sync.hkeys(key));
+            }
+        }
+        return fields;
+    }
+
+    @Override
+    public void hset(byte[] key, Map<byte[], byte[]> hash, int expire) {
+        if (key == null || hash == null || hash.isEmpty()) {
+            return;
+        }
+        byte[][] keys = new byte[][] {key};
+        byte[][] args = RedisScripts.toHashArgs(hash, expire).toArray(new byte[0][]);
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                if (expire > 0) {
+                    evalCached(async, RedisScripts.HSET_EXPIRE_SHA1, RedisScripts.HSET_EXPIRE, ScriptOutputType.INTEGER, keys, args);
+                } else {
+                    async.hset(key, hash);
+                }
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                if (expire > 0) {
+                    evalCached(sync, RedisScripts.HSET_EXPIRE_SHA1, RedisScripts.HSET_EXPIRE, ScriptOutputType.INTEGER, keys, args);
+                } else {
+                    sync.hset(key, hash);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void hdel(byte[] key, byte[]... fields) {
+        if (key == null || fields == null || fields.length == 0) {
+            return;
+        }
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                async.hdel(key, fields);
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                sync.hdel(key, fields);
+            }
+        }
+    }
+
+    /**
+     * Get time to live of multiple keys. The async API is always used, so that commands are pipelined.
+     * @param keys keys
+     * @return time to live in milliseconds
+     */
+    @Override
+    public List<Long> pttl(byte[]... keys) {
+        List<Long> ttls = new ArrayList<>();
+        if (keys == null || keys.length == 0) {
+            return ttls;
+        }
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+            List<RedisFuture<Long>> futures = new ArrayList<>(keys.length);
+            for (byte[] key : keys) {
+                futures.add(async.pttl(key));
+            }
+            for (RedisFuture<Long> future : futures) {
+                ttls.add(LettuceFutures.awaitOrCancel(future, timeout.getSeconds(), TimeUnit.SECONDS));
+            }
+        }
+        return ttls;
+    }
+
+    @Override
+    public void zadd(byte[] key, double score, byte[] member) {
+        if (key == null) {
+            return;
+        }
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                async.zadd(key, score, member);
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                sync.zadd(key, score, member);
+            }
+        }
+    }
+
+    @Override
+    public void zrem(byte[] key, byte[]... members) {
+        if (key == null || members == null || members.length == 0) {
+            return;
+        }
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                async.zrem(key, members);
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                sync.zrem(key, members);
+            }
+        }
+    }
+
+    @Override
+    public long zcount(byte[] key, double min, double max) {
+        if (key == null) {
+            return 0L;
+        }
+        Long number;
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                number = LettuceFutures.awaitOrCancel(async.zcount(key, toRange(min, max)), timeout.getSeconds(), TimeUnit.SECONDS);
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                number = sync.zcount(key, toRange(min, max));
+            }
+        }
+        return number == null ? 0L : number;
+    }
+
+    @Override
+    public List<byte[]> zrangeByScore(byte[] key, double min, double max, int offset, int limit) {
+        List<byte[]> members = new ArrayList<>();
+        if (key == null) {
+            return members;
+        }
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                members.addAll(LettuceFutures.awaitOrCancel(async.zrangebyscore(key, toRange(min, max), Limit.create(offset, limit)),
+                        timeout.getSeconds(), TimeUnit.SECONDS));
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                members.addAll(sync.zrangebyscore(key, toRange(min, max), Limit.create(offset, limit)));
+            }
+        }
+        return members;
+    }
+
+    @Override
+    public long zremrangeByScore(byte[] key, double min, double max) {
+        if (key == null) {
+            return 0L;
+        }
+        Long removed;
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                removed = LettuceFutures.awaitOrCancel(async.zremrangebyscore(key, toRange(min, max)), timeout.getSeconds(), TimeUnit.SECONDS);
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                removed = sync.zremrangebyscore(key, toRange(min, max));
+            }
+        }
+        return removed == null ? 0L : removed;
+    }
+
+    /**
+     * Convert scores to a Range. Infinite scores are unbounded.
+     * @param min min score
+     * @param max max score
+     * @return Range
+     */
+    private static Range<Double> toRange(double min, double max) {
+        return Range.from(toBoundary(min), toBoundary(max));
+    }
+
+    private static Range.Boundary<Double> toBoundary(double score) {
+        return Double.isInfinite(score) ? Range.Boundary.<Double>unbounded() : Range.Boundary.including(score);
+    }
+
+    @Override
+    public void publish(byte[] channel, byte[] message) {
+        if (channel == null) {
+            return;
+        }
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                async.publish(channel, message);
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                sync.publish(channel, message);
+            }
+        }
+    }
+
+    /**
+     * Subscribe channels on every master node, with messages of all nodes propagated to the listener.
+     * Channels are subscribed on master nodes again every SUBSCRIPTION_REFRESH_INTERVAL seconds,
+     * so that a replica promoted by failover is subscribed as well. Enable topology refresh in clusterClientOptions to find out the new masters.
+     * @param listener listener of messages
+     * @param channels channels
+     * @return subscription
+     */
+    @Override
+    public RedisSubscription subscribe(RedisMessageListener listener, byte[]... channels) {
+        if (genericObjectPool == null) {
+            initialize();
+        }
+        StatefulRedisClusterPubSubConnection<byte[], byte[]> connection = redisClusterClient.connectPubSub(new ByteArrayCodec());
+        connection.setNodeMessagePropagation(true);
+        connection.addListener(new RedisClusterPubSubAdapter<byte[], byte[]>() {
+            @Override
+            public void message(RedisClusterNode node, byte[] channel, byte[] message) {
+                listener.onMessage(channel, message);
+            }
+        });
+        connection.sync().upstream().commands().subscribe(channels);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, SUBSCRIPTION_THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        });
+        // errors are logged instead of thrown, because scheduleWithFixedDelay never runs a task again after it has thrown
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                connection.async().upstream().commands().subscribe(channels);
+            } catch (RuntimeException e) {
+                logger.warn("refresh cluster subscription error. master nodes are subscribed again later.", e);
+            }
+        }, SUBSCRIPTION_REFRESH_INTERVAL, SUBSCRIPTION_REFRESH_INTERVAL, TimeUnit.SECONDS);
+        return () -> {
+            scheduler.shutdownNow();
+            connection.close();
+        };
+    }
+
     @Override
     public Long dbSize(byte[] pattern) {
         AtomicLong dbSize = new AtomicLong(0L);
@@ -258,6 +743,84 @@ public class LettuceRedisClusterManager implements IRedisManager {
         return keys;
     }
 
+    /**
+     * Scan keys page by page. The cluster scan of Lettuce moves from one master node to the next when a node is finished.
+     * @param pattern key pattern
+     * @return iterator of key pages
+     */
+    @Override
+    public Iterator<List<byte[]>> scan(byte[] pattern) {
+        final ScanArgs scanArgs = ScanArgs.Builder.matches(pattern).limit(count);
+        return new KeyPageIterator() {
+            private KeyScanCursor<byte[]> scanCursor;
+
+            @Override
+            protected List<byte[]> scanPage() {
+                try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+                    if (isAsync) {
+                        RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                        scanCursor = LettuceFutures.awaitOrCancel(scanCursor == null ? async.scan(scanArgs) : async.scan(scanCursor, scanArgs),
+                                timeout.getSeconds(), TimeUnit.SECONDS);
+                    } else {
+                        RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                        scanCursor = scanCursor == null ? sync.scan(scanArgs) : sync.scan(scanCursor, scanArgs);
+                    }
+                }
+                if (scanCursor.isFinished()) {
+                    finish();
+                }
+                return scanCursor.getKeys();
+            }
+        };
+    }
+
+    /**
+     * Get values of multiple keys. Lettuce splits the keys by slot and sends the MGETs of all slots together.
+     * @param keys keys
+     * @return values
+     */
+    @Override
+    public List<byte[]> mget(byte[]... keys) {
+        List<byte[]> values = new ArrayList<>();
+        if (keys == null || keys.length == 0) {
+            return values;
+        }
+        List<KeyValue<byte[], byte[]>> keyValues;
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                keyValues = LettuceFutures.awaitOrCancel(async.mget(keys), timeout.getSeconds(), TimeUnit.SECONDS);
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                keyValues = sync.mget(keys);
+            }
+        }
+        for (KeyValue<byte[], byte[]> keyValue : keyValues) {
+            values.add(keyValue.getValueOrElse(null));
+        }
+        return values;
+    }
+
+    /**
+     * Delete multiple keys. Lettuce splits the keys by slot and sends the DELs of all slots together.
+     * @param keys keys
+     */
+    @Override
+    public void mdel(byte[]... keys) {
+        if (keys == null || keys.length == 0) {
+            return;
+        }
+        try (StatefulRedisClusterConnection<byte[], byte[]> connection = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAdvancedClusterAsyncCommands<byte[], byte[]> async = connection.async();
+                LettuceFutures.awaitOrCancel(async.del(keys), timeout.getSeconds(), TimeUnit.SECONDS);
+            } else {
+                RedisAdvancedClusterCommands<byte[], byte[]> sync = connection.sync();
+                sync.del(keys);
+            }
+        }
+    }
+
     public List<String> getNodes() {
         return nodes;
     }
@@ -4,6 +4,7 @@ import io.lettuce.core.RedisClient;
 import io.lettuce.core.RedisURI;
 import io.lettuce.core.api.StatefulRedisConnection;
 import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
 import io.lettuce.core.support.ConnectionPoolSupport;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
@@ -33,12 +34,14 @@ public class LettuceRedisManager extends AbstractLettuceRedisManager {
      */
     private volatile GenericObjectPool<StatefulRedisConnection<byte[], byte[]>> genericObjectPool;
 
+    private RedisClient redisClient;
+
     @SuppressWarnings({"unchecked", "rawtypes"})
     private void initialize() {
         if (genericObjectPool == null) {
             synchronized (LettuceRedisManager.class) {
                 if (genericObjectPool == null) {
-                    RedisClient redisClient = RedisClient.create(createRedisURI());
+                    redisClient = RedisClient.create(createRedisURI());
                     redisClient.setOptions(getClientOptions());
                     GenericObjectPoolConfig genericObjectPoolConfig = getGenericObjectPoolConfig();
                     genericObjectPool = ConnectionPoolSupport.createGenericObjectPool(() -> redisClient.connect(new ByteArrayCodec()), genericObjectPoolConfig);
@@ -72,6 +75,14 @@ public class LettuceRedisManager extends AbstractLettuceRedisManager {
         }
     }
 
+    @Override
+    protected StatefulRedisPubSubConnection<byte[], byte[]> connectPubSub() {
+        if (genericObjectPool == null) {
+            initialize();
+        }
+        return redisClient.connectPubSub(new ByteArrayCodec());
+    }
+
     public String getHost() {
         return host;
     }
@@ -6,6 +6,7 @@ import io.lettuce.core.RedisURI;
 import io.lettuce.core.codec.ByteArrayCodec;
 import io.lettuce.core.masterreplica.MasterReplica;
 import io.lettuce.core.masterreplica.StatefulRedisMasterReplicaConnection;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
 import io.lettuce.core.support.ConnectionPoolSupport;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
@@ -35,13 +36,17 @@ public class LettuceRedisSentinelManager extends AbstractLettuceRedisManager {
      */
     private volatile GenericObjectPool<StatefulRedisMasterReplicaConnection<byte[], byte[]>> genericObjectPool;
 
+    private RedisClient redisClient;
+
+    private RedisURI redisURI;
+
     @SuppressWarnings({"unchecked", "rawtypes"})
     private void initialize() {
         if (genericObjectPool == null) {
             synchronized (LettuceRedisSentinelManager.class) {
                 if (genericObjectPool == null) {
-                    RedisURI redisURI = this.createSentinelRedisURI();
-                    RedisClient redisClient = RedisClient.create(redisURI);
+                    redisURI = this.createSentinelRedisURI();
+                    redisClient = RedisClient.create(redisURI);
                     redisClient.setOptions(getClientOptions());
                     StatefulRedisMasterReplicaConnection<byte[], byte[]> connect = MasterReplica.connect(redisClient, new ByteArrayCodec(), redisURI);
                     connect.setReadFrom(readFrom);
@@ -64,6 +69,17 @@ public class LettuceRedisSentinelManager extends AbstractLettuceRedisManager {
         }
     }
 
+    /**
+     * The master is looked up from sentinels whenever the connection is reconnected, so the subscription follows the failover.
+     */
+    @Override
+    protected StatefulRedisPubSubConnection<byte[], byte[]> connectPubSub() {
+        if (genericObjectPool == null) {
+            initialize();
+        }
+        return redisClient.connectPubSub(new ByteArrayCodec(), redisURI);
+    }
+
     private RedisURI createSentinelRedisURI() {
         Objects.requireNonNull(nodes, "nodes must not be null!");
 
@@ -0,0 +1,28 @@
+package org.crazycake.shiro;
+
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.realm.AuthorizingRealm;
+import org.apache.shiro.subject.PrincipalCollection;
+
+/**
+ * An AuthorizingRealm which also caches principals without authorization info, when its authorization cache is a RedisCache
+ * with negativeExpire (see RedisCacheManager). AuthorizingRealm treats null from the cache as a miss,
+ * so doGetAuthorizationInfo() of such a principal would be called by every check of permissions or roles.
+ * This realm reads the cache by RedisCache.get(key, loader), which stores a tombstone when doGetAuthorizationInfo() returns null.
+ *
+ * Extend it instead of AuthorizingRealm, and implement doGetAuthorizationInfo() and doGetAuthenticationInfo() as usual.
+ * With any other cache, it works in the same way as AuthorizingRealm.
+ */
+public abstract class RedisAuthorizingRealm extends AuthorizingRealm {
+
+    @Override
+    protected AuthorizationInfo getAuthorizationInfo(final PrincipalCollection principals) {
+        Cache<Object, AuthorizationInfo> cache = getAuthorizationCache();
+        if (principals == null || !isAuthorizationCachingEnabled() || !(cache instanceof RedisCache)) {
+            return super.getAuthorizationInfo(principals);
+        }
+        RedisCache<Object, AuthorizationInfo> redisCache = (RedisCache<Object, AuthorizationInfo>) cache;
+        return redisCache.get(getAuthorizationCacheKey(principals), key -> doGetAuthorizationInfo(principals));
+    }
+}
@@ -4,18 +4,24 @@ import org.apache.shiro.cache.Cache;
 import org.apache.shiro.cache.CacheException;
 import org.apache.shiro.subject.PrincipalCollection;
 import org.apache.shiro.util.CollectionUtils;
-import org.crazycake.shiro.exception.CacheManagerPrincipalIdNotAssignedException;
-import org.crazycake.shiro.exception.PrincipalIdNullException;
-import org.crazycake.shiro.exception.PrincipalInstanceException;
+import org.crazycake.shiro.common.CacheInvalidator;
+import org.crazycake.shiro.common.CacheSweeper;
+import org.crazycake.shiro.common.LocalCache;
+import org.crazycake.shiro.common.FieldPrincipalKeyResolver;
+import org.crazycake.shiro.common.KeyPageIterator;
+import org.crazycake.shiro.common.PagedCollection;
+import org.crazycake.shiro.common.PrincipalKeyResolver;
 import org.crazycake.shiro.exception.SerializationException;
 import org.crazycake.shiro.serializer.RedisSerializer;
 import org.crazycake.shiro.serializer.StringSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * Used for setting/getting authorization information from Redis
@@ -26,6 +32,21 @@ public class RedisCache<K, V> implements Cache<K, V> {
 
 	private static Logger logger = LoggerFactory.getLogger(RedisCache.class);
 
+	/**
+	 * Number of values got by one MGET in values() and pagedValues()
+	 */
+	private static final int PAGE_SIZE = 100;
+
+	/**
+	 * Value of a tombstone in Redis
+	 */
+	private static final byte[] TOMBSTONE = new byte[0];
+
+	/**
+	 * Value of a tombstone in localCache
+	 */
+	private static final Object ABSENT = new Object();
+
 	private RedisSerializer keySerializer;
 	private RedisSerializer valueSerializer;
 	private IRedisManager redisManager;
@@ -33,6 +54,67 @@ public class RedisCache<K, V> implements Cache<K, V> {
 	private int expire;
 	private String principalIdFieldName = RedisCacheManager.DEFAULT_PRINCIPAL_ID_FIELD_NAME;
 
+	/**
+	 * Resolve the id of PrincipalCollection keys. If it's not set, the id is got by the getter of principalIdFieldName.
+	 */
+	private PrincipalKeyResolver principalKeyResolver;
+
+	private volatile FieldPrincipalKeyResolver fieldPrincipalKeyResolver;
+
+	/**
+	 * Values in memory, keyed by serialized Redis key. It's null if local cache is disabled.
+	 */
+	private LocalCache localCache;
+
+	/**
+	 * Tell other processes to remove changed keys from their local caches. It's null if local cache is disabled.
+	 */
+	private CacheInvalidator cacheInvalidator;
+
+	/**
+	 * Redis key of the generation counter of this cache. It's null if generations are disabled.
+	 * With generations, keys are keyPrefix + generation + ":" + key, so clear() only increments the counter
+	 * and keys of the previous generation are left to expire (or to cacheSweeper).
+	 * Generations only work with StringSerializer as keySerializer, because keyPrefix isn't used otherwise.
+	 */
+	private String generationKey;
+
+	/**
+	 * How long the generation read from Redis is used before it's read again, in milliseconds.
+	 * It's the longest time another process may still see values cleared by clear().
+	 */
+	private long generationRefreshInterval;
+
+	private volatile CachedGeneration generation;
+
+	/**
+	 * Delete keys of the previous generation after clear(). It's null if they are left to expire.
+	 */
+	private CacheSweeper cacheSweeper;
+
+	/**
+	 * Redis key of the index of this cache. It's null if the index is disabled.
+	 * The index is a sorted set whose members are Redis keys of the cache and scores are the time (in milliseconds) when they expire,
+	 * so that size(), keys(), values() and clear() don't scan the whole keyspace.
+	 * With generations, every generation has its own index at indexKey + ":" + generation.
+	 */
+	private String indexKey;
+
+	/**
+	 * Whether or not remove() returns the removed value. If it's false, remove() only deletes the key and returns null,
+	 * which saves reading and deserializing a value that callers like AuthorizingRealm.clearCachedAuthorizationInfo() don't use.
+	 */
+	private boolean removedValueReturned = true;
+
+	/**
+	 * Expire time of tombstones in seconds. If it's positive, put(key, null) stores a tombstone, which is an empty value,
+	 * so that a key known to be absent isn't looked up again by the realm until the tombstone expires.
+	 * Tombstones are kept in localCache as well. If it's not positive, negative caching is disabled.
+	 * get(key, loader) stores a tombstone when loader finds nothing. Shiro's AuthorizingRealm treats null from get() as a miss,
+	 * so use RedisAuthorizingRealm, which reads its authorization cache by get(key, loader).
+	 */
+	private int negativeExpire;
+
 	/**
 	 *
 	 * @param redisManager redisManager
@@ -67,7 +149,7 @@ public class RedisCache<K, V> implements Cache<K, V> {
 	/**
 	 * get shiro authorization redis key-value
 	 * @param key key
-	 * @return value
+	 * @return value, or null if it's not cached or it's known to be absent (see isAbsent())
 	 * @throws CacheException get cache exception
 	 */
 	@Override
@@ -78,19 +160,93 @@ public class RedisCache<K, V> implements Cache<K, V> {
 			return null;
 		}
 
+		Object value = lookup(key);
+		return value == ABSENT ? null : (V) value;
+	}
+
+	/**
+	 * get value, or load it by loader if it's not cached. The loaded value is put into the cache.
+	 * If loader returns null and negativeExpire is positive, a tombstone is put instead,
+	 * so that loader isn't called again for key until the tombstone expires.
+	 * @param key key
+	 * @param loader loads the value of a key which is not cached, e.g. from the database
+	 * @return value, or null if it's known to be absent or loader returns null
+	 * @throws CacheException get or put cache exception
+	 */
+	public V get(K key, Function<? super K, ? extends V> loader) throws CacheException {
+		if (key == null) {
+			return loader.apply(null);
+		}
+		Object value = lookup(key);
+		if (value == ABSENT) {
+			return null;
+		}
+		if (value != null) {
+			return (V) value;
+		}
+		V loaded = loader.apply(key);
+		if (loaded != null || negativeExpire > 0) {
+			put(key, loaded);
+		}
+		return loaded;
+	}
+
+	/**
+	 * Whether or not key is known to be absent, because put(key, null) has stored a tombstone of it.
+	 * A realm whose lookup finds nothing can put(key, null), and when get(key) returns null later,
+	 * check isAbsent(key) before looking up again. Stock Shiro realms don't call this method, see get(key, loader).
+	 * It's always false if negativeExpire is not positive.
+	 * @param key key
+	 * @return true if a tombstone of key is stored
+	 * @throws CacheException get cache exception
+	 */
+	public boolean isAbsent(K key) throws CacheException {
+		if (key == null || negativeExpire <= 0) {
+			return false;
+		}
+		return lookup(key) == ABSENT;
+	}
+
+	/**
+	 * @param key key
+	 * @return value, ABSENT if a tombstone is stored, or null if key is not cached
+	 */
+	private Object lookup(K key) {
 		try {
 			Object redisCacheKey = getRedisCacheKey(key);
-			byte[] rawValue = redisManager.get(keySerializer.serialize(redisCacheKey));
+			byte[] redisKey = keySerializer.serialize(redisCacheKey);
+			if (localCache != null) {
+				Object localValue = localCache.get(ByteBuffer.wrap(redisKey));
+				if (localValue != null) {
+					logger.debug("get key [" + key + "] from local cache");
+					return localValue;
+				}
+			}
+			byte[] rawValue = redisManager.get(redisKey);
 			if (rawValue == null) {
 				return null;
 			}
+			if (isTombstone(rawValue)) {
+				putLocalTombstone(redisKey);
+				return ABSENT;
+			}
 			V value = (V) valueSerializer.deserialize(rawValue);
+			if (localCache != null && value != null) {
+				localCache.put(ByteBuffer.wrap(redisKey), value);
+			}
 			return value;
 		} catch (SerializationException e) {
 			throw new CacheException(e);
 		}
 	}
 
+	/**
+	 * put value. If value is null and negativeExpire is positive, a tombstone is stored for negativeExpire seconds.
+	 * @param key key
+	 * @param value value
+	 * @return value
+	 * @throws CacheException put cache exception
+	 */
 	@Override
 	public V put(K key, V value) throws CacheException {
 		if (key == null) {
@@ -100,13 +256,55 @@ public class RedisCache<K, V> implements Cache<K, V> {
 		try {
 			Object redisCacheKey = getRedisCacheKey(key);
 			logger.debug("put key [" + redisCacheKey + "]");
-			redisManager.set(keySerializer.serialize(redisCacheKey), value != null ? valueSerializer.serialize(value) : null, expire);
+			byte[] redisKey = keySerializer.serialize(redisCacheKey);
+			if (value == null && negativeExpire > 0) {
+				putTombstone(redisKey);
+				return null;
+			}
+			redisManager.set(redisKey, value != null ? valueSerializer.serialize(value) : null, expire);
+			index(redisKey);
+			if (localCache != null) {
+				if (value != null) {
+					localCache.put(ByteBuffer.wrap(redisKey), value);
+				} else {
+					localCache.remove(ByteBuffer.wrap(redisKey));
+				}
+			}
+			if (cacheInvalidator != null) {
+				cacheInvalidator.publishRemove(redisKey);
+			}
 			return value;
 		} catch (SerializationException e) {
 			throw new CacheException(e);
 		}
 	}
 
+	/**
+	 * Store a tombstone instead of a value. Tombstones are not in the index, so they are not counted by size().
+	 * @param redisKey Redis key
+	 * @throws SerializationException serialize error
+	 */
+	private void putTombstone(byte[] redisKey) throws SerializationException {
+		redisManager.set(redisKey, TOMBSTONE, negativeExpire);
+		if (indexKey != null) {
+			redisManager.zrem(getRedisIndexKey(), redisKey);
+		}
+		putLocalTombstone(redisKey);
+		if (cacheInvalidator != null) {
+			cacheInvalidator.publishRemove(redisKey);
+		}
+	}
+
+	private void putLocalTombstone(byte[] redisKey) {
+		if (localCache != null) {
+			localCache.put(ByteBuffer.wrap(redisKey), ABSENT, Math.min(localCache.getTimeout(), TimeUnit.SECONDS.toMillis(negativeExpire)));
+		}
+	}
+
+	private boolean isTombstone(byte[] rawValue) {
+		return negativeExpire > 0 && rawValue.length == 0;
+	}
+
 	@Override
 	public V remove(K key) throws CacheException {
 		logger.debug("remove key [" + key + "]");
@@ -115,9 +313,25 @@ public class RedisCache<K, V> implements Cache<K, V> {
         }
 		try {
             Object redisCacheKey = getRedisCacheKey(key);
-            byte[] rawValue = redisManager.get(keySerializer.serialize(redisCacheKey));
-            V previous = (V) valueSerializer.deserialize(rawValue);
-            redisManager.del(keySerializer.serialize(redisCacheKey));
+            byte[] redisKey = keySerializer.serialize(redisCacheKey);
+            V previous = null;
+            if (removedValueReturned) {
+                byte[] rawValue = redisManager.getDel(redisKey);
+                if (rawValue != null && !isTombstone(rawValue)) {
+                    previous = (V) valueSerializer.deserialize(rawValue);
+                }
+            } else {
+                redisManager.del(redisKey);
+            }
+            if (indexKey != null) {
+                redisManager.zrem(getRedisIndexKey(), redisKey);
+            }
+            if (localCache != null) {
+                localCache.remove(ByteBuffer.wrap(redisKey));
+            }
+            if (cacheInvalidator != null) {
+                cacheInvalidator.publishRemove(redisKey);
+            }
             return previous;
         } catch (SerializationException e) {
             throw new CacheException(e);
@@ -134,11 +348,46 @@ public class RedisCache<K, V> implements Cache<K, V> {
 			return null;
 		}
 		if (keySerializer instanceof StringSerializer) {
-			return this.keyPrefix + getStringRedisKey(key);
+			return getNamespace() + getStringRedisKey(key);
 		}
 		return key;
 	}
 
+	/**
+	 * @return keyPrefix, followed by the current generation if generations are enabled
+	 */
+	private String getNamespace() {
+		if (!isGenerationEnabled()) {
+			return this.keyPrefix;
+		}
+		return this.keyPrefix + getGeneration() + ":";
+	}
+
+	private boolean isGenerationEnabled() {
+		return generationKey != null && keySerializer instanceof StringSerializer;
+	}
+
+	private long getGeneration() {
+		CachedGeneration cached = generation;
+		long now = System.nanoTime();
+		if (cached != null && now - cached.readTime < TimeUnit.MILLISECONDS.toNanos(generationRefreshInterval)) {
+			return cached.value;
+		}
+		long value;
+		try {
+			byte[] rawValue = redisManager.get(keySerializer.serialize(generationKey));
+			value = rawValue == null ? 0L : Long.parseLong(new String(rawValue, StandardCharsets.UTF_8));
+		} catch (SerializationException e) {
+			throw new CacheException(e);
+		}
+		// generations only go up. Don't go back to a generation read before the latest clear() of this process
+		if (cached != null && cached.value > value) {
+			value = cached.value;
+		}
+		generation = new CachedGeneration(value, now);
+		return value;
+	}
+
 	/**
 	 * get Redis key (not including prefix)
 	 * @param key
@@ -160,66 +409,120 @@ public class RedisCache<K, V> implements Cache<K, V> {
 	 * @return
 	 */
 	private String getRedisKeyFromPrincipalIdField(PrincipalCollection key) {
-		Object principalObject = key.getPrimaryPrincipal();
-		if (principalObject instanceof String) {
-		    return principalObject.toString();
-		}
-		Method pincipalIdGetter = getPrincipalIdGetter(principalObject);
-		return getIdObj(principalObject, pincipalIdGetter);
+		return getEffectivePrincipalKeyResolver().getPrincipalId(key);
 	}
 
-	private String getIdObj(Object principalObject, Method pincipalIdGetter) {
-		String redisKey;
-		try {
-		    Object idObj = pincipalIdGetter.invoke(principalObject);
-		    if (idObj == null) {
-		        throw new PrincipalIdNullException(principalObject.getClass(), this.principalIdFieldName);
-            }
-			redisKey = idObj.toString();
-		} catch (IllegalAccessException e) {
-			throw new PrincipalInstanceException(principalObject.getClass(), this.principalIdFieldName, e);
-		} catch (InvocationTargetException e) {
-			throw new PrincipalInstanceException(principalObject.getClass(), this.principalIdFieldName, e);
+	/**
+	 * @return principalKeyResolver if it's set, otherwise a resolver by principalIdFieldName
+	 */
+	private PrincipalKeyResolver getEffectivePrincipalKeyResolver() {
+		if (principalKeyResolver != null) {
+			return principalKeyResolver;
 		}
-		return redisKey;
+		FieldPrincipalKeyResolver resolver = fieldPrincipalKeyResolver;
+		if (resolver == null) {
+			resolver = new FieldPrincipalKeyResolver(principalIdFieldName);
+			fieldPrincipalKeyResolver = resolver;
+		}
+		return resolver;
 	}
 
-	private Method getPrincipalIdGetter(Object principalObject) {
-		Method pincipalIdGetter = null;
-		String principalIdMethodName = this.getPrincipalIdMethodName();
-		try {
-			pincipalIdGetter = principalObject.getClass().getMethod(principalIdMethodName);
-		} catch (NoSuchMethodException e) {
-			throw new PrincipalInstanceException(principalObject.getClass(), this.principalIdFieldName);
+	@Override
+	public void clear() throws CacheException {
+		logger.debug("clear cache");
+		if (isGenerationEnabled()) {
+			clearGeneration();
+		} else {
+			deleteKeys();
+		}
+		if (localCache != null) {
+			localCache.clear();
+		}
+		if (cacheInvalidator != null) {
+			try {
+				cacheInvalidator.publishClear(keySerializer.serialize(this.keyPrefix));
+			} catch (SerializationException e) {
+				logger.error("publish clear error", e);
+			}
 		}
-		return pincipalIdGetter;
 	}
 
-	private String getPrincipalIdMethodName() {
-		if (this.principalIdFieldName == null || "".equals(this.principalIdFieldName)) {
-			throw new CacheManagerPrincipalIdNotAssignedException();
+	/**
+	 * Move on to the next generation. Keys of the previous generation are not read any more.
+	 */
+	private void clearGeneration() {
+		try {
+			long next = redisManager.incr(keySerializer.serialize(generationKey));
+			generation = new CachedGeneration(next, System.nanoTime());
+			if (indexKey != null) {
+				redisManager.del(keySerializer.serialize(indexKey + ":" + (next - 1)));
+			}
+			if (cacheSweeper != null) {
+				cacheSweeper.sweep(keySerializer.serialize(this.keyPrefix + (next - 1) + ":*"));
+			}
+		} catch (SerializationException e) {
+			throw new CacheException(e);
 		}
-		return "get" + this.principalIdFieldName.substring(0, 1).toUpperCase() + this.principalIdFieldName.substring(1);
 	}
 
-
-	@Override
-	public void clear() throws CacheException {
-		logger.debug("clear cache");
-        Set<byte[]> keys = null;
+	private void deleteKeys() {
+        Collection<byte[]> keys = null;
         try {
-            keys = redisManager.keys(keySerializer.serialize(this.keyPrefix + "*"));
+            keys = getRedisKeys();
         } catch (SerializationException e) {
             logger.error("get keys error", e);
         }
-        if (keys == null || keys.size() == 0) {
-            return;
+        if (keys != null) {
+            for (byte[] key : keys) {
+                redisManager.del(key);
+            }
         }
-        for (byte[] key: keys) {
-            redisManager.del(key);
+        if (indexKey != null) {
+            try {
+                redisManager.del(getRedisIndexKey());
+            } catch (SerializationException e) {
+                logger.error("delete index error", e);
+            }
         }
 	}
 
+	/**
+	 * Add a Redis key to the index with the time when it expires
+	 * @param redisKey Redis key
+	 * @throws SerializationException serialize error
+	 */
+	private void index(byte[] redisKey) throws SerializationException {
+		if (indexKey == null) {
+			return;
+		}
+		double expireAt = expire > 0 ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expire) : Double.POSITIVE_INFINITY;
+		byte[] index = getRedisIndexKey();
+		redisManager.zadd(index, expireAt, redisKey);
+		redisManager.expire(index, expire);
+	}
+
+	private byte[] getRedisIndexKey() throws SerializationException {
+		if (isGenerationEnabled()) {
+			return keySerializer.serialize(indexKey + ":" + getGeneration());
+		}
+		return keySerializer.serialize(indexKey);
+	}
+
+	/**
+	 * Redis keys of the cache, by the index if it's enabled, otherwise by scanning keys
+	 * @return Redis keys
+	 * @throws SerializationException serialize error
+	 */
+	private Collection<byte[]> getRedisKeys() throws SerializationException {
+		if (indexKey == null) {
+			return redisManager.keys(keySerializer.serialize(getNamespace() + "*"));
+		}
+		byte[] index = getRedisIndexKey();
+		long now = System.currentTimeMillis();
+		redisManager.zremrangeByScore(index, Double.NEGATIVE_INFINITY, now);
+		return redisManager.zrangeByScore(index, now, Double.POSITIVE_INFINITY, 0, -1);
+	}
+
 	/**
 	 * get all authorization key-value quantity
 	 * @return key-value size
@@ -228,7 +531,11 @@ public class RedisCache<K, V> implements Cache<K, V> {
 	public int size() {
 		Long longSize = 0L;
 		try {
-			longSize = new Long(redisManager.dbSize(keySerializer.serialize(this.keyPrefix + "*")));
+			if (indexKey != null) {
+				longSize = redisManager.zcount(getRedisIndexKey(), System.currentTimeMillis(), Double.POSITIVE_INFINITY);
+			} else {
+				longSize = new Long(redisManager.dbSize(keySerializer.serialize(getNamespace() + "*")));
+			}
 		} catch (SerializationException e) {
 			logger.error("get keys error", e);
 		}
@@ -238,9 +545,9 @@ public class RedisCache<K, V> implements Cache<K, V> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public Set<K> keys() {
-		Set<byte[]> keys = null;
+		Collection<byte[]> keys = null;
 		try {
-			keys = redisManager.keys(keySerializer.serialize(this.keyPrefix + "*"));
+			keys = getRedisKeys();
 		} catch (SerializationException e) {
 			logger.error("get keys error", e);
 			return Collections.emptySet();
@@ -263,9 +570,9 @@ public class RedisCache<K, V> implements Cache<K, V> {
 
 	@Override
 	public Collection<V> values() {
-		Set<byte[]> keys = null;
+		Collection<byte[]> keys = null;
 		try {
-			keys = redisManager.keys(keySerializer.serialize(this.keyPrefix + "*"));
+			keys = getRedisKeys();
 		} catch (SerializationException e) {
 			logger.error("get values error", e);
 			return Collections.emptySet();
@@ -276,10 +583,79 @@ public class RedisCache<K, V> implements Cache<K, V> {
 		}
 
 		List<V> values = new ArrayList<V>(keys.size());
+		List<byte[]> page = new ArrayList<byte[]>(PAGE_SIZE);
 		for (byte[] key : keys) {
+			page.add(key);
+			if (page.size() == PAGE_SIZE) {
+				values.addAll(loadValues(page));
+				page.clear();
+			}
+		}
+		if (!page.isEmpty()) {
+			values.addAll(loadValues(page));
+		}
+		return Collections.unmodifiableList(values);
+	}
+
+	/**
+	 * Same as values(), but keys are scanned (or read from the index) page by page while the collection is iterated,
+	 * so values of a big cache are never held in memory all at once. Every iteration reads Redis again.
+	 * @return values
+	 */
+	public Collection<V> pagedValues() {
+		final byte[] pattern;
+		final byte[] index;
+		try {
+			pattern = keySerializer.serialize(getNamespace() + "*");
+			index = indexKey != null ? getRedisIndexKey() : null;
+		} catch (SerializationException e) {
+			logger.error("get values error", e);
+			return Collections.emptySet();
+		}
+		if (index != null) {
+			redisManager.zremrangeByScore(index, Double.NEGATIVE_INFINITY, System.currentTimeMillis());
+			return new PagedCollection<V>(() -> scanIndex(index), this::loadValues);
+		}
+		return new PagedCollection<V>(() -> redisManager.scan(pattern), this::loadValues);
+	}
+
+	/**
+	 * Read keys from the index page by page, skipping those which have expired.
+	 * @param index Redis key of the index
+	 * @return iterator of key pages
+	 */
+	private Iterator<List<byte[]>> scanIndex(final byte[] index) {
+		final double now = System.currentTimeMillis();
+		return new KeyPageIterator() {
+			private int offset = 0;
+
+			@Override
+			protected List<byte[]> scanPage() {
+				List<byte[]> keys = redisManager.zrangeByScore(index, now, Double.POSITIVE_INFINITY, offset, PAGE_SIZE);
+				offset += keys.size();
+				if (keys.size() < PAGE_SIZE) {
+					finish();
+				}
+				return keys;
+			}
+		};
+	}
+
+	/**
+	 * Get values of a page of keys by one MGET. Values which don't exist or can't be deserialized are skipped.
+	 * @param keys Redis keys
+	 * @return values
+	 */
+	private Collection<V> loadValues(List<byte[]> keys) {
+		List<byte[]> rawValues = redisManager.mget(keys.toArray(new byte[keys.size()][]));
+		List<V> values = new ArrayList<V>(rawValues.size());
+		for (byte[] rawValue : rawValues) {
+			if (rawValue == null || isTombstone(rawValue)) {
+				continue;
+			}
 			V value = null;
 			try {
-				value = (V) valueSerializer.deserialize(redisManager.get(key));
+				value = (V) valueSerializer.deserialize(rawValue);
 			} catch (SerializationException e) {
 				logger.error("deserialize values= error", e);
 			}
@@ -287,7 +663,7 @@ public class RedisCache<K, V> implements Cache<K, V> {
 				values.add(value);
 			}
 		}
-		return Collections.unmodifiableList(values);
+		return values;
 	}
 
 	public String getKeyPrefix() {
@@ -298,11 +674,107 @@ public class RedisCache<K, V> implements Cache<K, V> {
 		this.keyPrefix = keyPrefix;
 	}
 
+	public LocalCache getLocalCache() {
+		return localCache;
+	}
+
+	/**
+	 * Keep values in memory in front of Redis. Set cacheInvalidator as well, unless there is only one process.
+	 * @param localCache local cache
+	 */
+	public void setLocalCache(LocalCache localCache) {
+		this.localCache = localCache;
+	}
+
+	public CacheInvalidator getCacheInvalidator() {
+		return cacheInvalidator;
+	}
+
+	public void setCacheInvalidator(CacheInvalidator cacheInvalidator) {
+		this.cacheInvalidator = cacheInvalidator;
+	}
+
 	public String getPrincipalIdFieldName() {
 		return principalIdFieldName;
 	}
 
 	public void setPrincipalIdFieldName(String principalIdFieldName) {
 		this.principalIdFieldName = principalIdFieldName;
+		this.fieldPrincipalKeyResolver = null;
+	}
+
+	public String getGenerationKey() {
+		return generationKey;
+	}
+
+	/**
+	 * Enable generations. Keys written before are not read any more.
+	 * @param generationKey Redis key of the generation counter, which must not match keyPrefix + "*"
+	 */
+	public void setGenerationKey(String generationKey) {
+		this.generationKey = generationKey;
+		this.generation = null;
+	}
+
+	public long getGenerationRefreshInterval() {
+		return generationRefreshInterval;
+	}
+
+	public void setGenerationRefreshInterval(long generationRefreshInterval) {
+		this.generationRefreshInterval = generationRefreshInterval;
+	}
+
+	public CacheSweeper getCacheSweeper() {
+		return cacheSweeper;
+	}
+
+	public void setCacheSweeper(CacheSweeper cacheSweeper) {
+		this.cacheSweeper = cacheSweeper;
+	}
+
+	public String getIndexKey() {
+		return indexKey;
+	}
+
+	/**
+	 * Enable the index. Keys written before are not in the index until they are written again.
+	 * @param indexKey Redis key of the index
+	 */
+	public void setIndexKey(String indexKey) {
+		this.indexKey = indexKey;
+	}
+
+	public boolean getRemovedValueReturned() {
+		return removedValueReturned;
+	}
+
+	public void setRemovedValueReturned(boolean removedValueReturned) {
+		this.removedValueReturned = removedValueReturned;
+	}
+
+	public int getNegativeExpire() {
+		return negativeExpire;
+	}
+
+	public void setNegativeExpire(int negativeExpire) {
+		this.negativeExpire = negativeExpire;
+	}
+
+	public PrincipalKeyResolver getPrincipalKeyResolver() {
+		return principalKeyResolver;
+	}
+
+	public void setPrincipalKeyResolver(PrincipalKeyResolver principalKeyResolver) {
+		this.principalKeyResolver = principalKeyResolver;
+	}
+
+	private static final class CachedGeneration {
+		private final long value;
+		private final long readTime;
+
+		private CachedGeneration(long value, long readTime) {
+			this.value = value;
+			this.readTime = readTime;
+		}
 	}
 }
@@ -3,16 +3,23 @@ package org.crazycake.shiro;
 import org.apache.shiro.cache.Cache;
 import org.apache.shiro.cache.CacheException;
 import org.apache.shiro.cache.CacheManager;
+import org.apache.shiro.util.Destroyable;
+import org.crazycake.shiro.common.CacheInvalidator;
+import org.crazycake.shiro.common.CacheSweeper;
+import org.crazycake.shiro.common.LocalCache;
+import org.crazycake.shiro.common.PrincipalKeyResolver;
+import org.crazycake.shiro.exception.SerializationException;
 import org.crazycake.shiro.serializer.ObjectSerializer;
 import org.crazycake.shiro.serializer.RedisSerializer;
 import org.crazycake.shiro.serializer.StringSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
-public class RedisCacheManager implements CacheManager {
+public class RedisCacheManager implements CacheManager, Destroyable {
 
 	private final Logger logger = LoggerFactory.getLogger(RedisCacheManager.class);
 
@@ -36,6 +43,88 @@ public class RedisCacheManager implements CacheManager {
 	public static final String DEFAULT_PRINCIPAL_ID_FIELD_NAME = "id";
 	private String principalIdFieldName = DEFAULT_PRINCIPAL_ID_FIELD_NAME;
 
+	/**
+	 * Resolve the id of PrincipalCollection keys. If it's not set, the id is got by the getter of principalIdFieldName.
+	 */
+	private PrincipalKeyResolver principalKeyResolver;
+
+	/**
+	 * Every get() of RedisCache costs a GET of Redis and a deserialization, and authorization info is got many times by a request.
+	 * If localCacheEnabled is true, every cache keeps up to localCacheMaxSize values in memory for at most localCacheTimeout milliseconds,
+	 * and least recently used values are evicted first.
+	 * put(), remove() and clear() publish invalidations to invalidationChannel, and other processes remove the changed keys
+	 * from their local caches (see CacheInvalidator). Invalidations published while a process is disconnected from Redis are lost,
+	 * so localCacheTimeout is the longest time a process may see a stale value.
+	 */
+	private static final boolean DEFAULT_LOCAL_CACHE_ENABLED = false;
+	private boolean localCacheEnabled = DEFAULT_LOCAL_CACHE_ENABLED;
+
+	private static final int DEFAULT_LOCAL_CACHE_MAX_SIZE = 1000;
+	private int localCacheMaxSize = DEFAULT_LOCAL_CACHE_MAX_SIZE;
+
+	private static final long DEFAULT_LOCAL_CACHE_TIMEOUT = 60000L;
+	private long localCacheTimeout = DEFAULT_LOCAL_CACHE_TIMEOUT;
+
+	public static final String DEFAULT_INVALIDATION_CHANNEL = "shiro:cache:invalidation";
+	private String invalidationChannel = DEFAULT_INVALIDATION_CHANNEL;
+
+	private CacheInvalidator cacheInvalidator;
+
+	/**
+	 * clear() of RedisCache scans keys of the cache and deletes them one by one, which is slow on a big Redis.
+	 * If generationEnabled is true, every cache keeps a generation counter at generationKeyPrefix + cache name,
+	 * and the generation is a part of every key. clear() only increments the counter, and keys of old generations expire by themselves.
+	 * If generationSweepEnabled is true as well, keys of the previous generation are deleted in background,
+	 * sleeping generationSweepInterval milliseconds between two pages of keys.
+	 * Other processes read the counter again every generationRefreshInterval milliseconds, so they may see cleared values for that long.
+	 * Generations need StringSerializer as keySerializer. Values cached before generations are enabled are not read any more.
+	 */
+	private static final boolean DEFAULT_GENERATION_ENABLED = false;
+	private boolean generationEnabled = DEFAULT_GENERATION_ENABLED;
+
+	public static final String DEFAULT_GENERATION_KEY_PREFIX = "shiro:cache_generation:";
+	private String generationKeyPrefix = DEFAULT_GENERATION_KEY_PREFIX;
+
+	private static final long DEFAULT_GENERATION_REFRESH_INTERVAL = 1000L;
+	private long generationRefreshInterval = DEFAULT_GENERATION_REFRESH_INTERVAL;
+
+	private static final boolean DEFAULT_GENERATION_SWEEP_ENABLED = false;
+	private boolean generationSweepEnabled = DEFAULT_GENERATION_SWEEP_ENABLED;
+
+	private static final long DEFAULT_GENERATION_SWEEP_INTERVAL = 100L;
+	private long generationSweepInterval = DEFAULT_GENERATION_SWEEP_INTERVAL;
+
+	private CacheSweeper cacheSweeper;
+
+	/**
+	 * size() and keys() of RedisCache scan the whole keyspace (every node in cluster mode) to find keys of one cache.
+	 * If indexEnabled is true, every cache keeps its keys in a sorted set at indexKeyPrefix + cache name, updated by put() and remove(),
+	 * and size(), keys(), values() and clear() read the index instead. Members are scored by the time when they expire,
+	 * so expired keys are left out. Keys evicted by Redis before they expire are still counted until they expire.
+	 */
+	private static final boolean DEFAULT_INDEX_ENABLED = false;
+	private boolean indexEnabled = DEFAULT_INDEX_ENABLED;
+
+	public static final String DEFAULT_INDEX_KEY_PREFIX = "shiro:cache_index:";
+	private String indexKeyPrefix = DEFAULT_INDEX_KEY_PREFIX;
+
+	/**
+	 * If removedValueReturned is false, remove() of RedisCache only deletes the key and returns null,
+	 * instead of getting and deserializing the removed value.
+	 */
+	private static final boolean DEFAULT_REMOVED_VALUE_RETURNED = true;
+	private boolean removedValueReturned = DEFAULT_REMOVED_VALUE_RETURNED;
+
+	/**
+	 * Expire time of tombstones in seconds. If it's positive, put(key, null) of RedisCache stores a tombstone,
+	 * and isAbsent(key) tells a realm that its last lookup of key found nothing, so it doesn't need to look up again.
+	 * With localCacheEnabled, tombstones are kept in memory as well. If it's not positive, negative caching is disabled.
+	 * get(key, loader) of RedisCache stores a tombstone when loader finds nothing. Stock Shiro realms never put null,
+	 * so extend RedisAuthorizingRealm instead of AuthorizingRealm to cache principals without authorization info.
+	 */
+	private static final int DEFAULT_NEGATIVE_EXPIRE = 0;
+	private int negativeExpire = DEFAULT_NEGATIVE_EXPIRE;
+
 	@Override
 	public <K, V> Cache<K, V> getCache(String name) throws CacheException {
 		logger.debug("get cache, name=" + name);
@@ -43,12 +132,60 @@ public class RedisCacheManager implements CacheManager {
 		Cache<K, V> cache = caches.get(name);
 
 		if (cache == null) {
-			cache = new RedisCache<K, V>(redisManager, keySerializer, valueSerializer, keyPrefix + name + ":", expire, principalIdFieldName);
-			caches.put(name, cache);
+			// computeIfAbsent makes sure that concurrent calls get the same cache
+			cache = caches.computeIfAbsent(name, this::createCache);
+		}
+		return cache;
+	}
+
+	private synchronized <K, V> Cache<K, V> createCache(String name) {
+		String cacheKeyPrefix = keyPrefix + name + ":";
+		RedisCache<K, V> cache = new RedisCache<K, V>(redisManager, keySerializer, valueSerializer, cacheKeyPrefix, expire, principalIdFieldName);
+		cache.setPrincipalKeyResolver(principalKeyResolver);
+		cache.setRemovedValueReturned(removedValueReturned);
+		cache.setNegativeExpire(negativeExpire);
+		if (indexEnabled) {
+			cache.setIndexKey(indexKeyPrefix + name);
+		}
+		if (generationEnabled) {
+			cache.setGenerationKey(generationKeyPrefix + name);
+			cache.setGenerationRefreshInterval(generationRefreshInterval);
+			if (generationSweepEnabled) {
+				if (cacheSweeper == null) {
+					cacheSweeper = new CacheSweeper(redisManager, generationSweepInterval);
+				}
+				cache.setCacheSweeper(cacheSweeper);
+			}
+		}
+		if (localCacheEnabled) {
+			if (cacheInvalidator == null) {
+				cacheInvalidator = new CacheInvalidator(redisManager, invalidationChannel.getBytes(StandardCharsets.UTF_8));
+			}
+			LocalCache localCache = new LocalCache(localCacheMaxSize, localCacheTimeout);
+			try {
+				cacheInvalidator.register(keySerializer.serialize(cacheKeyPrefix), localCache);
+			} catch (SerializationException e) {
+				throw new CacheException(e);
+			}
+			cache.setLocalCache(localCache);
+			cache.setCacheInvalidator(cacheInvalidator);
 		}
 		return cache;
 	}
 
+	/**
+	 * Unsubscribe invalidations of local caches, and stop sweeping old generations
+	 */
+	@Override
+	public synchronized void destroy() {
+		if (cacheInvalidator != null) {
+			cacheInvalidator.close();
+		}
+		if (cacheSweeper != null) {
+			cacheSweeper.close();
+		}
+	}
+
 	public IRedisManager getRedisManager() {
 		return redisManager;
 	}
@@ -89,6 +226,38 @@ public class RedisCacheManager implements CacheManager {
 		this.expire = expire;
 	}
 
+	public boolean getLocalCacheEnabled() {
+		return localCacheEnabled;
+	}
+
+	public void setLocalCacheEnabled(boolean localCacheEnabled) {
+		this.localCacheEnabled = localCacheEnabled;
+	}
+
+	public int getLocalCacheMaxSize() {
+		return localCacheMaxSize;
+	}
+
+	public void setLocalCacheMaxSize(int localCacheMaxSize) {
+		this.localCacheMaxSize = localCacheMaxSize;
+	}
+
+	public long getLocalCacheTimeout() {
+		return localCacheTimeout;
+	}
+
+	public void setLocalCacheTimeout(long localCacheTimeout) {
+		this.localCacheTimeout = localCacheTimeout;
+	}
+
+	public String getInvalidationChannel() {
+		return invalidationChannel;
+	}
+
+	public void setInvalidationChannel(String invalidationChannel) {
+		this.invalidationChannel = invalidationChannel;
+	}
+
 	public String getPrincipalIdFieldName() {
 		return principalIdFieldName;
 	}
@@ -96,4 +265,84 @@ public class RedisCacheManager implements CacheManager {
 	public void setPrincipalIdFieldName(String principalIdFieldName) {
 		this.principalIdFieldName = principalIdFieldName;
 	}
+
+	public PrincipalKeyResolver getPrincipalKeyResolver() {
+		return principalKeyResolver;
+	}
+
+	public void setPrincipalKeyResolver(PrincipalKeyResolver principalKeyResolver) {
+		this.principalKeyResolver = principalKeyResolver;
+	}
+
+	public boolean getGenerationEnabled() {
+		return generationEnabled;
+	}
+
+	public void setGenerationEnabled(boolean generationEnabled) {
+		this.generationEnabled = generationEnabled;
+	}
+
+	public String getGenerationKeyPrefix() {
+		return generationKeyPrefix;
+	}
+
+	public void setGenerationKeyPrefix(String generationKeyPrefix) {
+		this.generationKeyPrefix = generationKeyPrefix;
+	}
+
+	public long getGenerationRefreshInterval() {
+		return generationRefreshInterval;
+	}
+
+	public void setGenerationRefreshInterval(long generationRefreshInterval) {
+		this.generationRefreshInterval = generationRefreshInterval;
+	}
+
+	public boolean getGenerationSweepEnabled() {
+		return generationSweepEnabled;
+	}
+
+	public void setGenerationSweepEnabled(boolean generationSweepEnabled) {
+		this.generationSweepEnabled = generationSweepEnabled;
+	}
+
+	public long getGenerationSweepInterval() {
+		return generationSweepInterval;
+	}
+
+	public void setGenerationSweepInterval(long generationSweepInterval) {
+		this.generationSweepInterval = generationSweepInterval;
+	}
+
+	public boolean getIndexEnabled() {
+		return indexEnabled;
+	}
+
+	public void setIndexEnabled(boolean indexEnabled) {
+		this.indexEnabled = indexEnabled;
+	}
+
+	public String getIndexKeyPrefix() {
+		return indexKeyPrefix;
+	}
+
+	public void setIndexKeyPrefix(String indexKeyPrefix) {
+		this.indexKeyPrefix = indexKeyPrefix;
+	}
+
+	public boolean getRemovedValueReturned() {
+		return removedValueReturned;
+	}
+
+	public void setRemovedValueReturned(boolean removedValueReturned) {
+		this.removedValueReturned = removedValueReturned;
+	}
+
+	public int getNegativeExpire() {
+		return negativeExpire;
+	}
+
+	public void setNegativeExpire(int negativeExpire) {
+		this.negativeExpire = negativeExpire;
+	}
 }
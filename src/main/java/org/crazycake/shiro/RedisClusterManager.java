@@ -1,17 +1,41 @@
 package org.crazycake.shiro;
 
+import org.crazycake.shiro.common.JedisSubscription;
+import org.crazycake.shiro.common.KeyPageIterator;
+import org.crazycake.shiro.common.RedisMessageListener;
+import org.crazycake.shiro.common.RedisScripts;
+import org.crazycake.shiro.common.RedisSubscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import redis.clients.jedis.*;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.util.JedisClusterCRC16;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 public class RedisClusterManager implements IRedisManager {
 
+    private static Logger logger = LoggerFactory.getLogger(RedisClusterManager.class);
+
     private static final int DEFAULT_COUNT = 100;
     private static final int DEFAULT_MAX_ATTEMPTS = 3;
     private static final String DEFAULT_HOST = "127.0.0.1:7000,127.0.0.1:7001,127.0.0.1:7002";
+    private static final String SUBSCRIPTION_THREAD_NAME = "shiro-redis-subscription";
+    private static final long SUBSCRIPTION_REFRESH_INTERVAL = 30L;
     private String host = DEFAULT_HOST;
 
     // timeout for jedis try to connect to redis server, not expire time! In milliseconds
@@ -35,6 +59,12 @@ public class RedisClusterManager implements IRedisManager {
 
     private volatile JedisCluster jedisCluster = null;
 
+    /**
+     * Whether or not the server knows GETDEL (Redis 6.2+). It's set to false after GETDEL is rejected,
+     * and the GET_DEL script is used instead.
+     */
+    private volatile boolean getDelSupported = true;
+
     private void init() {
         if (jedisCluster == null) {
             synchronized (RedisClusterManager.class) {
@@ -71,6 +101,14 @@ public class RedisClusterManager implements IRedisManager {
         return getJedisCluster().get(key);
     }
 
+    @Override
+    public byte[] getRange(byte[] key, long start, long end) {
+        if (key == null) {
+            return null;
+        }
+        return getJedisCluster().getrange(key, start, end);
+    }
+
     @Override
     public byte[] set(byte[] key, byte[] value, int expireTime) {
         if (key == null) {
@@ -83,6 +121,24 @@ public class RedisClusterManager implements IRedisManager {
         return value;
     }
 
+    @Override
+    public boolean compareAndSet(byte[] key, byte[] expectedPrefix, byte[] value, int expireTime) {
+        if (key == null) {
+            return false;
+        }
+        Object result = evalCached(RedisScripts.COMPARE_AND_SET_SHA1_BYTES, RedisScripts.COMPARE_AND_SET_BYTES, Collections.singletonList(key),
+                Arrays.asList(expectedPrefix, value, RedisScripts.toArg(expireTime)));
+        return Long.valueOf(1L).equals(result);
+    }
+
+    @Override
+    public void expire(byte[] key, int expireTime) {
+        if (key == null || expireTime <= 0) {
+            return;
+        }
+        getJedisCluster().expire(key, expireTime);
+    }
+
     @Override
     public void del(byte[] key) {
         if (key == null) {
@@ -91,6 +147,147 @@ public class RedisClusterManager implements IRedisManager {
         getJedisCluster().del(key);
     }
 
+    @Override
+    public byte[] getDel(byte[] key) {
+        if (key == null) {
+            return null;
+        }
+        if (getDelSupported) {
+            try {
+                return getJedisCluster().getDel(key);
+            } catch (JedisDataException e) {
+                if (!RedisScripts.isUnknownCommand(e)) {
+                    throw e;
+                }
+                getDelSupported = false;
+            }
+        }
+        return (byte[]) evalCached(RedisScripts.GET_DEL_SHA1_BYTES, RedisScripts.GET_DEL_BYTES,
+                Collections.singletonList(key), Collections.<byte[]>emptyList());
+    }
+
+    /**
+     * Run a script by EVALSHA. If the server hasn't cached it yet, it's run by EVAL, which caches it.
+     * @param sha1 SHA1 digest of script
+     * @param script script
+     * @param keys keys
+     * @param args arguments
+     * @return result of script
+     */
+    private Object evalCached(byte[] sha1, byte[] script, List<byte[]> keys, List<byte[]> args) {
+        try {
+            return getJedisCluster().evalsha(sha1, keys, args);
+        } catch (JedisDataException e) {
+            if (!RedisScripts.isNoScript(e)) {
+                throw e;
+            }
+            return getJedisCluster().eval(script, keys, args);
+        }
+    }
+
+    @Override
+    public long incr(byte[] key) {
+        Long value = getJedisCluster().incr(key);
+        return value == null ? 0L : value;
+    }
+
+    @Override
+    public byte[] hget(byte[] key, byte[] field) {
+        if (key == null) {
+            return null;
+        }
+        return getJedisCluster().hget(key, field);
+    }
+
+    @Override
+    public Map<byte[], byte[]> hgetAll(byte[] key) {
+        if (key == null) {
+            return null;
+        }
+        return getJedisCluster().hgetAll(key);
+    }
+
+    /**
+     * Get all fields and values of multiple hashes. Keys are grouped by the node which serves them, and HGETALLs of every node are sent in one pipeline.
+     * @param keys keys
+     * @return fields and values
+     */
+    @Override
+    public List<Map<byte[], byte[]>> mhgetAll(byte[]... keys) {
+        return pipelineByNode(keys, (pipeline, key) -> pipeline.hgetAll(key), key -> getJedisCluster().hgetAll(key));
+    }
+
+    @Override
+    public Set<byte[]> hkeys(byte[] key) {
+        if (key == null) {
+            return null;
+        }
+        return getJedisCluster().hkeys(key);
+    }
+
+    @Override
+    public void hset(byte[] key, Map<byte[], byte[]> hash, int expireTime) {
+        if (key == null || hash == null || hash.isEmpty()) {
+            return;
+        }
+        if (expireTime > 0) {
+            evalCached(RedisScripts.HSET_EXPIRE_SHA1_BYTES, RedisScripts.HSET_EXPIRE_BYTES,
+                    Collections.singletonList(key), RedisScripts.toHashArgs(hash, expireTime));
+        } else {
+            getJedisCluster().hset(key, hash);
+        }
+    }
+
+    @Override
+    public void hdel(byte[] key, byte[]... fields) {
+        if (key == null || fields == null || fields.length == 0) {
+            return;
+        }
+        getJedisCluster().hdel(key, fields);
+    }
+
+    @Override
+    public void zadd(byte[] key, double score, byte[] member) {
+        if (key == null) {
+            return;
+        }
+        getJedisCluster().zadd(key, score, member);
+    }
+
+    @Override
+    public void zrem(byte[] key, byte[]... members) {
+        if (key == null || members == null || members.length == 0) {
+            return;
+        }
+        getJedisCluster().zrem(key, members);
+    }
+
+    @Override
+    public long zcount(byte[] key, double min, double max) {
+        if (key == null) {
+            return 0L;
+        }
+        Long number = getJedisCluster().zcount(key, min, max);
+        return number == null ? 0L : number;
+    }
+
+    @Override
+    public List<byte[]> zrangeByScore(byte[] key, double min, double max, int offset, int limit) {
+        if (key == null) {
+            return new ArrayList<byte[]>();
+        }
+        return new ArrayList<byte[]>(getJedisCluster().zrangeByScore(key, min, max, offset, limit));
+    }
+
+    @Override
+    public long zremrangeByScore(byte[] key, double min, double max) {
+        if (key == null) {
+            return 0L;
+        }
+        Long removed = getJedisCluster().zremrangeByScore(key, min, max);
+        return removed == null ? 0L : removed;
+    }
+
     @Override
     public Long dbSize(byte[] pattern) {
         long dbSize = 0L;
@@ -124,6 +321,264 @@ public class RedisClusterManager implements IRedisManager {
         return keys;
     }
 
+    /**
+     * Scan keys of every master node page by page. Replicas are skipped, so that every key is returned once.
+     * @param pattern key pattern
+     * @return iterator of key pages
+     */
+    @Override
+    public Iterator<List<byte[]>> scan(final byte[] pattern) {
+        final Iterator<JedisPool> nodeIt = new ArrayList<JedisPool>(getJedisCluster().getClusterNodes().values()).iterator();
+        final ScanParams params = new ScanParams();
+        params.count(count);
+        params.match(pattern);
+        return new KeyPageIterator() {
+            private JedisPool node;
+            private byte[] cursor;
+
+            @Override
+            protected List<byte[]> scanPage() {
+                if (node == null) {
+                    node = nextMasterNode(nodeIt);
+                    if (node == null) {
+                        finish();
+                        return null;
+                    }
+                    cursor = ScanParams.SCAN_POINTER_START_BINARY;
+                }
+                ScanResult<byte[]> scanResult;
+                Jedis jedis = node.getResource();
+                try {
+                    scanResult = jedis.scan(cursor, params);
+                } finally {
+                    jedis.close();
+                }
+                cursor = scanResult.getCursorAsBytes();
+                if (scanResult.getCursor().compareTo(ScanParams.SCAN_POINTER_START) <= 0) {
+                    node = null;
+                }
+                return scanResult.getResult();
+            }
+        };
+    }
+
+    private JedisPool nextMasterNode(Iterator<JedisPool> nodeIt) {
+        while (nodeIt.hasNext()) {
+            JedisPool jedisPool = nodeIt.next();
+            if (isMasterNode(jedisPool)) {
+                return jedisPool;
+            }
+        }
+        return null;
+    }
+
+    private boolean isMasterNode(JedisPool jedisPool) {
+        Jedis jedis = jedisPool.getResource();
+        try {
+            return jedis.info("replication").contains("role:master");
+        } finally {
+            jedis.close();
+        }
+    }
+
+    @Override
+    public void publish(byte[] channel, byte[] message) {
+        if (channel == null) {
+            return;
+        }
+        getJedisCluster().publish(channel, message);
+    }
+
+    /**
+     * Subscribe channels on every master node. Every node subscription holds a connection of the node until it's closed.
+     * @param listener listener of messages
+     * @param channels channels
+     * @return subscription
+     */
+    @Override
+    public RedisSubscription subscribe(RedisMessageListener listener, byte[]... channels) {
+        ClusterSubscription subscription = new ClusterSubscription(listener, channels);
+        subscription.start();
+        return subscription;
+    }
+
+    /**
+     * Subscriptions of all master nodes.
+     * Master nodes are checked again every SUBSCRIPTION_REFRESH_INTERVAL seconds, so that a replica promoted by failover is subscribed as well.
+     */
+    private class ClusterSubscription implements RedisSubscription, Runnable {
+
+        private final RedisMessageListener listener;
+
+        private final byte[][] channels;
+
+        private final Map<String, JedisSubscription> nodeSubscriptions = new HashMap<String, JedisSubscription>();
+
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, SUBSCRIPTION_THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        ClusterSubscription(RedisMessageListener listener, byte[][] channels) {
+            this.listener = listener;
+            this.channels = channels;
+        }
+
+        void start() {
+            scheduler.scheduleWithFixedDelay(this, 0, SUBSCRIPTION_REFRESH_INTERVAL, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Errors are logged instead of thrown, because scheduleWithFixedDelay never runs a task again after it has thrown.
+         */
+        @Override
+        public synchronized void run() {
+            try {
+                refresh();
+            } catch (RuntimeException e) {
+                logger.warn("refresh cluster subscription error. master nodes are checked again later.", e);
+            }
+        }
+
+        private void refresh() {
+            Set<String> masterNodes = new HashSet<String>();
+            for (Map.Entry<String, JedisPool> node : getJedisCluster().getClusterNodes().entrySet()) {
+                try {
+                    if (!isMasterNode(node.getValue())) {
+                        continue;
+                    }
+                } catch (RuntimeException e) {
+                    logger.warn("check role of node " + node.getKey() + " error.", e);
+                    continue;
+                }
+                masterNodes.add(node.getKey());
+                if (!nodeSubscriptions.containsKey(node.getKey())) {
+                    JedisSubscription nodeSubscription = new JedisSubscription(node.getValue()::getResource, listener, channels,
+                            SUBSCRIPTION_THREAD_NAME + "-" + node.getKey());
+                    nodeSubscription.start();
+                    nodeSubscriptions.put(node.getKey(), nodeSubscription);
+                }
+            }
+            Iterator<Map.Entry<String, JedisSubscription>> it = nodeSubscriptions.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, JedisSubscription> nodeSubscription = it.next();
+                if (!masterNodes.contains(nodeSubscription.getKey())) {
+                    nodeSubscription.getValue().close();
+                    it.remove();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            scheduler.shutdownNow();
+            for (JedisSubscription nodeSubscription : nodeSubscriptions.values()) {
+                nodeSubscription.close();
+            }
+            nodeSubscriptions.clear();
+        }
+    }
+
+    /**
+     * Get values of multiple keys. Keys are grouped by the node which serves them, and GETs of every node are sent in one pipeline.
+     * @param keys keys
+     * @return values
+     */
+    @Override
+    public List<byte[]> mget(byte[]... keys) {
+        return pipelineByNode(keys, (pipeline, key) -> pipeline.get(key), key -> getJedisCluster().get(key));
+    }
+
+    @Override
+    public void mdel(byte[]... keys) {
+        if (keys == null || keys.length == 0) {
+            return;
+        }
+        pipelineByNode(keys, (pipeline, key) -> pipeline.del(key), key -> getJedisCluster().del(key));
+    }
+
+    /**
+     * Get time to live of multiple keys. Keys are grouped by the node which serves them, and PTTLs of every node are sent in one pipeline.
+     * @param keys keys
+     * @return time to live in milliseconds
+     */
+    @Override
+    public List<Long> pttl(byte[]... keys) {
+        return pipelineByNode(keys, (pipeline, key) -> pipeline.pttl(key), key -> getJedisCluster().pttl(key));
+    }
+
+    /**
+     * Send a single-key command for every key. Commands of the keys served by the same node are sent in one pipeline.
+     * Keys moved during resharding are sent again by JedisCluster.
+     * @param keys keys
+     * @param command command in pipeline
+     * @param fallback command sent by JedisCluster
+     * @param <T> result type
+     * @return results in the same order as keys
+     */
+    @SuppressWarnings("unchecked")
+    private <T> List<T> pipelineByNode(byte[][] keys, BiFunction<Pipeline, byte[], Response<T>> command, Function<byte[], T> fallback) {
+        List<T> results = new ArrayList<T>();
+        if (keys == null || keys.length == 0) {
+            return results;
+        }
+        Map<Integer, String> slotNodes = new HashMap<Integer, String>();
+        Map<String, List<Integer>> nodeIndexes = new LinkedHashMap<String, List<Integer>>();
+        Map<String, Integer> nodeSlots = new HashMap<String, Integer>();
+        for (int i = 0; i < keys.length; i++) {
+            int slot = JedisClusterCRC16.getSlot(keys[i]);
+            String node = slotNodes.get(slot);
+            if (node == null) {
+                node = getNodeOfSlot(slot);
+                slotNodes.put(slot, node);
+            }
+            List<Integer> indexes = nodeIndexes.get(node);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                nodeIndexes.put(node, indexes);
+                nodeSlots.put(node, slot);
+            }
+            indexes.add(i);
+        }
+        Object[] values = new Object[keys.length];
+        for (Map.Entry<String, List<Integer>> entry : nodeIndexes.entrySet()) {
+            List<Integer> indexes = entry.getValue();
+            List<Response<T>> responses = new ArrayList<Response<T>>(indexes.size());
+            Jedis jedis = getJedisCluster().getConnectionFromSlot(nodeSlots.get(entry.getKey()));
+            try {
+                Pipeline pipeline = jedis.pipelined();
+                for (Integer index : indexes) {
+                    responses.add(command.apply(pipeline, keys[index]));
+                }
+                pipeline.sync();
+            } finally {
+                jedis.close();
+            }
+            for (int i = 0; i < indexes.size(); i++) {
+                int index = indexes.get(i);
+                try {
+                    values[index] = responses.get(i).get();
+                } catch (JedisDataException e) {
+                    values[index] = fallback.apply(keys[index]);
+                }
+            }
+        }
+        for (Object value : values) {
+            results.add((T) value);
+        }
+        return results;
+    }
+
+    private String getNodeOfSlot(int slot) {
+        Jedis jedis = getJedisCluster().getConnectionFromSlot(slot);
+        try {
+            return jedis.getClient().getHost() + ":" + jedis.getClient().getPort();
+        } finally {
+            jedis.close();
+        }
+    }
+
     private Set<byte[]> getKeysFromClusterNode(JedisPool jedisPool, byte[] pattern) {
         Set<byte[]> keys = new HashSet<byte[]>();
         Jedis jedis = jedisPool.getResource();
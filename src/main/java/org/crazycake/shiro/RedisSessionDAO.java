@@ -2,8 +2,28 @@ package org.crazycake.shiro;
 
 import org.apache.shiro.session.Session;
 import org.apache.shiro.session.UnknownSessionException;
+import org.apache.shiro.session.mgt.SimpleSession;
 import org.apache.shiro.session.mgt.eis.AbstractSessionDAO;
-import org.crazycake.shiro.common.SessionInMemory;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.apache.shiro.util.Destroyable;
+import org.crazycake.shiro.common.FieldPrincipalKeyResolver;
+import org.crazycake.shiro.common.Fingerprint;
+import org.crazycake.shiro.common.KeyPageIterator;
+import org.crazycake.shiro.common.LazyAttributes;
+import org.crazycake.shiro.common.OffloadedAttribute;
+import org.crazycake.shiro.common.PagedCollection;
+import org.crazycake.shiro.common.PrincipalIndex;
+import org.crazycake.shiro.common.PrincipalKeyResolver;
+import org.crazycake.shiro.common.SessionHashCodec;
+import org.crazycake.shiro.common.SessionKeyEncoder;
+import org.crazycake.shiro.common.SessionNearCache;
+import org.crazycake.shiro.common.SessionsInMemory;
+import org.crazycake.shiro.common.TrackedSession;
+import org.crazycake.shiro.common.UnknownSessionIds;
+import org.crazycake.shiro.common.VersionedValue;
+import org.crazycake.shiro.common.WeakIdentityMap;
+import org.crazycake.shiro.common.WriteBehindQueue;
 import org.crazycake.shiro.exception.SerializationException;
 import org.crazycake.shiro.serializer.ObjectSerializer;
 import org.crazycake.shiro.serializer.RedisSerializer;
@@ -13,17 +33,36 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Used for setting/getting authentication information from Redis
  */
-public class RedisSessionDAO extends AbstractSessionDAO {
+public class RedisSessionDAO extends AbstractSessionDAO implements Destroyable {
 
 	private static Logger logger = LoggerFactory.getLogger(RedisSessionDAO.class);
 
 	private static final String DEFAULT_SESSION_KEY_PREFIX = "shiro:session:";
 	private String keyPrefix = DEFAULT_SESSION_KEY_PREFIX;
 
+	/**
+	 * Session ids generated by Shiro are UUIDs, which take 36 bytes of every session key as text.
+	 * If compactKeysEnabled is true, session keys of UUID session ids are compactKeyPrefix followed by the 16 bytes of the UUID,
+	 * without keySerializer. Session keys of other session ids are still keyPrefix + session id.
+	 * Session keys are encoded by SessionKeyEncoder, which caches the last key of every thread.
+	 *
+	 * NOTE: Sessions saved before it's enabled can't be read any more, and vice versa.
+	 * Without sessionIndexEnabled, keys are scanned by both compactKeyPrefix and keyPrefix, so sessions of any id are found.
+	 * compactKeyPrefix must not be the beginning of keyPrefix, and must not contain characters which are special in Redis patterns.
+	 */
+	private static final boolean DEFAULT_COMPACT_KEYS_ENABLED = false;
+	private boolean compactKeysEnabled = DEFAULT_COMPACT_KEYS_ENABLED;
+
+	private static final String DEFAULT_COMPACT_KEY_PREFIX = "shiro:s:";
+	private String compactKeyPrefix = DEFAULT_COMPACT_KEY_PREFIX;
+
+	private volatile SessionKeyEncoder sessionKeyEncoder;
+
 	/**
 	 * doReadSession be called about 10 times when login.
 	 * Save Session in ThreadLocal to resolve this problem. sessionInMemoryTimeout is expiration of Session in ThreadLocal.
@@ -40,6 +79,36 @@ public class RedisSessionDAO extends AbstractSessionDAO {
 
 	private static ThreadLocal sessionsInThread = new ThreadLocal();
 
+	/**
+	 * Besides ThreadLocal, sessions can be kept in a bounded near cache which is shared by all threads.
+	 * A session in near cache is only used after its version is checked against Redis by a GETRANGE of a few bytes,
+	 * so a session is fetched and deserialized again only when it has been changed. A hit still costs that round trip.
+	 * Each read gets its own copy of the cached session. Sessions are saved with a version header while near cache is enabled.
+	 *
+	 * Near cache only works when sessionInMemoryEnabled is true as well.
+	 */
+	private static final boolean DEFAULT_SESSION_NEAR_CACHE_ENABLED = false;
+	private boolean sessionNearCacheEnabled = DEFAULT_SESSION_NEAR_CACHE_ENABLED;
+
+	private static final int DEFAULT_SESSION_NEAR_CACHE_MAX_SIZE = 1000;
+	private SessionNearCache sessionNearCache = new SessionNearCache(DEFAULT_SESSION_NEAR_CACHE_MAX_SIZE);
+
+	/**
+	 * Requests with expired or forged session ids cost a Redis call each.
+	 * If unknownSessionCacheEnabled is true, session ids which are not found in Redis, or deleted by this SessionDAO,
+	 * are remembered for unknownSessionCacheTimeout milliseconds in a bounded cache shared by all threads,
+	 * and reading them again doesn't call Redis.
+	 * Session ids are generated randomly, so an unknown id won't be used by a new session created by another application instance.
+	 * With write-behind, such a session reaches Redis up to writeBehindMaxDelay later,
+	 * so an id not found in Redis is only remembered as unknown after writeBehindMaxDelay.
+	 */
+	private static final boolean DEFAULT_UNKNOWN_SESSION_CACHE_ENABLED = false;
+	private boolean unknownSessionCacheEnabled = DEFAULT_UNKNOWN_SESSION_CACHE_ENABLED;
+
+	private static final int DEFAULT_UNKNOWN_SESSION_CACHE_MAX_SIZE = 10000;
+	private static final long DEFAULT_UNKNOWN_SESSION_CACHE_TIMEOUT = 60000L;
+	private UnknownSessionIds unknownSessionIds = new UnknownSessionIds(DEFAULT_UNKNOWN_SESSION_CACHE_MAX_SIZE, DEFAULT_UNKNOWN_SESSION_CACHE_TIMEOUT);
+
 	/**
 	 * expire time in seconds.
 	 * NOTE: Please make sure expire is longer than session.getTimeout(),
@@ -54,113 +123,1362 @@ public class RedisSessionDAO extends AbstractSessionDAO {
 
 	private static final int MILLISECONDS_IN_A_SECOND = 1000;
 
+	/**
+	 * PTTL of a key which has no expire time
+	 */
+	private static final long TTL_NO_EXPIRE = -1L;
+
+	/**
+	 * Save session as a Redis hash instead of a serialized value.
+	 * Core properties of session and every attribute are saved in their own fields,
+	 * so that update() only writes the fields which have been changed since the session was read, and refreshes the expire time.
+	 * Only SimpleSession, the default session of Shiro, can be saved as hash.
+	 *
+	 * NOTE: Sessions saved as hash can't be read when hashStorageEnabled is false, and vice versa.
+	 */
+	private static final boolean DEFAULT_HASH_STORAGE_ENABLED = false;
+	private boolean hashStorageEnabled = DEFAULT_HASH_STORAGE_ENABLED;
+
+	/**
+	 * Fingerprints of the hash fields written for sessions which are not TrackedSession, e.g. sessions created by this process,
+	 * so that updating them again doesn't read field names from Redis and rewrite every field.
+	 * Sessions are weakly referenced, and forgotten once they are not used any more. They are compared by identity,
+	 * because another instance of the same session, e.g. a copy in near cache, hasn't written these fields.
+	 */
+	private final WeakIdentityMap<Session, Map<String, Long>> untrackedStoredFields = new WeakIdentityMap<Session, Map<String, Long>>();
+
+	/**
+	 * Only works when hashStorageEnabled is true.
+	 * If lazyAttributesEnabled is true, attributes of a session read from Redis are kept serialized until they are got,
+	 * and attributes which have never been got are saved without being serialized again (see LazyAttributes).
+	 * An attribute which can't be deserialized is logged and got as null, instead of failing the whole session.
+	 */
+	private static final boolean DEFAULT_LAZY_ATTRIBUTES_ENABLED = false;
+	private boolean lazyAttributesEnabled = DEFAULT_LAZY_ATTRIBUTES_ENABLED;
+
+	/**
+	 * A session is stored as one value, so one big attribute makes every read and write of its session expensive.
+	 * If attributeOffloadThreshold is positive, an attribute which is serialized to at least attributeOffloadThreshold bytes
+	 * is stored under its own key (attributeKeyPrefix + session id + ":" + attribute name) with the same expire time as the session,
+	 * and the session only keeps a reference to it (see OffloadedAttribute).
+	 * An offloaded attribute is read from Redis only when it's got, and written only when it's changed.
+	 *
+	 * It works for SimpleSession, the default session of Shiro.
+	 * Sessions saved as hash (see hashStorageEnabled) save every attribute in its own field already, so it's not used for them.
+	 * NOTE: Sessions with offloaded attributes can't be read by older versions of shiro-redis.
+	 */
+	private static final int DEFAULT_ATTRIBUTE_OFFLOAD_THRESHOLD = 0;
+	private int attributeOffloadThreshold = DEFAULT_ATTRIBUTE_OFFLOAD_THRESHOLD;
+
+	private static final String DEFAULT_ATTRIBUTE_KEY_PREFIX = "shiro:session_attribute:";
+	private String attributeKeyPrefix = DEFAULT_ATTRIBUTE_KEY_PREFIX;
+
+	/**
+	 * Most update() calls only change lastAccessTime of session.
+	 * If touchInterval is positive, lastAccessTime is written at most once every touchInterval seconds unless something else
+	 * of the session has been changed too. Within touchInterval, update() only refreshes the expire time,
+	 * or doesn't call Redis at all if touchRefreshExpire is false.
+	 * lastAccessTime in Redis can be up to touchInterval seconds behind, so keep it much shorter than session timeout.
+	 *
+	 * It works for sessions read by RedisSessionDAO, which must be SimpleSession.
+	 * NOTE: Without hashStorageEnabled, changes made inside an attribute object are only saved with the next write of lastAccessTime,
+	 * unless setAttribute is called again.
+	 */
+	private static final int DEFAULT_TOUCH_INTERVAL = 0;
+	private int touchInterval = DEFAULT_TOUCH_INTERVAL;
+
+	private static final boolean DEFAULT_TOUCH_REFRESH_EXPIRE = true;
+	private boolean touchRefreshExpire = DEFAULT_TOUCH_REFRESH_EXPIRE;
+
+	/**
+	 * Concurrent requests of the same session overwrite each other's changes when they save the whole session.
+	 * If compareAndSetEnabled is true, sessions are saved with a version header, and update() only writes a session
+	 * if it has the same version in Redis as when it was read, which is checked atomically by a Lua script.
+	 * Otherwise attributes changed by this request are merged into the latest session in Redis, and it's written again.
+	 * After COMPARE_AND_SET_MAX_ATTEMPTS conflicts, the session is overwritten as usual.
+	 *
+	 * It works for sessions read by RedisSessionDAO, which must be SimpleSession.
+	 * Sessions saved as hash (see hashStorageEnabled) only write changed fields, so it's not used for them.
+	 */
+	private static final boolean DEFAULT_COMPARE_AND_SET_ENABLED = false;
+	private boolean compareAndSetEnabled = DEFAULT_COMPARE_AND_SET_ENABLED;
+
+	private static final int COMPARE_AND_SET_MAX_ATTEMPTS = 3;
+
+	/**
+	 * Sessions are often marked as changed without any real change, e.g. an attribute is set to the same value again.
+	 * If dirtyCheckEnabled is true, the fingerprint (64-bit hash) of the serialized session is remembered when it's read or written,
+	 * and update() doesn't write the session if it's serialized to the same bytes. The expire time is refreshed instead,
+	 * in the same way as writing lastAccessTime is skipped because of touchInterval.
+	 * Within touchInterval, the session is compared with the lastAccessTime stored in Redis.
+	 *
+	 * It works for sessions read by RedisSessionDAO, which must be SimpleSession.
+	 * Sessions saved as hash (see hashStorageEnabled) always compare every field, so it's not used for them.
+	 */
+	private static final boolean DEFAULT_DIRTY_CHECK_ENABLED = false;
+	private boolean dirtyCheckEnabled = DEFAULT_DIRTY_CHECK_ENABLED;
+
+	/**
+	 * If writeBehindEnabled is true, create(), update() and delete() don't wait for Redis. Sessions are serialized by the caller,
+	 * and the writes are queued and run by writeBehindWriterCount writer threads. Writes of the same session keep their order,
+	 * and a session waits at most writeBehindMaxDelay milliseconds before it's written. When a writer has writeBehindQueueSize writes waiting,
+	 * callers are blocked until they are written. Failed writes are logged and counted by WriteBehindQueue.
+	 * readSession() writes the waiting writes of the session first, so this application always reads its own writes.
+	 * Other application instances (and getActiveSessions()) see writes up to writeBehindMaxDelay milliseconds later.
+	 * Waiting writes are written by destroy().
+	 *
+	 * It's not used when compareAndSetEnabled is true, which needs the result of every write.
+	 */
+	private static final boolean DEFAULT_WRITE_BEHIND_ENABLED = false;
+	private boolean writeBehindEnabled = DEFAULT_WRITE_BEHIND_ENABLED;
+
+	private static final int DEFAULT_WRITE_BEHIND_WRITER_COUNT = 2;
+	private int writeBehindWriterCount = DEFAULT_WRITE_BEHIND_WRITER_COUNT;
+
+	private static final int DEFAULT_WRITE_BEHIND_QUEUE_SIZE = 10000;
+	private int writeBehindQueueSize = DEFAULT_WRITE_BEHIND_QUEUE_SIZE;
+
+	private static final long DEFAULT_WRITE_BEHIND_MAX_DELAY = 100L;
+	private long writeBehindMaxDelay = DEFAULT_WRITE_BEHIND_MAX_DELAY;
+
+	private static final String WRITE_BEHIND_THREAD_NAME_PREFIX = "shiro-redis-write-behind-";
+
+	private volatile WriteBehindQueue writeBehindQueue;
+
+	/**
+	 * Keep an index of sessions in a Redis sorted set. Members are session keys and scores are the time (in milliseconds) when they expire.
+	 * With the index, getActiveSessions(), getActiveSessions(offset, limit) and getActiveSessionCount() don't scan keys any more.
+	 * Ordered by expire time, sessions are ordered by last access time as well, as long as they have the same timeout.
+	 * Expired members are removed by removeExpiredSessionIndex(), which is called by getActiveSessions().
+	 *
+	 * NOTE: Sessions saved before the index is enabled are not in the index until they are updated.
+	 */
+	private static final boolean DEFAULT_SESSION_INDEX_ENABLED = false;
+	private boolean sessionIndexEnabled = DEFAULT_SESSION_INDEX_ENABLED;
+
+	private static final String DEFAULT_SESSION_INDEX_KEY = "shiro:session_index";
+	private String sessionIndexKey = DEFAULT_SESSION_INDEX_KEY;
+
+	private static final int SESSION_INDEX_PAGE_SIZE = 100;
+
+	/**
+	 * Keep an index of sessions for every authenticated principal, so that sessions of a principal can be listed, counted and deleted
+	 * without scanning keys. Every index is a Redis sorted set whose members are session keys and scores are the time when they expire.
+	 * The principal is identified in the same way as RedisCache does: if the primary principal is a String, it's the id itself,
+	 * otherwise the id is got by the getter of principalIdFieldName. Set principalKeyResolver to resolve the id in another way.
+	 */
+	private static final boolean DEFAULT_PRINCIPAL_INDEX_ENABLED = false;
+	private boolean principalIndexEnabled = DEFAULT_PRINCIPAL_INDEX_ENABLED;
+
+	private static final String DEFAULT_PRINCIPAL_INDEX_KEY_PREFIX = "shiro:principal_sessions:";
+	private String principalIndexKeyPrefix = DEFAULT_PRINCIPAL_INDEX_KEY_PREFIX;
+
+	/**
+	 * The principal id a session is indexed by is saved at sessionPrincipalKeyPrefix + session id,
+	 * so that the session can be removed from the principal index after its principal is gone, e.g. by logout.
+	 */
+	private static final String DEFAULT_SESSION_PRINCIPAL_KEY_PREFIX = "shiro:session_principal:";
+	private String sessionPrincipalKeyPrefix = DEFAULT_SESSION_PRINCIPAL_KEY_PREFIX;
+
+	private volatile PrincipalIndex principalIndex;
+
+	private String principalIdFieldName = RedisCacheManager.DEFAULT_PRINCIPAL_ID_FIELD_NAME;
+
+	private PrincipalKeyResolver principalKeyResolver;
+
+	private volatile FieldPrincipalKeyResolver fieldPrincipalKeyResolver;
+
 	/**
 	 * redisManager used for communicate with Redis
 	 */
 	private IRedisManager redisManager;
 
 	/**
-	 * Serializer of key
+	 * Serializer of key
+	 */
+	private RedisSerializer keySerializer = new StringSerializer();
+
+	/**
+	 * Serializer of value
+	 */
+	private RedisSerializer valueSerializer = new ObjectSerializer();
+
+	/**
+	 * save/update session
+	 * @param session
+	 * @throws UnknownSessionException
+	 */
+	@Override
+	public void update(Session session) throws UnknownSessionException {
+		if (this.sessionInMemoryEnabled) {
+			this.removeExpiredSessionInMemory();
+		}
+		this.saveSession(session, false);
+		if (this.sessionInMemoryEnabled) {
+			this.setSessionToThreadLocal(session.getId(), session);
+		}
+	}
+
+	/**
+	 * save session
+	 * @param session
+	 * @param isNew whether session has just been created
+	 * @throws UnknownSessionException
+	 */
+	private void saveSession(Session session, boolean isNew) throws UnknownSessionException {
+		if (session == null || session.getId() == null) {
+			logger.error("session or session id is null");
+			throw new UnknownSessionException("session or session id is null");
+		}
+		if (hashStorageEnabled) {
+			saveSessionHash(session, isNew);
+			return;
+		}
+		byte[] key;
+		byte[] value;
+		final Map<Object, byte[]> attributeValues = new HashMap<Object, byte[]>();
+		final Map<Object, OffloadedAttribute> offloadedAttributes = new HashMap<Object, OffloadedAttribute>();
+		try {
+			key = getSessionKey(session.getId());
+			if (session instanceof TrackedSession && !((TrackedSession) session).isChanged() && isWithinTouchInterval(session)) {
+				logger.debug("only lastAccessTime has been changed, skip writing session. session id=" + session.getId());
+				touchSession(session, key);
+				return;
+			}
+			if (!isNew && isSameAsStored(session)) {
+				logger.debug("session has not been changed, skip writing session. session id=" + session.getId());
+				touchSession(session, key);
+				return;
+			}
+			value = serializeSession(session, attributeValues, offloadedAttributes);
+		} catch (SerializationException e) {
+			logger.error("serialize session error. session id=" + session.getId());
+			throw new UnknownSessionException(e);
+		}
+		if (!isNew && dirtyCheckEnabled && session instanceof TrackedSession
+				&& Long.valueOf(Fingerprint.of(value)).equals(((TrackedSession) session).getStoredFingerprint())) {
+			logger.debug("session has not been changed, skip writing session. session id=" + session.getId());
+			touchSession(session, key);
+			return;
+		}
+		int redisExpire = getRedisExpire(session);
+		long version = VersionedValue.NO_VERSION;
+		if (compareAndSetEnabled && !isNew && session instanceof TrackedSession
+				&& ((TrackedSession) session).getStoredVersion() != VersionedValue.NO_VERSION) {
+			try {
+				writeOffloadedAttributes(offloadedAttributes, attributeValues, redisExpire);
+				value = compareAndSetSession((TrackedSession) session, key, value, redisExpire, offloadedAttributes);
+				if (value == null) {
+					return;
+				}
+				version = ((TrackedSession) session).getStoredVersion();
+			} catch (SerializationException e) {
+				logger.error("merge session error. session id=" + session.getId());
+				throw new UnknownSessionException(e);
+			}
+			deleteOffloadedAttributes(getStoredOffloadedAttributes(session), offloadedAttributes);
+			String principalId = getIndexedPrincipalId(session);
+			indexSession(key, session.getId(), principalId, getKnownStoredPrincipalId(session), redisExpire, false);
+			setStoredPrincipalId(session, principalId);
+		} else {
+			if (isSessionNearCacheInUse() || compareAndSetEnabled) {
+				version = VersionedValue.newVersion();
+			}
+			final byte[] data = version == VersionedValue.NO_VERSION ? value : VersionedValue.wrap(version, value);
+			final Map<Object, OffloadedAttribute> storedAttributes = getStoredOffloadedAttributes(session);
+			// offloaded attributes are remembered as stored right away, so a write which sets them must not be dropped by later writes
+			writeSession(session, key, redisExpire, true, attributeValues.isEmpty(), false, () -> {
+				writeOffloadedAttributes(offloadedAttributes, attributeValues, redisExpire);
+				redisManager.set(key, data, redisExpire);
+				deleteOffloadedAttributes(storedAttributes, offloadedAttributes);
+			});
+		}
+		if (isSessionNearCacheInUse()) {
+			sessionNearCache.put(session.getId(), session, version);
+		}
+		if (session instanceof TrackedSession) {
+			loadOffloadedAttributes(session);
+			((TrackedSession) session).setStoredOffloadedAttributes(offloadedAttributes);
+			((TrackedSession) session).setStoredVersion(version);
+			((TrackedSession) session).setStoredLastAccessTime(session.getLastAccessTime());
+			((TrackedSession) session).setChanged(false);
+			if (dirtyCheckEnabled) {
+				((TrackedSession) session).setStoredFingerprint(Fingerprint.of(value));
+			}
+		}
+	}
+
+	/**
+	 * Within touchInterval, lastAccessTime doesn't need to be written. Serialize the session with lastAccessTime stored in Redis,
+	 * and check whether it's the same as the stored one.
+	 * @param session
+	 * @return
+	 * @throws SerializationException
+	 */
+	private boolean isSameAsStored(Session session) throws SerializationException {
+		if (!dirtyCheckEnabled || !isWithinTouchInterval(session) || ((TrackedSession) session).getStoredFingerprint() == null) {
+			return false;
+		}
+		TrackedSession trackedSession = (TrackedSession) session;
+		Date lastAccessTime = trackedSession.getLastAccessTime();
+		trackedSession.setLastAccessTime(trackedSession.getStoredLastAccessTime());
+		try {
+			return Fingerprint.of(serializeSession(trackedSession, null, null)) == trackedSession.getStoredFingerprint();
+		} finally {
+			trackedSession.setLastAccessTime(lastAccessTime);
+		}
+	}
+
+	/**
+	 * Write session only if its version in Redis is still the version it was read with.
+	 * Otherwise merge it with the latest session in Redis and try again.
+	 * The version written is saved as stored version of the session.
+	 * @param session
+	 * @param key
+	 * @param value
+	 * @param redisExpire
+	 * @param offloadedAttributes offloaded attributes of the session, which are replaced by those of the merged session
+	 * @return serialized session which has been written, or null if session has been deleted from Redis
+	 * @throws SerializationException
+	 */
+	private byte[] compareAndSetSession(TrackedSession session, byte[] key, byte[] value, int redisExpire,
+			Map<Object, OffloadedAttribute> offloadedAttributes) throws SerializationException {
+		byte[] payload = value;
+		long storedVersion = session.getStoredVersion();
+		for (int i = 0; i < COMPARE_AND_SET_MAX_ATTEMPTS; i++) {
+			long version = VersionedValue.newVersion();
+			if (redisManager.compareAndSet(key, VersionedValue.header(storedVersion), VersionedValue.wrap(version, payload), redisExpire)) {
+				session.setStoredVersion(version);
+				return payload;
+			}
+			byte[] latestValue = redisManager.get(key);
+			if (latestValue == null) {
+				logger.debug("session has been deleted, skip writing session. session id=" + session.getId());
+				return null;
+			}
+			Object latest = valueSerializer.deserialize(VersionedValue.unwrap(latestValue));
+			if (!(latest instanceof SimpleSession)) {
+				break;
+			}
+			logger.debug("session has been changed by others, merge it. session id=" + session.getId());
+			session.rebase((SimpleSession) latest);
+			storedVersion = VersionedValue.getVersion(latestValue);
+			Map<Object, byte[]> attributeValues = new HashMap<Object, byte[]>();
+			offloadedAttributes.clear();
+			payload = serializeSession(session, attributeValues, offloadedAttributes);
+			writeOffloadedAttributes(offloadedAttributes, attributeValues, redisExpire);
+			if (storedVersion == VersionedValue.NO_VERSION) {
+				break;
+			}
+		}
+		logger.warn("session can't be compared and set, overwrite it. session id=" + session.getId());
+		long version = VersionedValue.newVersion();
+		redisManager.set(key, VersionedValue.wrap(version, payload), redisExpire);
+		session.setStoredVersion(version);
+		return payload;
+	}
+
+	/**
+	 * Whether lastAccessTime in Redis is less than touchInterval behind
+	 * @param session
+	 * @return
+	 */
+	private boolean isWithinTouchInterval(Session session) {
+		if (touchInterval <= 0 || !(session instanceof TrackedSession)) {
+			return false;
+		}
+		Date storedLastAccessTime = ((TrackedSession) session).getStoredLastAccessTime();
+		Date lastAccessTime = session.getLastAccessTime();
+		if (storedLastAccessTime == null || lastAccessTime == null) {
+			return false;
+		}
+		return lastAccessTime.getTime() - storedLastAccessTime.getTime() < (long) touchInterval * MILLISECONDS_IN_A_SECOND;
+	}
+
+	/**
+	 * Handle an update which only changes lastAccessTime within touchInterval
+	 * @param session
+	 * @param key
+	 */
+	private void touchSession(Session session, final byte[] key) {
+		if (touchRefreshExpire) {
+			final int redisExpire = getRedisExpire(session);
+			final Map<Object, OffloadedAttribute> storedAttributes = getStoredOffloadedAttributes(session);
+			refreshSession(session, key, redisExpire, () -> {
+				redisManager.expire(key, redisExpire);
+				writeOffloadedAttributes(storedAttributes, Collections.<Object, byte[]>emptyMap(), redisExpire);
+			});
+		}
+	}
+
+	/**
+	 * Serialize session. With attributeOffloadThreshold, big attributes are replaced by references to their own keys.
+	 * @param session
+	 * @param attributeValues serialized attributes which need to be written to their own keys, by attribute name. It can be null.
+	 * @param offloadedAttributes all offloaded attributes of the session, by attribute name. It can be null.
+	 * @return
+	 * @throws SerializationException
+	 */
+	private byte[] serializeSession(Session session, Map<Object, byte[]> attributeValues, Map<Object, OffloadedAttribute> offloadedAttributes)
+			throws SerializationException {
+		if (!isAttributeOffloadInUse() || !(session instanceof SimpleSession) || ((SimpleSession) session).getAttributes() == null) {
+			return valueSerializer.serialize(session);
+		}
+		Map<Object, Object> attributes = ((SimpleSession) session).getAttributes();
+		Map<Object, OffloadedAttribute> storedAttributes = getStoredOffloadedAttributes(session);
+		Map<Object, Object> storedValues = new HashMap<Object, Object>();
+		for (Object name : attributes.keySet()) {
+			OffloadedAttribute attribute = getOffloadedAttribute(attributes, name);
+			if (attribute == null) {
+				Object value = attributes.get(name);
+				byte[] bytes = valueSerializer.serialize(value);
+				if (bytes == null || bytes.length < attributeOffloadThreshold) {
+					storedValues.put(name, value);
+					continue;
+				}
+				long fingerprint = Fingerprint.of(bytes);
+				attribute = storedAttributes.get(name);
+				if (attribute == null || attribute.getFingerprint() != fingerprint) {
+					attribute = new OffloadedAttribute(keySerializer.serialize(getAttributeKey(session.getId(), name)), fingerprint);
+					if (attributeValues != null) {
+						attributeValues.put(name, bytes);
+					}
+				}
+			}
+			storedValues.put(name, attribute);
+			if (offloadedAttributes != null) {
+				offloadedAttributes.put(name, attribute);
+			}
+		}
+		return valueSerializer.serialize(TrackedSession.copyOf((SimpleSession) session, storedValues));
+	}
+
+	/**
+	 * Get an attribute which is still a reference to its own key
+	 * @param attributes
+	 * @param name
+	 * @return offloaded attribute, or null if the attribute is not offloaded or has been got
+	 */
+	private OffloadedAttribute getOffloadedAttribute(Map<Object, Object> attributes, Object name) {
+		if (attributes instanceof LazyAttributes) {
+			return ((LazyAttributes) attributes).getOffloaded(name);
+		}
+		// attributes merged by compare-and-set are references
+		Object value = attributes.get(name);
+		return value instanceof OffloadedAttribute ? (OffloadedAttribute) value : null;
+	}
+
+	/**
+	 * Replace references of offloaded attributes in a session read from Redis by LazyAttributes, which reads them when they are got.
+	 * @param session
+	 */
+	private void loadOffloadedAttributes(Session session) {
+		if (!isAttributeOffloadInUse() || !(session instanceof SimpleSession)) {
+			return;
+		}
+		Map<Object, Object> attributes = ((SimpleSession) session).getAttributes();
+		if (attributes == null || attributes instanceof LazyAttributes) {
+			return;
+		}
+		Map<Object, OffloadedAttribute> offloadedAttributes = new HashMap<Object, OffloadedAttribute>();
+		LazyAttributes lazyAttributes = new LazyAttributes(valueSerializer, redisManager);
+		for (Map.Entry<Object, Object> attribute : attributes.entrySet()) {
+			if (attribute.getValue() instanceof OffloadedAttribute) {
+				offloadedAttributes.put(attribute.getKey(), (OffloadedAttribute) attribute.getValue());
+				lazyAttributes.putOffloaded(attribute.getKey(), (OffloadedAttribute) attribute.getValue());
+			} else {
+				lazyAttributes.put(attribute.getKey(), attribute.getValue());
+			}
+		}
+		if (offloadedAttributes.isEmpty()) {
+			return;
+		}
+		((SimpleSession) session).setAttributes(lazyAttributes);
+		if (session instanceof TrackedSession) {
+			((TrackedSession) session).setStoredOffloadedAttributes(offloadedAttributes);
+			((TrackedSession) session).setChanged(false);
+		}
+	}
+
+	/**
+	 * Write offloaded attributes which have been changed, and refresh the expire time of the others
+	 * @param offloadedAttributes
+	 * @param attributeValues
+	 * @param redisExpire
+	 */
+	private void writeOffloadedAttributes(Map<Object, OffloadedAttribute> offloadedAttributes, Map<Object, byte[]> attributeValues, int redisExpire) {
+		for (Map.Entry<Object, OffloadedAttribute> attribute : offloadedAttributes.entrySet()) {
+			byte[] value = attributeValues.get(attribute.getKey());
+			if (value != null) {
+				redisManager.set(attribute.getValue().getKey(), value, redisExpire);
+			} else {
+				redisManager.expire(attribute.getValue().getKey(), redisExpire);
+			}
+		}
+	}
+
+	/**
+	 * Delete stored offloaded attributes which are not offloaded any more
+	 * @param storedAttributes
+	 * @param offloadedAttributes
+	 */
+	private void deleteOffloadedAttributes(Map<Object, OffloadedAttribute> storedAttributes, Map<Object, OffloadedAttribute> offloadedAttributes) {
+		for (Map.Entry<Object, OffloadedAttribute> attribute : storedAttributes.entrySet()) {
+			if (!offloadedAttributes.containsKey(attribute.getKey())) {
+				redisManager.del(attribute.getValue().getKey());
+			}
+		}
+	}
+
+	private Map<Object, OffloadedAttribute> getStoredOffloadedAttributes(Session session) {
+		if (session instanceof TrackedSession && ((TrackedSession) session).getStoredOffloadedAttributes() != null) {
+			return ((TrackedSession) session).getStoredOffloadedAttributes();
+		}
+		return Collections.emptyMap();
+	}
+
+	private String getAttributeKey(Serializable sessionId, Object name) throws SerializationException {
+		String attributeName = name instanceof String ? (String) name : Long.toHexString(Fingerprint.of(valueSerializer.serialize(name)));
+		return this.attributeKeyPrefix + sessionId + ":" + attributeName;
+	}
+
+	private boolean isAttributeOffloadInUse() {
+		return this.attributeOffloadThreshold > 0 && !this.hashStorageEnabled;
+	}
+
+	/**
+	 * Run a write of session, then index the session.
+	 * With write-behind, it's run later by a writer thread. Everything it needs from the session must be got before.
+	 * @param session
+	 * @param key
+	 * @param redisExpire
+	 * @param overwrite whether the write overwrites the whole session
+	 * @param write
+	 */
+	private void writeSession(Session session, final byte[] key, final int redisExpire, boolean overwrite, final Runnable write) {
+		writeSession(session, key, redisExpire, overwrite, true, false, write);
+	}
+
+	/**
+	 * Run a write which only refreshes the expire time of session, then refresh the expire time of its index entries.
+	 * @param session
+	 * @param key
+	 * @param redisExpire
+	 * @param write
+	 */
+	private void refreshSession(Session session, final byte[] key, final int redisExpire, final Runnable write) {
+		writeSession(session, key, redisExpire, false, true, true, write);
+	}
+
+	/**
+	 * Run a write of session, then index the session.
+	 * The principal id is remembered as stored only after the write has run, so that a write dropped by write-behind
+	 * doesn't leave the session in the index of its previous principal.
+	 * @param session
+	 * @param key
+	 * @param redisExpire
+	 * @param overwrite whether the write overwrites the whole session
+	 * @param droppable whether the write can be dropped by a later write-behind which overwrites the whole session
+	 * @param expireOnly whether the write only refreshes the expire time
+	 * @param write
+	 */
+	private void writeSession(final Session session, final byte[] key, final int redisExpire, boolean overwrite, boolean droppable,
+			final boolean expireOnly, final Runnable write) {
+		final Serializable sessionId = session.getId();
+		final String principalId = getIndexedPrincipalId(session);
+		final String[] storedPrincipalId = getKnownStoredPrincipalId(session);
+		submitWrite(sessionId, () -> {
+			write.run();
+			indexSession(key, sessionId, principalId, storedPrincipalId, redisExpire, expireOnly);
+			setStoredPrincipalId(session, principalId);
+		}, overwrite, droppable);
+	}
+
+	private void submitWrite(Serializable sessionId, Runnable write, boolean overwrite) {
+		submitWrite(sessionId, write, overwrite, true);
+	}
+
+	private void submitWrite(Serializable sessionId, Runnable write, boolean overwrite, boolean droppable) {
+		if (isWriteBehindInUse()) {
+			getOrCreateWriteBehindQueue().submit(sessionId, write, overwrite, droppable);
+		} else {
+			write.run();
+		}
+	}
+
+	/**
+	 * Run writes of session which are still waiting in write-behind queue, so that it can be read from Redis
+	 * @param sessionId
+	 */
+	private void flushWrites(Serializable sessionId) {
+		WriteBehindQueue queue = this.writeBehindQueue;
+		if (queue != null) {
+			queue.flush(sessionId);
+		}
+	}
+
+	private boolean isWriteBehindInUse() {
+		return this.writeBehindEnabled && !this.compareAndSetEnabled;
+	}
+
+	/**
+	 * A session created by another application instance with write-behind may not be in Redis yet
+	 * @return how long (in milliseconds) an id not found in Redis waits before it's remembered as unknown
+	 */
+	private long getUnknownSessionDelay() {
+		return isWriteBehindInUse() ? this.writeBehindMaxDelay : 0L;
+	}
+
+	private WriteBehindQueue getOrCreateWriteBehindQueue() {
+		if (writeBehindQueue == null) {
+			synchronized (this) {
+				if (writeBehindQueue == null) {
+					writeBehindQueue = new WriteBehindQueue(writeBehindWriterCount, writeBehindQueueSize, writeBehindMaxDelay,
+							WRITE_BEHIND_THREAD_NAME_PREFIX);
+				}
+			}
+		}
+		return writeBehindQueue;
+	}
+
+	/**
+	 * Run all writes waiting in write-behind queue and stop its writers.
+	 * Call it (or let LifecycleBeanPostProcessor call it) when the application is shut down, otherwise waiting writes are lost.
+	 */
+	@Override
+	public void destroy() {
+		WriteBehindQueue queue = this.writeBehindQueue;
+		if (queue != null) {
+			queue.close();
+		}
+	}
+
+	/**
+	 * Put session key into session index and principal index with the time when it expires
+	 * @param key
+	 * @param sessionId
+	 * @param principalId id of the principal which is logged in with the session, or null
+	 * @param storedPrincipalId see getKnownStoredPrincipalId()
+	 * @param redisExpire
+	 * @param expireOnly whether the write only refreshes the expire time
+	 */
+	private void indexSession(byte[] key, Serializable sessionId, String principalId, String[] storedPrincipalId, int redisExpire, boolean expireOnly) {
+		if (!sessionIndexEnabled && !principalIndexEnabled) {
+			return;
+		}
+		double expireAt = redisExpire > 0 ? System.currentTimeMillis() + (double) redisExpire * MILLISECONDS_IN_A_SECOND : Double.POSITIVE_INFINITY;
+		try {
+			if (sessionIndexEnabled) {
+				redisManager.zadd(keySerializer.serialize(sessionIndexKey), expireAt, key);
+			}
+			if (principalIndexEnabled) {
+				getPrincipalIndex().index(key, sessionId, principalId, storedPrincipalId, redisExpire, expireOnly);
+			}
+		} catch (SerializationException e) {
+			logger.error("index session error.");
+		}
+	}
+
+	/**
+	 * Get the principal id the session is indexed by, if the session remembers it.
+	 * It's got before the write is submitted, because the session may be changed before a write-behind runs.
+	 * @param session
+	 * @return an array holding the stored principal id (which may be null), or null if it has to be read from Redis
+	 */
+	private String[] getKnownStoredPrincipalId(Session session) {
+		if (session instanceof TrackedSession && ((TrackedSession) session).isPrincipalIdStored()) {
+			return new String[] {((TrackedSession) session).getStoredPrincipalId()};
+		}
+		return null;
+	}
+
+	/**
+	 * Remember the principal id the session is indexed by, so that it doesn't need to be read from Redis when the session is written again
+	 * @param session
+	 * @param principalId
+	 */
+	private void setStoredPrincipalId(Session session, String principalId) {
+		if (principalIndexEnabled && session instanceof TrackedSession) {
+			((TrackedSession) session).setStoredPrincipalId(principalId);
+		}
+	}
+
+	private String getIndexedPrincipalId(Session session) {
+		return principalIndexEnabled ? getPrincipalId(session) : null;
+	}
+
+	/**
+	 * Get id of the principal which is logged in with this session
+	 * @param session
+	 * @return principal id, or null if the session is not authenticated
+	 */
+	private String getPrincipalId(Session session) {
+		Object principals = session.getAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY);
+		if (!(principals instanceof PrincipalCollection) || ((PrincipalCollection) principals).isEmpty()) {
+			return null;
+		}
+		try {
+			return getEffectivePrincipalKeyResolver().getPrincipalId((PrincipalCollection) principals);
+		} catch (RuntimeException e) {
+			logger.error("get principal id error. session id=" + session.getId(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return principalKeyResolver if it's set, otherwise a resolver by principalIdFieldName
+	 */
+	private PrincipalKeyResolver getEffectivePrincipalKeyResolver() {
+		if (principalKeyResolver != null) {
+			return principalKeyResolver;
+		}
+		FieldPrincipalKeyResolver resolver = fieldPrincipalKeyResolver;
+		if (resolver == null) {
+			resolver = new FieldPrincipalKeyResolver(principalIdFieldName);
+			fieldPrincipalKeyResolver = resolver;
+		}
+		return resolver;
+	}
+
+	private PrincipalIndex getPrincipalIndex() {
+		PrincipalIndex index = this.principalIndex;
+		if (index == null) {
+			index = new PrincipalIndex(this.redisManager, this.keySerializer, this.principalIndexKeyPrefix, this.sessionPrincipalKeyPrefix,
+					this.touchInterval);
+			this.principalIndex = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Save session as hash. Only changed fields are written.
+	 * @param session
+	 * @param isNew whether session has just been created
+	 * @throws UnknownSessionException
+	 */
+	private void saveSessionHash(Session session, boolean isNew) throws UnknownSessionException {
+		if (!(session instanceof SimpleSession)) {
+			logger.error("only SimpleSession can be saved as hash. session id=" + session.getId());
+			throw new UnknownSessionException("only SimpleSession can be saved as hash. session id=" + session.getId());
+		}
+		final byte[] key;
+		Map<String, byte[]> fields;
+		try {
+			key = getSessionKey(session.getId());
+			fields = new SessionHashCodec(valueSerializer).encode((SimpleSession) session);
+		} catch (SerializationException e) {
+			logger.error("serialize session error. session id=" + session.getId());
+			throw new UnknownSessionException(e);
+		}
+		Map<String, Long> storedFields = getStoredFields(session, key, isNew);
+		Map<String, Long> fingerprints = new HashMap<String, Long>();
+		Map<String, byte[]> changedFields = new HashMap<String, byte[]>();
+		for (Map.Entry<String, byte[]> field : fields.entrySet()) {
+			long fingerprint = Fingerprint.of(field.getValue());
+			fingerprints.put(field.getKey(), fingerprint);
+			Long storedFingerprint = storedFields.get(field.getKey());
+			if (storedFingerprint == null || storedFingerprint != fingerprint) {
+				changedFields.put(field.getKey(), field.getValue());
+			}
+		}
+		List<byte[]> removedFields = new ArrayList<byte[]>();
+		for (String storedField : storedFields.keySet()) {
+			if (!fields.containsKey(storedField) && !SessionHashCodec.VERSION.equals(storedField)) {
+				removedFields.add(SessionHashCodec.toBytes(storedField));
+			}
+		}
+
+		if (removedFields.isEmpty() && changedFields.size() == 1 && changedFields.containsKey(SessionHashCodec.LAST_ACCESS_TIME)
+				&& isWithinTouchInterval(session)) {
+			logger.debug("only lastAccessTime has been changed, skip writing session. session id=" + session.getId());
+			touchSession(session, key);
+			return;
+		}
+		final int redisExpire = getRedisExpire(session);
+		if (removedFields.isEmpty() && changedFields.isEmpty()) {
+			refreshSession(session, key, redisExpire, () -> redisManager.expire(key, redisExpire));
+			return;
+		}
+
+		// the version is written even if this instance doesn't use the near cache, otherwise other instances may read stale sessions from theirs
+		long version = VersionedValue.newVersion();
+		changedFields.put(SessionHashCodec.VERSION, SessionHashCodec.encodeLong(version));
+		fingerprints.put(SessionHashCodec.VERSION, Fingerprint.of(changedFields.get(SessionHashCodec.VERSION)));
+		final byte[][] removedFieldNames = removedFields.toArray(new byte[removedFields.size()][]);
+		final Map<byte[], byte[]> hash = new HashMap<byte[], byte[]>();
+		for (Map.Entry<String, byte[]> field : changedFields.entrySet()) {
+			hash.put(SessionHashCodec.toBytes(field.getKey()), field.getValue());
+		}
+		writeSession(session, key, redisExpire, false, () -> {
+			if (removedFieldNames.length > 0) {
+				redisManager.hdel(key, removedFieldNames);
+			}
+			redisManager.hset(key, hash, redisExpire);
+		});
+
+		if (session instanceof TrackedSession) {
+			TrackedSession trackedSession = (TrackedSession) session;
+			trackedSession.setStoredFields(fingerprints);
+			trackedSession.setStoredVersion(version);
+			trackedSession.setStoredLastAccessTime(session.getLastAccessTime());
+			trackedSession.setChanged(false);
+		} else {
+			untrackedStoredFields.put(session, fingerprints);
+		}
+		if (isSessionNearCacheInUse()) {
+			sessionNearCache.put(session.getId(), session, version);
+		}
+	}
+
+	/**
+	 * Get fingerprints of the hash fields stored in Redis.
+	 * If the session doesn't remember them, only field names are got from Redis and all fields are treated as changed.
+	 * @param session
+	 * @param key
+	 * @param isNew
+	 * @return
+	 */
+	private Map<String, Long> getStoredFields(Session session, byte[] key, boolean isNew) {
+		if (session instanceof TrackedSession && ((TrackedSession) session).getStoredFields() != null) {
+			return ((TrackedSession) session).getStoredFields();
+		}
+		if (!(session instanceof TrackedSession)) {
+			Map<String, Long> writtenFields = untrackedStoredFields.get(session);
+			if (writtenFields != null) {
+				return writtenFields;
+			}
+		}
+		Map<String, Long> storedFields = new HashMap<String, Long>();
+		if (isNew) {
+			return storedFields;
+		}
+		flushWrites(session.getId());
+		Set<byte[]> fieldNames = redisManager.hkeys(key);
+		if (fieldNames != null) {
+			for (byte[] fieldName : fieldNames) {
+				storedFields.put(SessionHashCodec.fromBytes(fieldName), null);
+			}
+		}
+		return storedFields;
+	}
+
+	/**
+	 * get expire time of session key in seconds
+	 * @param session
+	 * @return
+	 */
+	private int getRedisExpire(Session session) {
+		if (expire == DEFAULT_EXPIRE) {
+			return (int) (session.getTimeout() / MILLISECONDS_IN_A_SECOND);
+		}
+		if (expire != NO_EXPIRE && expire * MILLISECONDS_IN_A_SECOND < session.getTimeout()) {
+			logger.warn("Redis session expire time: "
+					+ (expire * MILLISECONDS_IN_A_SECOND)
+					+ " is less than Session timeout: "
+					+ session.getTimeout()
+					+ " . It may cause some problems.");
+		}
+		return expire;
+	}
+
+	/**
+	 * delete session
+	 * @param session
+	 */
+	@Override
+	public void delete(Session session) {
+		if (this.sessionInMemoryEnabled) {
+			this.removeExpiredSessionInMemory();
+		}
+		if (session == null || session.getId() == null) {
+			logger.error("session or session id is null");
+			return;
+		}
+		forgetSession(session.getId());
+		untrackedStoredFields.remove(session);
+		try {
+			final byte[] key = getSessionKey(session.getId());
+			final byte[] indexKey = sessionIndexEnabled ? keySerializer.serialize(sessionIndexKey) : null;
+			final Serializable sessionId = session.getId();
+			final Map<Object, OffloadedAttribute> storedAttributes = getStoredOffloadedAttributes(session);
+			submitWrite(sessionId, () -> {
+				redisManager.del(key);
+				deleteOffloadedAttributes(storedAttributes, Collections.<Object, OffloadedAttribute>emptyMap());
+				if (indexKey != null) {
+					redisManager.zrem(indexKey, key);
+				}
+				// the principal may have been removed from the session before, e.g. by logout, so it's read from Redis
+				if (principalIndexEnabled) {
+					try {
+						getPrincipalIndex().unindex(key, sessionId);
+					} catch (SerializationException e) {
+						logger.error("remove session from principal index error. session id=" + sessionId);
+					}
+				}
+			}, true);
+		} catch (SerializationException e) {
+			logger.error("delete session error. session id=" + session.getId());
+		}
+	}
+
+	/**
+	 * Remove a deleted session from memory of this process
+	 * @param sessionId
+	 */
+	private void forgetSession(Serializable sessionId) {
+		if (this.sessionInMemoryEnabled) {
+			this.delSessionFromThreadLocal(sessionId);
+		}
+		if (isSessionNearCacheInUse()) {
+			sessionNearCache.remove(sessionId);
+		}
+		if (this.unknownSessionCacheEnabled) {
+			unknownSessionIds.add(sessionId);
+		}
+	}
+
+	/**
+	 * get all active sessions.
+	 * Sessions are loaded lazily while the returned collection is iterated: keys are scanned page by page and the sessions of every page are read together,
+	 * so all sessions are never held in memory at the same time.
+	 * NOTE: size() iterates over all sessions. A session may be returned more than once if keys are changed during the iteration.
+	 * @return
+	 */
+	@Override
+	public Collection<Session> getActiveSessions() {
+		if (this.sessionInMemoryEnabled) {
+			this.removeExpiredSessionInMemory();
+		}
+		final List<byte[]> patterns;
+		final byte[] indexKey;
+		try {
+			patterns = getSessionKeyEncoder().getPatterns();
+			indexKey = keySerializer.serialize(sessionIndexKey);
+		} catch (SerializationException e) {
+			logger.error("get active sessions error.");
+			return Collections.emptySet();
+		}
+		if (sessionIndexEnabled) {
+			this.removeExpiredSessionIndex();
+			return new PagedCollection<Session>(() -> scanSessionIndex(indexKey), this::loadSessions);
+		}
+		return new PagedCollection<Session>(() -> KeyPageIterator.scan(redisManager, patterns), this::loadSessions);
+	}
+
+	/**
+	 * get a page of active sessions.
+	 * With sessionIndexEnabled, sessions are ordered by expire time and read from the index directly.
+	 * Otherwise keys are scanned until the page is filled, and sessions are not in any particular order.
+	 * @param offset number of sessions to skip
+	 * @param limit max number of sessions to return
+	 * @return sessions
+	 */
+	public Collection<Session> getActiveSessions(int offset, int limit) {
+		if (!sessionIndexEnabled) {
+			List<Session> sessions = new ArrayList<Session>();
+			Iterator<Session> it = getActiveSessions().iterator();
+			for (int i = 0; sessions.size() < limit && it.hasNext(); i++) {
+				Session session = it.next();
+				if (i >= offset) {
+					sessions.add(session);
+				}
+			}
+			return sessions;
+		}
+		try {
+			List<byte[]> keys = redisManager.zrangeByScore(keySerializer.serialize(sessionIndexKey),
+					System.currentTimeMillis(), Double.POSITIVE_INFINITY, offset, limit);
+			return loadSessions(keys);
+		} catch (SerializationException e) {
+			logger.error("get active sessions error.");
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Count active sessions. With sessionIndexEnabled it's a ZCOUNT of the index, otherwise keys are scanned.
+	 * @return number of active sessions
+	 */
+	public long getActiveSessionCount() {
+		try {
+			if (sessionIndexEnabled) {
+				return redisManager.zcount(keySerializer.serialize(sessionIndexKey), System.currentTimeMillis(), Double.POSITIVE_INFINITY);
+			}
+			long count = 0L;
+			for (byte[] pattern : getSessionKeyEncoder().getPatterns()) {
+				Long dbSize = redisManager.dbSize(pattern);
+				count += dbSize == null ? 0L : dbSize;
+			}
+			return count;
+		} catch (SerializationException e) {
+			logger.error("count active sessions error.");
+			return 0L;
+		}
+	}
+
+	/**
+	 * Remove expired sessions from the session index.
+	 * @return number of removed sessions
+	 */
+	public long removeExpiredSessionIndex() {
+		if (!sessionIndexEnabled) {
+			return 0L;
+		}
+		try {
+			return redisManager.zremrangeByScore(keySerializer.serialize(sessionIndexKey), Double.NEGATIVE_INFINITY, System.currentTimeMillis());
+		} catch (SerializationException e) {
+			logger.error("remove expired session index error.");
+			return 0L;
+		}
+	}
+
+	/**
+	 * Find ids of sessions which might have expired, without reading any session.
+	 * A session key is written or its expire time is refreshed whenever the session is accessed,
+	 * so a session might have expired only if the time to live of its key is no more than expire - sessionTimeout.
+	 * With DEFAULT_EXPIRE, session keys are expired by Redis together with sessions, so only keys without expire time are returned.
+	 * With sessionIndexEnabled, expire times are read from the index. Otherwise keys are scanned and checked by pipelined PTTL page by page.
+	 * NOTE: A session whose timeout is shorter than sessionTimeout is found later than it expires.
+	 * @param sessionTimeout session timeout in milliseconds, usually globalSessionTimeout of SessionManager
+	 * @return ids of sessions which should be validated
+	 */
+	public Collection<Serializable> getSessionIdsToValidate(long sessionTimeout) {
+		final long threshold = getValidationThreshold(sessionTimeout);
+		final List<byte[]> patterns;
+		final byte[] indexKey;
+		try {
+			patterns = getSessionKeyEncoder().getPatterns();
+			indexKey = keySerializer.serialize(sessionIndexKey);
+		} catch (SerializationException e) {
+			logger.error("get session ids to validate error.");
+			return Collections.emptySet();
+		}
+		if (sessionIndexEnabled) {
+			long now = System.currentTimeMillis();
+			double max = threshold == Long.MAX_VALUE ? Double.POSITIVE_INFINITY : now + threshold;
+			return toSessionIds(redisManager.zrangeByScore(indexKey, now, max, 0, -1));
+		}
+		return new PagedCollection<Serializable>(() -> KeyPageIterator.scan(redisManager, patterns), keys -> {
+			List<Long> ttls = redisManager.pttl(keys.toArray(new byte[keys.size()][]));
+			List<byte[]> keysToValidate = new ArrayList<byte[]>();
+			for (int i = 0; i < keys.size(); i++) {
+				Long ttl = ttls.get(i);
+				if (ttl != null && (ttl == TTL_NO_EXPIRE || (ttl >= 0 && ttl <= threshold))) {
+					keysToValidate.add(keys.get(i));
+				}
+			}
+			return toSessionIds(keysToValidate);
+		});
+	}
+
+	/**
+	 * Max time to live in milliseconds of a session key whose session might have expired
+	 * @param sessionTimeout
+	 * @return
+	 */
+	private long getValidationThreshold(long sessionTimeout) {
+		if (expire == NO_EXPIRE) {
+			return Long.MAX_VALUE;
+		}
+		if (expire == DEFAULT_EXPIRE) {
+			return 0L;
+		}
+		return (long) expire * MILLISECONDS_IN_A_SECOND - sessionTimeout;
+	}
+
+	private List<Serializable> toSessionIds(List<byte[]> keys) {
+		List<Serializable> sessionIds = new ArrayList<Serializable>(keys.size());
+		for (byte[] key : keys) {
+			Serializable sessionId = getSessionId(key);
+			if (sessionId != null) {
+				sessionIds.add(sessionId);
+			}
+		}
+		return sessionIds;
+	}
+
+	/**
+	 * Get session id from a session key
+	 * @param key session key
+	 * @return session id, or null if it's not a session key of this SessionDAO
+	 */
+	public Serializable getSessionId(byte[] key) {
+		try {
+			return getSessionKeyEncoder().decode(key);
+		} catch (SerializationException e) {
+			logger.error("deserialize session key error.");
+		}
+		return null;
+	}
+
+	/**
+	 * Remove a session which has been expired by Redis from near cache and session index.
+	 * The principal index is cleaned when it's read, because the principal of the session is gone with its key.
+	 * @param sessionId session id
+	 */
+	public void evictExpiredSession(Serializable sessionId) {
+		if (isSessionNearCacheInUse()) {
+			sessionNearCache.remove(sessionId);
+		}
+		if (this.unknownSessionCacheEnabled) {
+			unknownSessionIds.add(sessionId);
+		}
+		if (!sessionIndexEnabled) {
+			return;
+		}
+		try {
+			redisManager.zrem(keySerializer.serialize(sessionIndexKey), getSessionKey(sessionId));
+		} catch (SerializationException e) {
+			logger.error("remove expired session from index error. session id=" + sessionId);
+		}
+	}
+
+	/**
+	 * Read session keys from the session index page by page, skipping those which have expired.
+	 * @param indexKey
+	 * @return
+	 */
+	private Iterator<List<byte[]>> scanSessionIndex(final byte[] indexKey) {
+		final double now = System.currentTimeMillis();
+		return new KeyPageIterator() {
+			private int offset = 0;
+
+			@Override
+			protected List<byte[]> scanPage() {
+				List<byte[]> keys = redisManager.zrangeByScore(indexKey, now, Double.POSITIVE_INFINITY, offset, SESSION_INDEX_PAGE_SIZE);
+				offset += keys.size();
+				if (keys.size() < SESSION_INDEX_PAGE_SIZE) {
+					finish();
+				}
+				return keys;
+			}
+		};
+	}
+
+	/**
+	 * Load sessions of a page of keys.
+	 * Sessions which can't be read are skipped.
+	 * @param keys session keys
+	 * @return sessions
 	 */
-	private RedisSerializer keySerializer = new StringSerializer();
+	private Collection<Session> loadSessions(List<byte[]> keys) {
+		List<Session> sessions = new ArrayList<Session>(keys.size());
+		for (Session session : loadSessionsByKeys(keys)) {
+			if (session != null) {
+				sessions.add(session);
+			}
+		}
+		return sessions;
+	}
 
 	/**
-	 * Serializer of value
+	 * Load sessions of keys. Blob sessions are read by one MGET.
+	 * @param keys session keys
+	 * @return sessions in the same order as keys. Session is null if it doesn't exist or can't be read.
 	 */
-	private RedisSerializer valueSerializer = new ObjectSerializer();
+	private List<Session> loadSessionsByKeys(List<byte[]> keys) {
+		List<Session> sessions = new ArrayList<Session>(keys.size());
+		if (hashStorageEnabled) {
+			SessionHashCodec codec = new SessionHashCodec(valueSerializer);
+			for (Map<byte[], byte[]> hash : redisManager.mhgetAll(keys.toArray(new byte[keys.size()][]))) {
+				Session session = null;
+				try {
+					session = codec.decode(hash, lazyAttributesEnabled);
+					if (session != null) {
+						setStoredPrincipalId(session, getIndexedPrincipalId(session));
+					}
+				} catch (SerializationException e) {
+					logger.error("read session error.");
+				}
+				sessions.add(session);
+			}
+			return sessions;
+		}
+		List<byte[]> values = redisManager.mget(keys.toArray(new byte[keys.size()][]));
+		for (byte[] value : values) {
+			Session session = null;
+			if (value != null) {
+				try {
+					session = decodeSession(value);
+				} catch (SerializationException e) {
+					logger.error("read session error.");
+				}
+			}
+			sessions.add(session);
+		}
+		return sessions;
+	}
 
 	/**
-	 * save/update session
-	 * @param session
-	 * @throws UnknownSessionException
+	 * Read sessions of multiple ids together, e.g. to show sessions of some users or to limit concurrent sessions.
+	 * Sessions are read by one MGET, or pipelined HGETALLs with hashStorageEnabled. On Redis Cluster, keys are grouped by node,
+	 * so there is one round trip for every node.
+	 * Like readSession(), sessions in ThreadLocal are used, and writes of these sessions still waiting in write-behind queue are written first.
+	 * @param sessionIds session ids
+	 * @return sessions by session id, in the same order as sessionIds. Sessions which don't exist or can't be read are left out.
 	 */
-	@Override
-	public void update(Session session) throws UnknownSessionException {
+	public Map<Serializable, Session> readSessions(Collection<? extends Serializable> sessionIds) {
 		if (this.sessionInMemoryEnabled) {
 			this.removeExpiredSessionInMemory();
 		}
-		this.saveSession(session);
-		if (this.sessionInMemoryEnabled) {
-			this.setSessionToThreadLocal(session.getId(), session);
+		Map<Serializable, Session> sessions = new LinkedHashMap<Serializable, Session>();
+		List<Serializable> sessionIdsToRead = new ArrayList<Serializable>();
+		List<byte[]> keys = new ArrayList<byte[]>();
+		for (Serializable sessionId : new LinkedHashSet<Serializable>(sessionIds)) {
+			if (sessionId == null) {
+				continue;
+			}
+			Session session = this.sessionInMemoryEnabled ? getSessionFromThreadLocal(sessionId) : null;
+			if (session != null) {
+				sessions.put(sessionId, session);
+				continue;
+			}
+			if (this.unknownSessionCacheEnabled && unknownSessionIds.contains(sessionId)) {
+				continue;
+			}
+			flushWrites(sessionId);
+			try {
+				keys.add(getSessionKey(sessionId));
+				sessionIdsToRead.add(sessionId);
+			} catch (SerializationException e) {
+				logger.error("read session error. sessionId: " + sessionId);
+			}
 		}
+		if (keys.isEmpty()) {
+			return sessions;
+		}
+		List<Session> loadedSessions = loadSessionsByKeys(keys);
+		for (int i = 0; i < sessionIdsToRead.size(); i++) {
+			Serializable sessionId = sessionIdsToRead.get(i);
+			Session session = loadedSessions.get(i);
+			if (session == null) {
+				if (this.unknownSessionCacheEnabled) {
+					unknownSessionIds.add(sessionId, getUnknownSessionDelay());
+				}
+				continue;
+			}
+			sessions.put(sessionId, session);
+			if (this.sessionInMemoryEnabled) {
+				setSessionToThreadLocal(sessionId, session);
+			}
+		}
+		return sessions;
 	}
 
-	private void saveSession(Session session) throws UnknownSessionException {
-		if (session == null || session.getId() == null) {
-			logger.error("session or session id is null");
-			throw new UnknownSessionException("session or session id is null");
+	/**
+	 * get all active sessions of a principal. It only works when principalIndexEnabled is true.
+	 * Sessions are found by the principal index and read together, without scanning keys.
+	 * Index entries of sessions which have expired or no longer belong to the principal are removed.
+	 * @param principalId principal id. If the primary principal is a String, it's the id itself. Otherwise it's got by principalIdFieldName.
+	 * @return sessions
+	 */
+	public Collection<Session> getSessionsByPrincipalId(String principalId) {
+		if (!principalIndexEnabled) {
+			logger.error("principalIndexEnabled is false, sessions of principal can't be found.");
+			return Collections.emptyList();
 		}
-		byte[] key;
-		byte[] value;
+		List<Session> sessions = new ArrayList<Session>();
 		try {
-			key = keySerializer.serialize(getRedisSessionKey(session.getId()));
-			value = valueSerializer.serialize(session);
+			byte[] principalIndexKey = getPrincipalIndex().getIndexKey(principalId);
+			long now = System.currentTimeMillis();
+			redisManager.zremrangeByScore(principalIndexKey, Double.NEGATIVE_INFINITY, now);
+			List<byte[]> keys = redisManager.zrangeByScore(principalIndexKey, now, Double.POSITIVE_INFINITY, 0, -1);
+			if (keys.isEmpty()) {
+				return sessions;
+			}
+			List<Session> loadedSessions = loadSessionsByKeys(keys);
+			List<byte[]> staleKeys = new ArrayList<byte[]>();
+			for (int i = 0; i < keys.size(); i++) {
+				Session session = loadedSessions.get(i);
+				if (session != null && principalId.equals(getPrincipalId(session))) {
+					sessions.add(session);
+				} else {
+					staleKeys.add(keys.get(i));
+				}
+			}
+			if (!staleKeys.isEmpty()) {
+				redisManager.zrem(principalIndexKey, staleKeys.toArray(new byte[staleKeys.size()][]));
+			}
 		} catch (SerializationException e) {
-			logger.error("serialize session error. session id=" + session.getId());
-			throw new UnknownSessionException(e);
-		}
-		if (expire == DEFAULT_EXPIRE) {
-			redisManager.set(key, value, (int) (session.getTimeout() / MILLISECONDS_IN_A_SECOND));
-			return;
-		}
-		if (expire != NO_EXPIRE && expire * MILLISECONDS_IN_A_SECOND < session.getTimeout()) {
-			logger.warn("Redis session expire time: "
-					+ (expire * MILLISECONDS_IN_A_SECOND)
-					+ " is less than Session timeout: "
-					+ session.getTimeout()
-					+ " . It may cause some problems.");
+			logger.error("get sessions of principal error. principal id=" + principalId);
 		}
-		redisManager.set(key, value, expire);
+		return sessions;
 	}
 
 	/**
-	 * delete session
-	 * @param session
+	 * Count active sessions of a principal by one ZCOUNT. It only works when principalIndexEnabled is true.
+	 * Sessions which have expired less than touchInterval ago may be counted as well.
+	 * @param principalId principal id
+	 * @return number of sessions
 	 */
-	@Override
-	public void delete(Session session) {
-		if (this.sessionInMemoryEnabled) {
-			this.removeExpiredSessionInMemory();
-		}
-		if (session == null || session.getId() == null) {
-			logger.error("session or session id is null");
-			return;
-		}
-		if (this.sessionInMemoryEnabled) {
-			this.delSessionFromThreadLocal(session.getId());
+	public long countSessionsByPrincipalId(String principalId) {
+		if (!principalIndexEnabled) {
+			logger.error("principalIndexEnabled is false, sessions of principal can't be counted.");
+			return 0L;
 		}
 		try {
-			redisManager.del(keySerializer.serialize(getRedisSessionKey(session.getId())));
+			return redisManager.zcount(getPrincipalIndex().getIndexKey(principalId), System.currentTimeMillis(), Double.POSITIVE_INFINITY);
 		} catch (SerializationException e) {
-			logger.error("delete session error. session id=" + session.getId());
+			logger.error("count sessions of principal error. principal id=" + principalId);
+			return 0L;
 		}
 	}
 
 	/**
-	 * get all active sessions
-	 * @return
+	 * Delete all sessions of a principal, for example after the password of the principal is reset.
+	 * It only works when principalIndexEnabled is true.
+	 * Session keys are read from the principal index, and sessions are read together to check that they still belong to the principal,
+	 * because the index may be behind, e.g. when another principal has logged in with the session. Those sessions are only removed from the index.
+	 * Offloaded attributes of the sessions are left to expire.
+	 * @param principalId principal id
+	 * @return number of deleted sessions
 	 */
-	@Override
-	public Collection<Session> getActiveSessions() {
-		if (this.sessionInMemoryEnabled) {
-			this.removeExpiredSessionInMemory();
+	public int deleteSessionsByPrincipalId(String principalId) {
+		if (!principalIndexEnabled) {
+			logger.error("principalIndexEnabled is false, sessions of principal can't be deleted.");
+			return 0;
 		}
-		Set<Session> sessions = new HashSet<Session>();
 		try {
-			Set<byte[]> keys = redisManager.keys(keySerializer.serialize(this.keyPrefix + "*"));
-			if (keys != null && keys.size() > 0) {
-				for (byte[] key:keys) {
-                    Object deserialize = valueSerializer.deserialize(redisManager.get(key));
-                    if (deserialize == null) {
-                        continue;
-                    }
-                    sessions.add((Session) deserialize);
+			byte[] principalIndexKey = getPrincipalIndex().getIndexKey(principalId);
+			long now = System.currentTimeMillis();
+			redisManager.zremrangeByScore(principalIndexKey, Double.NEGATIVE_INFINITY, now);
+			List<byte[]> keys = redisManager.zrangeByScore(principalIndexKey, now, Double.POSITIVE_INFINITY, 0, -1);
+			if (keys.isEmpty()) {
+				return 0;
+			}
+			List<Serializable> sessionIds = new ArrayList<Serializable>(keys.size());
+			for (byte[] key : keys) {
+				Serializable sessionId = getSessionKeyEncoder().decode(key);
+				if (sessionId != null) {
+					flushWrites(sessionId);
+				}
+				sessionIds.add(sessionId);
+			}
+			List<Session> sessions = loadSessionsByKeys(keys);
+			List<byte[]> deletedKeys = new ArrayList<byte[]>();
+			List<byte[]> members = new ArrayList<byte[]>();
+			for (int i = 0; i < keys.size(); i++) {
+				Session session = sessions.get(i);
+				Serializable sessionId = sessionIds.get(i);
+				if (session != null && sessionId != null && principalId.equals(getPrincipalId(session))) {
+					forgetSession(sessionId);
+					deletedKeys.add(keys.get(i));
+					deletedKeys.add(getPrincipalIndex().getSessionPrincipalKey(sessionId));
+					members.add(keys.get(i));
+				}
+			}
+			if (!deletedKeys.isEmpty()) {
+				redisManager.mdel(deletedKeys.toArray(new byte[deletedKeys.size()][]));
+				if (sessionIndexEnabled) {
+					redisManager.zrem(keySerializer.serialize(sessionIndexKey), members.toArray(new byte[members.size()][]));
 				}
 			}
+			redisManager.zrem(principalIndexKey, keys.toArray(new byte[keys.size()][]));
+			return members.size();
 		} catch (SerializationException e) {
-			logger.error("get active sessions error.");
+			logger.error("delete sessions of principal error. principal id=" + principalId);
+			return 0;
 		}
-		return sessions;
 	}
 
 	@Override
@@ -174,7 +1492,10 @@ public class RedisSessionDAO extends AbstractSessionDAO {
 		}
 		Serializable sessionId = this.generateSessionId(session);
         this.assignSessionId(session, sessionId);
-        this.saveSession(session);
+        this.saveSession(session, true);
+		if (this.unknownSessionCacheEnabled) {
+			unknownSessionIds.remove(sessionId);
+		}
 		return sessionId;
 	}
 
@@ -198,94 +1519,171 @@ public class RedisSessionDAO extends AbstractSessionDAO {
 				return session;
 			}
 		}
+		if (this.unknownSessionCacheEnabled && unknownSessionIds.contains(sessionId)) {
+			logger.debug("session is known not to exist. sessionId: " + sessionId);
+			return null;
+		}
+		flushWrites(sessionId);
 		Session session = null;
 		try {
-			String sessionRedisKey = getRedisSessionKey(sessionId);
-			logger.debug("read session: " + sessionRedisKey + " from Redis");
-			session = (Session) valueSerializer.deserialize(redisManager.get(keySerializer.serialize(sessionRedisKey)));
+			byte[] key = getSessionKey(sessionId);
+			if (isSessionNearCacheInUse()) {
+				session = getSessionFromNearCache(sessionId, key);
+				if (session != null) {
+					setSessionToThreadLocal(sessionId, session);
+					return session;
+				}
+			}
+			logger.debug("read session: " + sessionId + " from Redis");
+			long version;
+			if (hashStorageEnabled) {
+				TrackedSession trackedSession = new SessionHashCodec(valueSerializer).decode(redisManager.hgetAll(key), lazyAttributesEnabled);
+				if (trackedSession != null) {
+					setStoredPrincipalId(trackedSession, getIndexedPrincipalId(trackedSession));
+				}
+				session = trackedSession;
+				version = trackedSession == null ? VersionedValue.NO_VERSION : trackedSession.getStoredVersion();
+			} else {
+				byte[] value = redisManager.get(key);
+				session = decodeSession(value);
+				version = VersionedValue.getVersion(value);
+			}
 			if (this.sessionInMemoryEnabled) {
 				setSessionToThreadLocal(sessionId, session);
 			}
+			if (session != null && isSessionNearCacheInUse() && version != VersionedValue.NO_VERSION) {
+				sessionNearCache.put(sessionId, session, version);
+			}
+			if (session == null && this.unknownSessionCacheEnabled) {
+				unknownSessionIds.add(sessionId, getUnknownSessionDelay());
+			}
 		} catch (SerializationException e) {
 			logger.error("read session error. sessionId: " + sessionId);
 		}
 		return session;
 	}
 
-	private void setSessionToThreadLocal(Serializable sessionId, Session session) {
-		this.initSessionsInThread();
-		Map<Serializable, SessionInMemory> sessionMap = (Map<Serializable, SessionInMemory>) sessionsInThread.get();
-		sessionMap.put(sessionId, this.createSessionInMemory(session));
+	/**
+	 * Deserialize session read from Redis, and remember what is stored for it if it's tracked
+	 * @param value
+	 * @return
+	 * @throws SerializationException
+	 */
+	private Session decodeSession(byte[] value) throws SerializationException {
+		Session session = trackSession((Session) valueSerializer.deserialize(VersionedValue.unwrap(value)));
+		loadOffloadedAttributes(session);
+		if (session instanceof TrackedSession) {
+			((TrackedSession) session).setStoredVersion(VersionedValue.getVersion(value));
+			if (dirtyCheckEnabled) {
+				((TrackedSession) session).setStoredFingerprint(Fingerprint.of(VersionedValue.unwrap(value)));
+			}
+		}
+		setStoredPrincipalId(session, getIndexedPrincipalId(session));
+		return session;
 	}
 
-	private void delSessionFromThreadLocal(Serializable sessionId) {
-		Map<Serializable, SessionInMemory> sessionMap = (Map<Serializable, SessionInMemory>) sessionsInThread.get();
-		if (sessionMap == null) {
-			return;
+	/**
+	 * Wrap SimpleSession read from Redis, so that we know what has been changed when it's updated.
+	 * @param session
+	 * @return
+	 */
+	private Session trackSession(Session session) {
+		boolean tracked = touchInterval > 0 || compareAndSetEnabled || dirtyCheckEnabled || isAttributeOffloadInUse() || principalIndexEnabled;
+		if (tracked && session != null && session.getClass() == SimpleSession.class) {
+			return TrackedSession.of((SimpleSession) session);
 		}
-		sessionMap.remove(sessionId);
+		return session;
 	}
 
-	private SessionInMemory createSessionInMemory(Session session) {
-		SessionInMemory sessionInMemory = new SessionInMemory();
-		sessionInMemory.setCreateTime(new Date());
-		sessionInMemory.setSession(session);
-		return sessionInMemory;
+	private void setSessionToThreadLocal(Serializable sessionId, Session session) {
+		SessionsInMemory sessionsInMemory = (SessionsInMemory) sessionsInThread.get();
+		if (sessionsInMemory == null) {
+			sessionsInMemory = new SessionsInMemory();
+			sessionsInThread.set(sessionsInMemory);
+		}
+		sessionsInMemory.put(sessionId, session, System.nanoTime());
 	}
 
-	private void initSessionsInThread() {
-		Map<Serializable, SessionInMemory> sessionMap = (Map<Serializable, SessionInMemory>) sessionsInThread.get();
-		if (sessionMap == null) {
-			sessionMap = new HashMap<Serializable, SessionInMemory>();
-			sessionsInThread.set(sessionMap);
+	private void delSessionFromThreadLocal(Serializable sessionId) {
+		SessionsInMemory sessionsInMemory = (SessionsInMemory) sessionsInThread.get();
+		if (sessionsInMemory == null) {
+			return;
 		}
+		sessionsInMemory.remove(sessionId);
 	}
 
 	private void removeExpiredSessionInMemory() {
-		Map<Serializable, SessionInMemory> sessionMap = (Map<Serializable, SessionInMemory>) sessionsInThread.get();
-		if (sessionMap == null) {
+		SessionsInMemory sessionsInMemory = (SessionsInMemory) sessionsInThread.get();
+		if (sessionsInMemory == null) {
 			return;
 		}
-		Iterator<Serializable> it = sessionMap.keySet().iterator();
-		while (it.hasNext()) {
-			Serializable sessionId = it.next();
-			SessionInMemory sessionInMemory = sessionMap.get(sessionId);
-			if (sessionInMemory == null) {
-				it.remove();
-				continue;
-			}
-			long liveTime = getSessionInMemoryLiveTime(sessionInMemory);
-			if (liveTime > sessionInMemoryTimeout) {
-				it.remove();
-			}
-		}
-		if (sessionMap.size() == 0) {
+		sessionsInMemory.removeExpired(System.nanoTime(), getSessionInMemoryTimeoutNanos());
+		// pooled threads must not keep sessions (and the classloader of the application) once they are idle
+		if (sessionsInMemory.isEmpty()) {
 			sessionsInThread.remove();
 		}
 	}
 
 	private Session getSessionFromThreadLocal(Serializable sessionId) {
-		if (sessionsInThread.get() == null) {
+		SessionsInMemory sessionsInMemory = (SessionsInMemory) sessionsInThread.get();
+		if (sessionsInMemory == null) {
 			return null;
 		}
-
-		Map<Serializable, SessionInMemory> sessionMap = (Map<Serializable, SessionInMemory>) sessionsInThread.get();
-		SessionInMemory sessionInMemory = sessionMap.get(sessionId);
-		if (sessionInMemory == null) {
+		Session session = sessionsInMemory.get(sessionId, System.nanoTime(), getSessionInMemoryTimeoutNanos());
+		if (session == null) {
 			return null;
 		}
 
 		logger.debug("read session from memory");
-		return sessionInMemory.getSession();
+		return session;
+	}
+
+	/**
+	 * Get session from near cache if its version is the same as the version in Redis
+	 * @param sessionId
+	 * @param key
+	 * @return
+	 */
+	private Session getSessionFromNearCache(Serializable sessionId, byte[] key) {
+		SessionNearCache.VersionedSession cached = sessionNearCache.get(sessionId);
+		if (cached == null) {
+			return null;
+		}
+		if (getVersionInRedis(key) != cached.getVersion()) {
+			sessionNearCache.remove(sessionId);
+			return null;
+		}
+		logger.debug("read session from near cache");
+		return cached.getSession();
+	}
+
+	private long getVersionInRedis(byte[] key) {
+		if (hashStorageEnabled) {
+			byte[] version = redisManager.hget(key, SessionHashCodec.toBytes(SessionHashCodec.VERSION));
+			return version == null ? VersionedValue.NO_VERSION : SessionHashCodec.decodeLong(version);
+		}
+		return VersionedValue.getVersion(redisManager.getRange(key, 0, VersionedValue.HEADER_LENGTH - 1));
+	}
+
+	private boolean isSessionNearCacheInUse() {
+		return this.sessionInMemoryEnabled && this.sessionNearCacheEnabled;
+	}
+
+	private long getSessionInMemoryTimeoutNanos() {
+		return TimeUnit.MILLISECONDS.toNanos(sessionInMemoryTimeout);
 	}
 
-	private long getSessionInMemoryLiveTime(SessionInMemory sessionInMemory) {
-		Date now = new Date();
-		return now.getTime() - sessionInMemory.getCreateTime().getTime();
+	private byte[] getSessionKey(Serializable sessionId) throws SerializationException {
+		return getSessionKeyEncoder().encode(sessionId);
 	}
 
-	private String getRedisSessionKey(Serializable sessionId) {
-		return this.keyPrefix + sessionId;
+	private SessionKeyEncoder getSessionKeyEncoder() {
+		SessionKeyEncoder encoder = this.sessionKeyEncoder;
+		if (encoder == null) {
+			encoder = new SessionKeyEncoder(this.keyPrefix, this.keySerializer, this.compactKeysEnabled ? this.compactKeyPrefix : null);
+			this.sessionKeyEncoder = encoder;
+		}
+		return encoder;
 	}
 
 	public IRedisManager getRedisManager() {
@@ -294,6 +1692,7 @@ public class RedisSessionDAO extends AbstractSessionDAO {
 
 	public void setRedisManager(IRedisManager redisManager) {
 		this.redisManager = redisManager;
+		this.principalIndex = null;
 	}
 
 	public String getKeyPrefix() {
@@ -302,6 +1701,7 @@ public class RedisSessionDAO extends AbstractSessionDAO {
 
 	public void setKeyPrefix(String keyPrefix) {
 		this.keyPrefix = keyPrefix;
+		this.sessionKeyEncoder = null;
 	}
 
 	public RedisSerializer getKeySerializer() {
@@ -310,6 +1710,26 @@ public class RedisSessionDAO extends AbstractSessionDAO {
 
 	public void setKeySerializer(RedisSerializer keySerializer) {
 		this.keySerializer = keySerializer;
+		this.principalIndex = null;
+		this.sessionKeyEncoder = null;
+	}
+
+	public boolean getCompactKeysEnabled() {
+		return compactKeysEnabled;
+	}
+
+	public void setCompactKeysEnabled(boolean compactKeysEnabled) {
+		this.compactKeysEnabled = compactKeysEnabled;
+		this.sessionKeyEncoder = null;
+	}
+
+	public String getCompactKeyPrefix() {
+		return compactKeyPrefix;
+	}
+
+	public void setCompactKeyPrefix(String compactKeyPrefix) {
+		this.compactKeyPrefix = compactKeyPrefix;
+		this.sessionKeyEncoder = null;
 	}
 
 	public RedisSerializer getValueSerializer() {
@@ -344,6 +1764,221 @@ public class RedisSessionDAO extends AbstractSessionDAO {
 		this.sessionInMemoryEnabled = sessionInMemoryEnabled;
 	}
 
+	public boolean getSessionNearCacheEnabled() {
+		return sessionNearCacheEnabled;
+	}
+
+	public void setSessionNearCacheEnabled(boolean sessionNearCacheEnabled) {
+		this.sessionNearCacheEnabled = sessionNearCacheEnabled;
+	}
+
+	public int getSessionNearCacheMaxSize() {
+		return sessionNearCache.getMaxSize();
+	}
+
+	public void setSessionNearCacheMaxSize(int sessionNearCacheMaxSize) {
+		this.sessionNearCache = new SessionNearCache(sessionNearCacheMaxSize);
+	}
+
+	public SessionNearCache getSessionNearCache() {
+		return sessionNearCache;
+	}
+
+	public boolean getUnknownSessionCacheEnabled() {
+		return unknownSessionCacheEnabled;
+	}
+
+	public void setUnknownSessionCacheEnabled(boolean unknownSessionCacheEnabled) {
+		this.unknownSessionCacheEnabled = unknownSessionCacheEnabled;
+	}
+
+	public int getUnknownSessionCacheMaxSize() {
+		return unknownSessionIds.getMaxSize();
+	}
+
+	public void setUnknownSessionCacheMaxSize(int unknownSessionCacheMaxSize) {
+		this.unknownSessionIds = new UnknownSessionIds(unknownSessionCacheMaxSize, unknownSessionIds.getTimeout());
+	}
+
+	public long getUnknownSessionCacheTimeout() {
+		return unknownSessionIds.getTimeout();
+	}
+
+	public void setUnknownSessionCacheTimeout(long unknownSessionCacheTimeout) {
+		this.unknownSessionIds = new UnknownSessionIds(unknownSessionIds.getMaxSize(), unknownSessionCacheTimeout);
+	}
+
+	public UnknownSessionIds getUnknownSessionIds() {
+		return unknownSessionIds;
+	}
+
+	public boolean getHashStorageEnabled() {
+		return hashStorageEnabled;
+	}
+
+	public void setHashStorageEnabled(boolean hashStorageEnabled) {
+		this.hashStorageEnabled = hashStorageEnabled;
+	}
+
+	public boolean getLazyAttributesEnabled() {
+		return lazyAttributesEnabled;
+	}
+
+	public void setLazyAttributesEnabled(boolean lazyAttributesEnabled) {
+		this.lazyAttributesEnabled = lazyAttributesEnabled;
+	}
+
+	public int getAttributeOffloadThreshold() {
+		return attributeOffloadThreshold;
+	}
+
+	public void setAttributeOffloadThreshold(int attributeOffloadThreshold) {
+		this.attributeOffloadThreshold = attributeOffloadThreshold;
+	}
+
+	public String getAttributeKeyPrefix() {
+		return attributeKeyPrefix;
+	}
+
+	public void setAttributeKeyPrefix(String attributeKeyPrefix) {
+		this.attributeKeyPrefix = attributeKeyPrefix;
+	}
+
+	public int getTouchInterval() {
+		return touchInterval;
+	}
+
+	public void setTouchInterval(int touchInterval) {
+		this.touchInterval = touchInterval;
+		this.principalIndex = null;
+	}
+
+	public boolean getCompareAndSetEnabled() {
+		return compareAndSetEnabled;
+	}
+
+	public void setCompareAndSetEnabled(boolean compareAndSetEnabled) {
+		this.compareAndSetEnabled = compareAndSetEnabled;
+	}
+
+	public boolean getDirtyCheckEnabled() {
+		return dirtyCheckEnabled;
+	}
+
+	public void setDirtyCheckEnabled(boolean dirtyCheckEnabled) {
+		this.dirtyCheckEnabled = dirtyCheckEnabled;
+	}
+
+	public boolean getWriteBehindEnabled() {
+		return writeBehindEnabled;
+	}
+
+	public void setWriteBehindEnabled(boolean writeBehindEnabled) {
+		this.writeBehindEnabled = writeBehindEnabled;
+	}
+
+	public int getWriteBehindWriterCount() {
+		return writeBehindWriterCount;
+	}
+
+	public void setWriteBehindWriterCount(int writeBehindWriterCount) {
+		this.writeBehindWriterCount = writeBehindWriterCount;
+	}
+
+	public int getWriteBehindQueueSize() {
+		return writeBehindQueueSize;
+	}
+
+	public void setWriteBehindQueueSize(int writeBehindQueueSize) {
+		this.writeBehindQueueSize = writeBehindQueueSize;
+	}
+
+	public long getWriteBehindMaxDelay() {
+		return writeBehindMaxDelay;
+	}
+
+	public void setWriteBehindMaxDelay(long writeBehindMaxDelay) {
+		this.writeBehindMaxDelay = writeBehindMaxDelay;
+	}
+
+	/**
+	 * @return write-behind queue, or null if no session has been written behind
+	 */
+	public WriteBehindQueue getWriteBehindQueue() {
+		return writeBehindQueue;
+	}
+
+	public boolean getTouchRefreshExpire() {
+		return touchRefreshExpire;
+	}
+
+	public void setTouchRefreshExpire(boolean touchRefreshExpire) {
+		this.touchRefreshExpire = touchRefreshExpire;
+	}
+
+	public boolean getSessionIndexEnabled() {
+		return sessionIndexEnabled;
+	}
+
+	public void setSessionIndexEnabled(boolean sessionIndexEnabled) {
+		this.sessionIndexEnabled = sessionIndexEnabled;
+	}
+
+	public String getSessionIndexKey() {
+		return sessionIndexKey;
+	}
+
+	public void setSessionIndexKey(String sessionIndexKey) {
+		this.sessionIndexKey = sessionIndexKey;
+	}
+
+	public boolean getPrincipalIndexEnabled() {
+		return principalIndexEnabled;
+	}
+
+	public void setPrincipalIndexEnabled(boolean principalIndexEnabled) {
+		this.principalIndexEnabled = principalIndexEnabled;
+	}
+
+	public String getPrincipalIndexKeyPrefix() {
+		return principalIndexKeyPrefix;
+	}
+
+	public void setPrincipalIndexKeyPrefix(String principalIndexKeyPrefix) {
+		this.principalIndexKeyPrefix = principalIndexKeyPrefix;
+		this.principalIndex = null;
+	}
+
+	public String getSessionPrincipalKeyPrefix() {
+		return sessionPrincipalKeyPrefix;
+	}
+
+	public void setSessionPrincipalKeyPrefix(String sessionPrincipalKeyPrefix) {
+		this.sessionPrincipalKeyPrefix = sessionPrincipalKeyPrefix;
+		this.principalIndex = null;
+	}
+
+	public String getPrincipalIdFieldName() {
+		return principalIdFieldName;
+	}
+
+	public void setPrincipalIdFieldName(String principalIdFieldName) {
+		this.principalIdFieldName = principalIdFieldName;
+		this.fieldPrincipalKeyResolver = null;
+	}
+
+	public PrincipalKeyResolver getPrincipalKeyResolver() {
+		return principalKeyResolver;
+	}
+
+	public void setPrincipalKeyResolver(PrincipalKeyResolver principalKeyResolver) {
+		this.principalKeyResolver = principalKeyResolver;
+	}
+
+	/**
+	 * @return ThreadLocal which holds sessions read by the current thread. Its value is a SessionsInMemory,
+	 * not a Map of SessionInMemory as in older versions.
+	 */
 	public static ThreadLocal getSessionsInThread() {
 		return sessionsInThread;
 	}
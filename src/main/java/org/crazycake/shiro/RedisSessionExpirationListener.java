@@ -0,0 +1,125 @@
+package org.crazycake.shiro;
+
+import org.apache.shiro.session.SessionListener;
+import org.apache.shiro.session.mgt.DefaultSessionManager;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.session.mgt.eis.SessionDAO;
+import org.apache.shiro.util.Destroyable;
+import org.apache.shiro.util.Initializable;
+import org.crazycake.shiro.common.RedisMessageListener;
+import org.crazycake.shiro.common.RedisSubscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fire SessionListener.onExpiration when Redis expires a session key.
+ * Shiro only finds out expired sessions when it validates them, but session keys with expire are removed by Redis silently,
+ * so listeners of SessionManager never know those sessions have expired.
+ * This listener subscribes keyspace notifications of expired keys, and notifies listeners of SessionManager when a session key is expired.
+ *
+ * The session has gone with its key, so listeners get a SimpleSession with session id only.
+ * Notifications are fired and forgotten by Redis: a session expired while the subscription is broken is not notified.
+ * In a cluster of applications, every instance receives the notifications, so listeners should be idempotent.
+ *
+ * Keyspace notifications must be enabled on Redis (on every master in cluster mode):
+ * notify-keyspace-events Ex
+ *
+ * shiro.ini:
+ * sessionExpirationListener = org.crazycake.shiro.RedisSessionExpirationListener
+ * sessionExpirationListener.sessionManager = $sessionManager
+ */
+public class RedisSessionExpirationListener implements RedisMessageListener, Initializable, Destroyable {
+
+    private static Logger logger = LoggerFactory.getLogger(RedisSessionExpirationListener.class);
+
+    private static final String EXPIRED_CHANNEL_PREFIX = "__keyevent@";
+    private static final String EXPIRED_CHANNEL_SUFFIX = "__:expired";
+
+    private DefaultSessionManager sessionManager;
+
+    /**
+     * Redis database of session keys
+     */
+    private int database = 0;
+
+    private RedisSubscription subscription;
+
+    public RedisSessionExpirationListener() {
+    }
+
+    public RedisSessionExpirationListener(DefaultSessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    /**
+     * Subscribe expired keys
+     */
+    @Override
+    public synchronized void init() {
+        if (subscription != null) {
+            return;
+        }
+        byte[] channel = (EXPIRED_CHANNEL_PREFIX + database + EXPIRED_CHANNEL_SUFFIX).getBytes(StandardCharsets.UTF_8);
+        subscription = getSessionDAO().getRedisManager().subscribe(this, channel);
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (subscription != null) {
+            subscription.close();
+            subscription = null;
+        }
+    }
+
+    /**
+     * The message of an expired key notification is the key
+     * @param channel channel
+     * @param message expired key
+     */
+    @Override
+    public void onMessage(byte[] channel, byte[] message) {
+        RedisSessionDAO sessionDAO = getSessionDAO();
+        Serializable sessionId = sessionDAO.getSessionId(message);
+        if (sessionId == null) {
+            return;
+        }
+        logger.debug("session key has expired. session id=" + sessionId);
+        sessionDAO.evictExpiredSession(sessionId);
+        SimpleSession session = new SimpleSession();
+        session.setId(sessionId);
+        for (SessionListener listener : sessionManager.getSessionListeners()) {
+            try {
+                listener.onExpiration(session);
+            } catch (RuntimeException e) {
+                logger.error("notify session expiration error. session id=" + sessionId, e);
+            }
+        }
+    }
+
+    private RedisSessionDAO getSessionDAO() {
+        SessionDAO sessionDAO = sessionManager.getSessionDAO();
+        if (!(sessionDAO instanceof RedisSessionDAO)) {
+            throw new IllegalStateException("SessionDAO of sessionManager must be RedisSessionDAO");
+        }
+        return (RedisSessionDAO) sessionDAO;
+    }
+
+    public DefaultSessionManager getSessionManager() {
+        return sessionManager;
+    }
+
+    public void setSessionManager(DefaultSessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    public int getDatabase() {
+        return database;
+    }
+
+    public void setDatabase(int database) {
+        this.database = database;
+    }
+}
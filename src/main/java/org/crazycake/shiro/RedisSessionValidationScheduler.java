@@ -0,0 +1,138 @@
+package org.crazycake.shiro;
+
+import org.apache.shiro.session.InvalidSessionException;
+import org.apache.shiro.session.mgt.AbstractValidatingSessionManager;
+import org.apache.shiro.session.mgt.DefaultSessionKey;
+import org.apache.shiro.session.mgt.DefaultSessionManager;
+import org.apache.shiro.session.mgt.SessionValidationScheduler;
+import org.apache.shiro.session.mgt.eis.SessionDAO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SessionValidationScheduler which works with RedisSessionDAO.
+ * The default scheduler of Shiro reads and deserializes every session to find out the expired ones, though Redis expires session keys by itself.
+ * This scheduler finds the sessions which might have expired by the expire time of their keys (see RedisSessionDAO.getSessionIdsToValidate),
+ * and only those sessions are read and validated by SessionManager, which fires listeners and deletes them if they are invalid.
+ *
+ * If SessionDAO of SessionManager is not RedisSessionDAO, all sessions are validated as usual.
+ *
+ * shiro.ini:
+ * sessionValidationScheduler = org.crazycake.shiro.RedisSessionValidationScheduler
+ * sessionValidationScheduler.sessionManager = $sessionManager
+ * sessionManager.sessionValidationScheduler = $sessionValidationScheduler
+ */
+public class RedisSessionValidationScheduler implements SessionValidationScheduler, Runnable {
+
+    private static Logger logger = LoggerFactory.getLogger(RedisSessionValidationScheduler.class);
+
+    private static final String DEFAULT_THREAD_NAME_PREFIX = "RedisSessionValidationThread-";
+
+    private DefaultSessionManager sessionManager;
+
+    /**
+     * Interval of validation in milliseconds
+     */
+    private long interval = AbstractValidatingSessionManager.DEFAULT_SESSION_VALIDATION_INTERVAL;
+
+    private String threadNamePrefix = DEFAULT_THREAD_NAME_PREFIX;
+
+    private ScheduledExecutorService service;
+
+    private volatile boolean enabled = false;
+
+    public RedisSessionValidationScheduler() {
+    }
+
+    public RedisSessionValidationScheduler(DefaultSessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void enableSessionValidation() {
+        if (interval > 0L) {
+            final AtomicInteger count = new AtomicInteger(1);
+            service = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                thread.setName(threadNamePrefix + count.getAndIncrement());
+                return thread;
+            });
+            service.scheduleAtFixedRate(this, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        this.enabled = true;
+    }
+
+    @Override
+    public void disableSessionValidation() {
+        if (service != null) {
+            service.shutdownNow();
+        }
+        this.enabled = false;
+    }
+
+    @Override
+    public void run() {
+        SessionDAO sessionDAO = sessionManager.getSessionDAO();
+        if (!(sessionDAO instanceof RedisSessionDAO)) {
+            logger.warn("SessionDAO is not RedisSessionDAO, validate all sessions.");
+            sessionManager.validateSessions();
+            return;
+        }
+        logger.debug("Validating sessions which might have expired...");
+        long startTime = System.currentTimeMillis();
+        int checked = 0;
+        int invalid = 0;
+        try {
+            for (Serializable sessionId : ((RedisSessionDAO) sessionDAO).getSessionIdsToValidate(sessionManager.getGlobalSessionTimeout())) {
+                checked++;
+                try {
+                    // SessionManager validates the session when it's got
+                    sessionManager.getSession(new DefaultSessionKey(sessionId));
+                } catch (InvalidSessionException e) {
+                    logger.debug("Invalidated session with id [" + sessionId + "]");
+                    invalid++;
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Session validation error.", e);
+        }
+        logger.debug("Session validation completed in " + (System.currentTimeMillis() - startTime) + " milliseconds. "
+                + checked + " sessions checked, " + invalid + " sessions invalidated.");
+    }
+
+    public DefaultSessionManager getSessionManager() {
+        return sessionManager;
+    }
+
+    public void setSessionManager(DefaultSessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    public String getThreadNamePrefix() {
+        return threadNamePrefix;
+    }
+
+    public void setThreadNamePrefix(String threadNamePrefix) {
+        this.threadNamePrefix = threadNamePrefix;
+    }
+}
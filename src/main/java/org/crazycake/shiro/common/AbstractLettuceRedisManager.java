@@ -3,12 +3,20 @@ package org.crazycake.shiro.common;
 import io.lettuce.core.*;
 import io.lettuce.core.api.StatefulRedisConnection;
 import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.api.async.RedisScriptingAsyncCommands;
 import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.api.sync.RedisScriptingCommands;
+import io.lettuce.core.pubsub.RedisPubSubAdapter;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.crazycake.shiro.IRedisManager;
 
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
@@ -43,6 +51,12 @@ public abstract class AbstractLettuceRedisManager implements IRedisManager {
      */
     private boolean isAsync = true;
 
+    /**
+     * Whether or not the server knows GETDEL (Redis 6.2+). It's set to false after GETDEL is rejected,
+     * and the GET_DEL script is used instead.
+     */
+    private volatile boolean getDelSupported = true;
+
     /**
      * The number of elements returned at every iteration.
      */
@@ -67,6 +81,13 @@ public abstract class AbstractLettuceRedisManager implements IRedisManager {
     @SuppressWarnings("rawtypes")
     protected abstract StatefulRedisConnection getStatefulConnection();
 
+    /**
+     * Create a connection for pub/sub.
+     *
+     * @return pub/sub connection
+     */
+    protected abstract StatefulRedisPubSubConnection<byte[], byte[]> connectPubSub();
+
     public Duration getTimeout() {
         return timeout;
     }
@@ -143,6 +164,25 @@ public abstract class AbstractLettuceRedisManager implements IRedisManager {
         return value;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] getRange(byte[] key, long start, long end) {
+        if (key == null) {
+            return null;
+        }
+        byte[] value = null;
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                value = LettuceFutures.awaitOrCancel(async.getrange(key, start, end), timeout.getSeconds(), TimeUnit.SECONDS);
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                value = sync.getrange(key, start, end);
+            }
+        }
+        return value;
+    }
+
     @Override
     @SuppressWarnings({"unchecked"})
     public byte[] set(byte[] key, byte[] value, int expire) {
@@ -169,6 +209,45 @@ public abstract class AbstractLettuceRedisManager implements IRedisManager {
         return value;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean compareAndSet(byte[] key, byte[] expectedPrefix, byte[] value, int expire) {
+        if (key == null) {
+            return false;
+        }
+        Long result;
+        byte[][] keys = new byte[][] {key};
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                result = evalCached(async, RedisScripts.COMPARE_AND_SET_SHA1, RedisScripts.COMPARE_AND_SET, ScriptOutputType.INTEGER, keys,
+                        expectedPrefix, value, RedisScripts.toArg(expire));
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                result = evalCached(sync, RedisScripts.COMPARE_AND_SET_SHA1, RedisScripts.COMPARE_AND_SET, ScriptOutputType.INTEGER, keys,
+                        expectedPrefix, value, RedisScripts.toArg(expire));
+            }
+        }
+        return Long.valueOf(1L).equals(result);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void expire(byte[] key, int expire) {
+        if (key == null || expire <= 0) {
+            return;
+        }
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                async.expire(key, expire);
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                sync.expire(key, expire);
+            }
+        }
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public void del(byte[] key) {
@@ -183,6 +262,398 @@ public abstract class AbstractLettuceRedisManager implements IRedisManager {
         }
     }
 
+    @Override
+    public byte[] getDel(byte[] key) {
+        if (key == null) {
+            return null;
+        }
+        byte[][] keys = new byte[][] {key};
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                if (getDelSupported) {
+                    try {
+                        return LettuceFutures.awaitOrCancel(async.getdel(key), timeout.getSeconds(), TimeUnit.SECONDS);
+                    } catch (RedisCommandExecutionException e) {
+                        if (!RedisScripts.isUnknownCommand(e)) {
+                            throw e;
+                        }
+                        getDelSupported = false;
+                    }
+                }
+                return evalCached(async, RedisScripts.GET_DEL_SHA1, RedisScripts.GET_DEL, ScriptOutputType.VALUE, keys);
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                if (getDelSupported) {
+                    try {
+                        return sync.getdel(key);
+                    } catch (RedisCommandExecutionException e) {
+                        if (!RedisScripts.isUnknownCommand(e)) {
+                            throw e;
+                        }
+                        getDelSupported = false;
+                    }
+                }
+                return evalCached(sync, RedisScripts.GET_DEL_SHA1, RedisScripts.GET_DEL, ScriptOutputType.VALUE, keys);
+            }
+        }
+    }
+
+    /**
+     * Run a script by EVALSHA. If the server hasn't cached it yet, it's run by EVAL, which caches it.
+     * @param async async commands
+     * @param sha1 SHA1 digest of script
+     * @param script script
+     * @param type type of result
+     * @param keys keys
+     * @param args arguments
+     * @param <T> type of result
+     * @return result of script
+     */
+    private <T> T evalCached(RedisScriptingAsyncCommands<byte[], byte[]> async, String sha1, String script, ScriptOutputType type,
+                             byte[][] keys, byte[]... args) {
+        try {
+            return LettuceFutures.awaitOrCancel(async.<T>evalsha(sha1, type, keys, args), timeout.getSeconds(), TimeUnit.SECONDS);
+        } catch (RedisCommandExecutionException e) {
+            if (!RedisScripts.isNoScript(e)) {
+                throw e;
+            }
+            return LettuceFutures.awaitOrCancel(async.<T>eval(script, type, keys, args), timeout.getSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Same as evalCached of async commands
+     * @param sync sync commands
+     * @param sha1 SHA1 digest of script
+     * @param script script
+     * @param type type of result
+     * @param keys keys
+     * @param args arguments
+     * @param <T> type of result
+     * @return result of script
+     */
+    private static <T> T evalCached(RedisScriptingCommands<byte[], byte[]> sync, String sha1, String script, ScriptOutputType type,
+                                    byte[][] keys, byte[]... args) {
+        try {
+            return sync.<T>evalsha(sha1, type, keys, args);
+        } catch (RedisCommandExecutionException e) {
+            if (!RedisScripts.isNoScript(e)) {
+                throw e;
+            }
+            return sync.<T>eval(script, type, keys, args);
+        }
+    }
+
+    @Override
+    public long incr(byte[] key) {
+        Long value;
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                value = LettuceFutures.awaitOrCancel(async.incr(key), timeout.getSeconds(), TimeUnit.SECONDS);
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                value = sync.incr(key);
+            }
+        }
+        return value == null ? 0L : value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] hget(byte[] key, byte[] field) {
+        if (key == null) {
+            return null;
+        }
+        byte[] value = null;
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                value = LettuceFutures.awaitOrCancel(async.hget(key, field), timeout.getSeconds(), TimeUnit.SECONDS);
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                value = sync.hget(key, field);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<byte[], byte[]> hgetAll(byte[] key) {
+        if (key == null) {
+            return null;
+        }
+        Map<byte[], byte[]> hash = null;
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                hash = LettuceFutures.awaitOrCancel(async.hgetall(key), timeout.getSeconds(), TimeUnit.SECONDS);
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                hash = sync.hgetall(key);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Get all fields and values of multiple hashes. The async API is always used, so that commands are pipelined.
+     * @param keys keys
+     * @return fields and values
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Map<byte[], byte[]>> mhgetAll(byte[]... keys) {
+        List<Map<byte[], byte[]>> hashes = new ArrayList<>();
+        if (keys == null || keys.length == 0) {
+            return hashes;
+        }
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            RedisAsyncCommands<byte[], byte[]> async = connect.async();
+            List<RedisFuture<Map<byte[], byte[]>>> futures = new ArrayList<>(keys.length);
+            for (byte[] key : keys) {
+                futures.add(async.hgetall(key));
+            }
+            for (RedisFuture<Map<byte[], byte[]>> future : futures) {
+                hashes.add(LettuceFutures.awaitOrCancel(future, timeout.getSeconds(), TimeUnit.SECONDS));
+            }
+        }
+        return hashes;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<byte[]> hkeys(byte[] key) {
+        if (key == null) {
+            return null;
+        }
+        Set<byte[]> fields = new HashSet<>();
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                fields.addAll(LettuceFutures.awaitOrCancel(async.hkeys(key), timeout.getSeconds(), TimeUnit.SECONDS));
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                fields.addAll(sync.hkeys(key));
+            }
+        }
+        return fields;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void hset(byte[] key, Map<byte[], byte[]> hash, int expire) {
+        if (key == null || hash == null || hash.isEmpty()) {
+            return;
+        }
+        byte[][] keys = new byte[][] {key};
+        byte[][] args = RedisScripts.toHashArgs(hash, expire).toArray(new byte[0][]);
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                if (expire > 0) {
+                    evalCached(async, RedisScripts.HSET_EXPIRE_SHA1, RedisScripts.HSET_EXPIRE, ScriptOutputType.INTEGER, keys, args);
+                } else {
+                    async.hset(key, hash);
+                }
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                if (expire > 0) {
+                    evalCached(sync, RedisScripts.HSET_EXPIRE_SHA1, RedisScripts.HSET_EXPIRE, ScriptOutputType.INTEGER, keys, args);
+                } else {
+                    sync.hset(key, hash);
+                }
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void hdel(byte[] key, byte[]... fields) {
+        if (key == null || fields == null || fields.length == 0) {
+            return;
+        }
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                async.hdel(key, fields);
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                sync.hdel(key, fields);
+            }
+        }
+    }
+
+    /**
+     * Get time to live of multiple keys. The async API is always used, so that commands are pipelined.
+     * @param keys keys
+     * @return time to live in milliseconds
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Long> pttl(byte[]... keys) {
+        List<Long> ttls = new ArrayList<>();
+        if (keys == null || keys.length == 0) {
+            return ttls;
+        }
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            RedisAsyncCommands<byte[], byte[]> async = connect.async();
+            List<RedisFuture<Long>> futures = new ArrayList<>(keys.length);
+            for (byte[] key : keys) {
+                futures.add(async.pttl(key));
+            }
+            for (RedisFuture<Long> future : futures) {
+                ttls.add(LettuceFutures.awaitOrCancel(future, timeout.getSeconds(), TimeUnit.SECONDS));
+            }
+        }
+        return ttls;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void zadd(byte[] key, double score, byte[] member) {
+        if (key == null) {
+            return;
+        }
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                async.zadd(key, score, member);
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                sync.zadd(key, score, member);
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void zrem(byte[] key, byte[]... members) {
+        if (key == null || members == null || members.length == 0) {
+            return;
+        }
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                async.zrem(key, members);
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                sync.zrem(key, members);
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public long zcount(byte[] key, double min, double max) {
+        if (key == null) {
+            return 0L;
+        }
+        Long number;
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                number = LettuceFutures.awaitOrCancel(async.zcount(key, toRange(min, max)), timeout.getSeconds(), TimeUnit.SECONDS);
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                number = sync.zcount(key, toRange(min, max));
+            }
+        }
+        return number == null ? 0L : number;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<byte[]> zrangeByScore(byte[] key, double min, double max, int offset, int limit) {
+        List<byte[]> members = new ArrayList<>();
+        if (key == null) {
+            return members;
+        }
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                members.addAll(LettuceFutures.awaitOrCancel(async.zrangebyscore(key, toRange(min, max), Limit.create(offset, limit)),
+                        timeout.getSeconds(), TimeUnit.SECONDS));
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                members.addAll(sync.zrangebyscore(key, toRange(min, max), Limit.create(offset, limit)));
+            }
+        }
+        return members;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public long zremrangeByScore(byte[] key, double min, double max) {
+        if (key == null) {
+            return 0L;
+        }
+        Long removed;
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                removed = LettuceFutures.awaitOrCancel(async.zremrangebyscore(key, toRange(min, max)), timeout.getSeconds(), TimeUnit.SECONDS);
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                removed = sync.zremrangebyscore(key, toRange(min, max));
+            }
+        }
+        return removed == null ? 0L : removed;
+    }
+
+    /**
+     * Convert scores to a Range. Infinite scores are unbounded.
+     * @param min min score
+     * @param max max score
+     * @return Range
+     */
+    private static Range<Double> toRange(double min, double max) {
+        return Range.from(toBoundary(min), toBoundary(max));
+    }
+
+    private static Range.Boundary<Double> toBoundary(double score) {
+        return Double.isInfinite(score) ? Range.Boundary.<Double>unbounded() : Range.Boundary.including(score);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void publish(byte[] channel, byte[] message) {
+        if (channel == null) {
+            return;
+        }
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                async.publish(channel, message);
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                sync.publish(channel, message);
+            }
+        }
+    }
+
+    /**
+     * Subscribe channels with a dedicated pub/sub connection.
+     * Lettuce reconnects the connection and subscribes the channels again after it's broken.
+     * @param listener listener of messages
+     * @param channels channels
+     * @return subscription, which closes the connection
+     */
+    @Override
+    public RedisSubscription subscribe(RedisMessageListener listener, byte[]... channels) {
+        StatefulRedisPubSubConnection<byte[], byte[]> connection = connectPubSub();
+        connection.addListener(new RedisPubSubAdapter<byte[], byte[]>() {
+            @Override
+            public void message(byte[] channel, byte[] message) {
+                listener.onMessage(channel, message);
+            }
+        });
+        connection.sync().subscribe(channels);
+        return connection::close;
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public Long dbSize(byte[] pattern) {
@@ -215,6 +686,69 @@ public abstract class AbstractLettuceRedisManager implements IRedisManager {
         return keys;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterator<List<byte[]>> scan(byte[] pattern) {
+        final ScanArgs scanArgs = ScanArgs.Builder.matches(pattern).limit(count);
+        return new KeyPageIterator() {
+            private KeyScanCursor<byte[]> scanCursor;
+
+            @Override
+            protected List<byte[]> scanPage() {
+                if (scanCursor == null) {
+                    scanCursor = new KeyScanCursor<>();
+                    scanCursor.setCursor(ScanCursor.INITIAL.getCursor());
+                }
+                try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+                    scanCursor = getKeyScanCursor(connect, scanCursor, scanArgs);
+                }
+                if (scanCursor.isFinished()) {
+                    finish();
+                }
+                return scanCursor.getKeys();
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<byte[]> mget(byte[]... keys) {
+        List<byte[]> values = new ArrayList<>();
+        if (keys == null || keys.length == 0) {
+            return values;
+        }
+        List<KeyValue<byte[], byte[]>> keyValues;
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                keyValues = LettuceFutures.awaitOrCancel(async.mget(keys), timeout.getSeconds(), TimeUnit.SECONDS);
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                keyValues = sync.mget(keys);
+            }
+        }
+        for (KeyValue<byte[], byte[]> keyValue : keyValues) {
+            values.add(keyValue.getValueOrElse(null));
+        }
+        return values;
+    }
+
+    @Override
+    public void mdel(byte[]... keys) {
+        if (keys == null || keys.length == 0) {
+            return;
+        }
+        try (StatefulRedisConnection<byte[], byte[]> connect = getStatefulConnection()) {
+            if (isAsync) {
+                RedisAsyncCommands<byte[], byte[]> async = connect.async();
+                LettuceFutures.awaitOrCancel(async.del(keys), timeout.getSeconds(), TimeUnit.SECONDS);
+            } else {
+                RedisCommands<byte[], byte[]> sync = connect.sync();
+                sync.del(keys);
+            }
+        }
+    }
+
     /**
      * get scan cursor result
      *
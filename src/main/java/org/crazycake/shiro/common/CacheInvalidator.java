@@ -0,0 +1,129 @@
+package org.crazycake.shiro.common;
+
+import org.crazycake.shiro.IRedisManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keep local caches of RedisCache in different processes consistent.
+ * When a key is changed or a cache is cleared, a message is published to a Redis channel,
+ * and every other process removes the key from (or clears) its local cache.
+ *
+ * A message is the id of the sender, followed by the type of the message and the Redis key (or the key prefix of the cache).
+ * Messages sent by this process itself are ignored.
+ * Messages are fired and forgotten by Redis: a message published while the subscription is broken is lost,
+ * so values in local caches are still limited by their timeout.
+ */
+public class CacheInvalidator implements RedisMessageListener {
+
+    private static Logger logger = LoggerFactory.getLogger(CacheInvalidator.class);
+
+    private static final int SENDER_ID_LENGTH = 8;
+
+    private static final int HEADER_LENGTH = SENDER_ID_LENGTH + 1;
+
+    private static final byte REMOVE_KEY = 'k';
+
+    private static final byte CLEAR = 'c';
+
+    private final IRedisManager redisManager;
+
+    private final byte[] channel;
+
+    private final long senderId = ThreadLocalRandom.current().nextLong();
+
+    /**
+     * Local caches by the key prefix of their RedisCache
+     */
+    private final Map<ByteBuffer, LocalCache> localCaches = new ConcurrentHashMap<ByteBuffer, LocalCache>();
+
+    private RedisSubscription subscription;
+
+    public CacheInvalidator(IRedisManager redisManager, byte[] channel) {
+        this.redisManager = redisManager;
+        this.channel = channel;
+    }
+
+    /**
+     * Register a local cache, and subscribe the channel if it's not subscribed yet
+     * @param keyPrefix serialized key prefix of the RedisCache
+     * @param localCache local cache
+     */
+    public synchronized void register(byte[] keyPrefix, LocalCache localCache) {
+        localCaches.put(ByteBuffer.wrap(keyPrefix), localCache);
+        if (subscription == null) {
+            subscription = redisManager.subscribe(this, channel);
+        }
+    }
+
+    /**
+     * Unsubscribe the channel
+     */
+    public synchronized void close() {
+        if (subscription != null) {
+            subscription.close();
+            subscription = null;
+        }
+    }
+
+    /**
+     * Tell other processes that a key has been changed or removed
+     * @param key Redis key
+     */
+    public void publishRemove(byte[] key) {
+        publish(REMOVE_KEY, key);
+    }
+
+    /**
+     * Tell other processes that a cache has been cleared
+     * @param keyPrefix serialized key prefix of the RedisCache
+     */
+    public void publishClear(byte[] keyPrefix) {
+        publish(CLEAR, keyPrefix);
+    }
+
+    private void publish(byte type, byte[] payload) {
+        ByteBuffer message = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        message.putLong(senderId).put(type).put(payload);
+        try {
+            redisManager.publish(channel, message.array());
+        } catch (RuntimeException e) {
+            logger.error("publish cache invalidation error.", e);
+        }
+    }
+
+    @Override
+    public void onMessage(byte[] subscribedChannel, byte[] message) {
+        if (message == null || message.length < HEADER_LENGTH) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        if (buffer.getLong() == senderId) {
+            return;
+        }
+        byte type = buffer.get();
+        byte[] payload = Arrays.copyOfRange(message, HEADER_LENGTH, message.length);
+        if (type == CLEAR) {
+            LocalCache localCache = localCaches.get(ByteBuffer.wrap(payload));
+            if (localCache != null) {
+                localCache.clear();
+            }
+        } else if (type == REMOVE_KEY) {
+            // keys don't contain the key prefix unless keySerializer is StringSerializer, so the key is removed from every local cache
+            ByteBuffer key = ByteBuffer.wrap(payload);
+            for (LocalCache localCache : localCaches.values()) {
+                localCache.remove(key);
+            }
+        }
+    }
+
+    public long getSenderId() {
+        return senderId;
+    }
+}
@@ -0,0 +1,83 @@
+package org.crazycake.shiro.common;
+
+import org.crazycake.shiro.IRedisManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Delete keys left behind by a RedisCache whose generation has been moved on by clear().
+ * Keys are scanned and deleted page by page in one background thread, and the thread sleeps pageInterval milliseconds
+ * between pages, so that a sweep doesn't compete with requests for Redis.
+ */
+public class CacheSweeper {
+
+    private static Logger logger = LoggerFactory.getLogger(CacheSweeper.class);
+
+    private static final String THREAD_NAME = "RedisCacheSweeper";
+
+    private final IRedisManager redisManager;
+
+    private final long pageInterval;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, THREAD_NAME);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param redisManager redisManager
+     * @param pageInterval how long to sleep between two pages of keys, in milliseconds
+     */
+    public CacheSweeper(IRedisManager redisManager, long pageInterval) {
+        this.redisManager = redisManager;
+        this.pageInterval = pageInterval;
+    }
+
+    /**
+     * Delete keys matching pattern in background. Sweeps are run one after another.
+     * @param pattern key pattern
+     */
+    public void sweep(final byte[] pattern) {
+        try {
+            executor.execute(() -> run(pattern));
+        } catch (RejectedExecutionException e) {
+            logger.warn("cache sweeper is closed, keys are left to expire.");
+        }
+    }
+
+    private void run(byte[] pattern) {
+        try {
+            Iterator<List<byte[]>> pages = redisManager.scan(pattern);
+            while (pages.hasNext()) {
+                for (byte[] key : pages.next()) {
+                    redisManager.del(key);
+                }
+                if (pageInterval > 0 && pages.hasNext()) {
+                    Thread.sleep(pageInterval);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logger.error("sweep cache error, keys are left to expire.", e);
+        }
+    }
+
+    /**
+     * Stop the sweeper. The running sweep is interrupted.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    public long getPageInterval() {
+        return pageInterval;
+    }
+}
@@ -0,0 +1,78 @@
+package org.crazycake.shiro.common;
+
+import org.apache.shiro.subject.PrincipalCollection;
+import org.crazycake.shiro.exception.CacheManagerPrincipalIdNotAssignedException;
+import org.crazycake.shiro.exception.PrincipalIdNullException;
+import org.crazycake.shiro.exception.PrincipalInstanceException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+/**
+ * Default PrincipalKeyResolver.
+ * If the primary principal is a String, it's the id itself. Otherwise the id is got by the getter of principalIdFieldName.
+ *
+ * The getter is looked up only once for every principal class, and called by a MethodHandle afterwards.
+ */
+public class FieldPrincipalKeyResolver implements PrincipalKeyResolver {
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private final String principalIdFieldName;
+
+    private final ClassValue<MethodHandle> getters = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            return findGetter(type);
+        }
+    };
+
+    public FieldPrincipalKeyResolver(String principalIdFieldName) {
+        this.principalIdFieldName = principalIdFieldName;
+    }
+
+    @Override
+    public String getPrincipalId(PrincipalCollection principals) {
+        Object principalObject = principals.getPrimaryPrincipal();
+        if (principalObject instanceof String) {
+            return (String) principalObject;
+        }
+        MethodHandle getter = getters.get(principalObject.getClass());
+        Object idObj;
+        try {
+            idObj = (Object) getter.invokeExact(principalObject);
+        } catch (Throwable e) {
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            throw new PrincipalInstanceException(principalObject.getClass(), principalIdFieldName, (Exception) e);
+        }
+        if (idObj == null) {
+            throw new PrincipalIdNullException(principalObject.getClass(), principalIdFieldName);
+        }
+        return idObj.toString();
+    }
+
+    private MethodHandle findGetter(Class<?> principalClass) {
+        if (principalIdFieldName == null || "".equals(principalIdFieldName)) {
+            throw new CacheManagerPrincipalIdNotAssignedException();
+        }
+        String getterName = "get" + principalIdFieldName.substring(0, 1).toUpperCase() + principalIdFieldName.substring(1);
+        try {
+            Method getter = principalClass.getMethod(getterName);
+            // principal class might not be public
+            getter.setAccessible(true);
+            return MethodHandles.lookup().unreflect(getter).asType(GETTER_TYPE);
+        } catch (NoSuchMethodException e) {
+            throw new PrincipalInstanceException(principalClass, principalIdFieldName);
+        } catch (IllegalAccessException e) {
+            throw new PrincipalInstanceException(principalClass, principalIdFieldName, e);
+        }
+    }
+
+    public String getPrincipalIdFieldName() {
+        return principalIdFieldName;
+    }
+}
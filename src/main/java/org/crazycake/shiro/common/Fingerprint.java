@@ -0,0 +1,34 @@
+package org.crazycake.shiro.common;
+
+/**
+ * 64-bit FNV-1a hash of bytes.
+ * It's used to tell whether a serialized value has been changed without keeping a copy of it.
+ */
+public final class Fingerprint {
+
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long PRIME = 0x100000001b3L;
+
+    private static final int BYTE_MASK = 0xFF;
+
+    private Fingerprint() {
+    }
+
+    /**
+     * Get fingerprint of bytes
+     * @param bytes bytes
+     * @return fingerprint
+     */
+    public static long of(byte[] bytes) {
+        long hash = OFFSET_BASIS;
+        if (bytes == null) {
+            return hash;
+        }
+        for (byte b : bytes) {
+            hash ^= b & BYTE_MASK;
+            hash *= PRIME;
+        }
+        return hash;
+    }
+}
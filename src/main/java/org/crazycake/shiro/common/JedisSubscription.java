@@ -0,0 +1,109 @@
+package org.crazycake.shiro.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.BinaryJedisPubSub;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.function.Supplier;
+
+/**
+ * Subscription of Jedis. SUBSCRIBE blocks the connection, so it runs in its own daemon thread.
+ * If the connection is broken, for example when master is failed over, channels are subscribed again with a new connection.
+ */
+public class JedisSubscription implements RedisSubscription, Runnable {
+
+    private static Logger logger = LoggerFactory.getLogger(JedisSubscription.class);
+
+    /**
+     * Wait time before subscribing again, in milliseconds
+     */
+    private static final long RETRY_INTERVAL = 1000L;
+
+    private final Supplier<Jedis> jedisSupplier;
+
+    private final RedisMessageListener listener;
+
+    private final byte[][] channels;
+
+    private final Thread thread;
+
+    private volatile BinaryJedisPubSub pubSub;
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param jedisSupplier supplies a connection for every attempt to subscribe
+     * @param listener listener
+     * @param channels channels
+     * @param name name of the thread
+     */
+    public JedisSubscription(Supplier<Jedis> jedisSupplier, RedisMessageListener listener, byte[][] channels, String name) {
+        this.jedisSupplier = jedisSupplier;
+        this.listener = listener;
+        this.channels = channels;
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            try {
+                Jedis jedis = jedisSupplier.get();
+                try {
+                    pubSub = new BinaryJedisPubSub() {
+                        @Override
+                        public void onSubscribe(byte[] channel, int subscribedChannels) {
+                            if (closed) {
+                                unsubscribe();
+                            }
+                        }
+
+                        @Override
+                        public void onMessage(byte[] channel, byte[] message) {
+                            try {
+                                listener.onMessage(channel, message);
+                            } catch (RuntimeException e) {
+                                logger.error("handle message error.", e);
+                            }
+                        }
+                    };
+                    jedis.subscribe(pubSub, channels);
+                } finally {
+                    jedis.close();
+                }
+            } catch (JedisException e) {
+                if (closed) {
+                    return;
+                }
+                logger.warn("subscription is broken, subscribe again in " + RETRY_INTERVAL + " milliseconds.", e);
+                try {
+                    Thread.sleep(RETRY_INTERVAL);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        BinaryJedisPubSub currentPubSub = pubSub;
+        if (currentPubSub != null && currentPubSub.isSubscribed()) {
+            try {
+                currentPubSub.unsubscribe();
+            } catch (JedisException e) {
+                logger.debug("unsubscribe error.", e);
+            }
+        }
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,84 @@
+package org.crazycake.shiro.common;
+
+import org.crazycake.shiro.IRedisManager;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator of key pages returned by SCAN.
+ * Every page is fetched by one SCAN call when it's needed. Empty pages are skipped.
+ *
+ * Subclasses should borrow a connection for each page only, so that an iteration stopped halfway doesn't hold any connection.
+ */
+public abstract class KeyPageIterator implements Iterator<List<byte[]>> {
+
+    private List<byte[]> nextPage;
+
+    private boolean finished = false;
+
+    /**
+     * Fetch the next page of keys. Call finish() when the whole keyspace has been scanned.
+     * @return keys of the page
+     */
+    protected abstract List<byte[]> scanPage();
+
+    /**
+     * No more pages will be fetched after this.
+     */
+    protected void finish() {
+        this.finished = true;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (nextPage == null && !finished) {
+            List<byte[]> page = scanPage();
+            if (page != null && !page.isEmpty()) {
+                nextPage = page;
+            }
+        }
+        return nextPage != null;
+    }
+
+    @Override
+    public List<byte[]> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        List<byte[]> page = nextPage;
+        nextPage = null;
+        return page;
+    }
+
+    /**
+     * Scan keys of several patterns, one pattern after another
+     * @param redisManager redisManager
+     * @param patterns key patterns
+     * @return pages of keys
+     */
+    public static Iterator<List<byte[]>> scan(final IRedisManager redisManager, List<byte[]> patterns) {
+        if (patterns.size() == 1) {
+            return redisManager.scan(patterns.get(0));
+        }
+        final Iterator<byte[]> remainingPatterns = patterns.iterator();
+        return new KeyPageIterator() {
+            private Iterator<List<byte[]>> pages = Collections.emptyIterator();
+
+            @Override
+            protected List<byte[]> scanPage() {
+                if (pages.hasNext()) {
+                    return pages.next();
+                }
+                if (remainingPatterns.hasNext()) {
+                    pages = redisManager.scan(remainingPatterns.next());
+                } else {
+                    finish();
+                }
+                return null;
+            }
+        };
+    }
+}
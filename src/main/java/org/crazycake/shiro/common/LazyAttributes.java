@@ -0,0 +1,230 @@
+package org.crazycake.shiro.common;
+
+import org.crazycake.shiro.IRedisManager;
+import org.crazycake.shiro.exception.SerializationException;
+import org.crazycake.shiro.serializer.RedisSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Attributes of a session read from Redis hash, which are kept as serialized bytes until they are got.
+ * An attribute is deserialized only once, when it's got for the first time.
+ * Attributes which have never been got can be saved with their serialized bytes again, without being deserialized and serialized.
+ *
+ * Attributes which are stored under their own keys (see OffloadedAttribute) are read from Redis when they are got.
+ * put() and remove() don't read them, and return null instead of their previous values.
+ *
+ * If an attribute can't be deserialized, the error is logged and null is returned.
+ */
+public class LazyAttributes extends AbstractMap<Object, Object> {
+
+    private static Logger logger = LoggerFactory.getLogger(LazyAttributes.class);
+
+    /**
+     * Values are either attributes, serialized attributes (SerializedAttribute) or offloaded attributes (OffloadedAttribute)
+     */
+    private final Map<Object, Object> attributes = new HashMap<Object, Object>();
+
+    private final RedisSerializer valueSerializer;
+
+    private final IRedisManager redisManager;
+
+    private final EntrySet entrySet = new EntrySet();
+
+    public LazyAttributes(RedisSerializer valueSerializer) {
+        this(valueSerializer, null);
+    }
+
+    /**
+     * @param valueSerializer serializer of attributes
+     * @param redisManager used to read offloaded attributes
+     */
+    public LazyAttributes(RedisSerializer valueSerializer, IRedisManager redisManager) {
+        this.valueSerializer = valueSerializer;
+        this.redisManager = redisManager;
+    }
+
+    /**
+     * Put a serialized attribute
+     * @param name attribute name
+     * @param value serialized attribute
+     */
+    public void putSerialized(Object name, byte[] value) {
+        attributes.put(name, new SerializedAttribute(value));
+    }
+
+    /**
+     * @param name attribute name
+     * @return serialized attribute, or null if the attribute has been deserialized or doesn't exist
+     */
+    public byte[] getSerialized(Object name) {
+        Object value = attributes.get(name);
+        return value instanceof SerializedAttribute ? ((SerializedAttribute) value).bytes : null;
+    }
+
+    /**
+     * Put an attribute which is stored under its own key
+     * @param name attribute name
+     * @param attribute offloaded attribute
+     */
+    public void putOffloaded(Object name, OffloadedAttribute attribute) {
+        attributes.put(name, attribute);
+    }
+
+    /**
+     * @param name attribute name
+     * @return offloaded attribute, or null if the attribute has been got or isn't offloaded
+     */
+    public OffloadedAttribute getOffloaded(Object name) {
+        Object value = attributes.get(name);
+        return value instanceof OffloadedAttribute ? (OffloadedAttribute) value : null;
+    }
+
+    /**
+     * Copy the attributes. Attributes which haven't been got are still kept serialized in the copy.
+     * @return attributes which can be changed without changing these
+     */
+    public LazyAttributes copy() {
+        LazyAttributes copy = new LazyAttributes(valueSerializer, redisManager);
+        copy.attributes.putAll(attributes);
+        return copy;
+    }
+
+    @Override
+    public Object get(Object name) {
+        Object value = attributes.get(name);
+        if (value instanceof SerializedAttribute || value instanceof OffloadedAttribute) {
+            value = load(name, value);
+            attributes.put(name, value);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return attributes.containsKey(name);
+    }
+
+    @Override
+    public Object put(Object name, Object value) {
+        return getPrevious(name, attributes.put(name, value));
+    }
+
+    @Override
+    public Object remove(Object name) {
+        return getPrevious(name, attributes.remove(name));
+    }
+
+    private Object getPrevious(Object name, Object previous) {
+        if (previous instanceof SerializedAttribute) {
+            return deserialize(name, ((SerializedAttribute) previous).bytes);
+        }
+        return previous instanceof OffloadedAttribute ? null : previous;
+    }
+
+    @Override
+    public int size() {
+        return attributes.size();
+    }
+
+    @Override
+    public void clear() {
+        attributes.clear();
+    }
+
+    @Override
+    public Set<Object> keySet() {
+        return attributes.keySet();
+    }
+
+    @Override
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        return entrySet;
+    }
+
+    private Object load(Object name, Object value) {
+        if (value instanceof SerializedAttribute) {
+            return deserialize(name, ((SerializedAttribute) value).bytes);
+        }
+        byte[] bytes = redisManager.get(((OffloadedAttribute) value).getKey());
+        if (bytes == null) {
+            logger.warn("offloaded session attribute doesn't exist in Redis. attribute name=" + name);
+            return null;
+        }
+        return deserialize(name, bytes);
+    }
+
+    private Object deserialize(Object name, byte[] bytes) {
+        try {
+            return valueSerializer.deserialize(bytes);
+        } catch (SerializationException e) {
+            logger.error("deserialize session attribute error. attribute name=" + name, e);
+            return null;
+        }
+    }
+
+    private static final class SerializedAttribute {
+        private final byte[] bytes;
+
+        private SerializedAttribute(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<Object, Object>> {
+
+        @Override
+        public Iterator<Map.Entry<Object, Object>> iterator() {
+            final Iterator<Map.Entry<Object, Object>> it = attributes.entrySet().iterator();
+            return new Iterator<Map.Entry<Object, Object>>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Map.Entry<Object, Object> next() {
+                    final Map.Entry<Object, Object> entry = it.next();
+                    return new Map.Entry<Object, Object>() {
+                        @Override
+                        public Object getKey() {
+                            return entry.getKey();
+                        }
+
+                        @Override
+                        public Object getValue() {
+                            Object value = entry.getValue();
+                            if (value instanceof SerializedAttribute || value instanceof OffloadedAttribute) {
+                                value = load(entry.getKey(), value);
+                                entry.setValue(value);
+                            }
+                            return value;
+                        }
+
+                        @Override
+                        public Object setValue(Object value) {
+                            return getPrevious(entry.getKey(), entry.setValue(value));
+                        }
+                    };
+                }
+
+                @Override
+                public void remove() {
+                    it.remove();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return attributes.size();
+        }
+    }
+}
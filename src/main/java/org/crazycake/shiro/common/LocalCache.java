@@ -0,0 +1,155 @@
+package org.crazycake.shiro.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded in-process cache in front of RedisCache, shared by all threads of the process.
+ * Values are kept for at most timeout milliseconds, so that a value whose invalidation is missed doesn't stay forever.
+ *
+ * Keys are spread over a fixed number of segments by hash, and every segment is locked on its own,
+ * so that threads reading different keys don't wait for each other. When a segment is full,
+ * its least recently used values are evicted first. So eviction is LRU within a segment, not across the whole cache.
+ *
+ * NOTE: The same value instance is handed out to every thread.
+ */
+public class LocalCache {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * Max number of segments. A small cache has fewer segments, so that every segment holds at least one value.
+     */
+    private static final int MAX_SEGMENTS = 16;
+
+    private final int maxSize;
+
+    private final long timeout;
+
+    private final Segment[] segments;
+
+    /**
+     * @param maxSize max number of values
+     * @param timeout how long a value is kept, in milliseconds
+     */
+    public LocalCache(final int maxSize, long timeout) {
+        this.maxSize = maxSize;
+        this.timeout = timeout;
+        int segmentCount = Math.max(1, Math.min(MAX_SEGMENTS, maxSize));
+        this.segments = new Segment[segmentCount];
+        int remaining = maxSize;
+        for (int i = 0; i < segmentCount; i++) {
+            int segmentSize = remaining / (segmentCount - i);
+            segments[i] = new Segment(segmentSize);
+            remaining -= segmentSize;
+        }
+    }
+
+    /**
+     * @param key key
+     * @return value, or null if it's not cached or has timed out
+     */
+    public Object get(Object key) {
+        return segmentFor(key).get(key);
+    }
+
+    public void put(Object key, Object value) {
+        put(key, value, timeout);
+    }
+
+    /**
+     * @param key key
+     * @param value value
+     * @param valueTimeout how long this value is kept, in milliseconds
+     */
+    public void put(Object key, Object value, long valueTimeout) {
+        segmentFor(key).put(key, new Entry(value, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(valueTimeout)));
+    }
+
+    public void remove(Object key) {
+        segmentFor(key).remove(key);
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    private Segment segmentFor(Object key) {
+        return segments[Math.floorMod(key.hashCode(), segments.length)];
+    }
+
+    /**
+     * Part of the cache with its own lock and LRU order
+     */
+    private static final class Segment {
+        private final Map<Object, Entry> entries;
+
+        private Segment(final int maxSize) {
+            this.entries = new LinkedHashMap<Object, Entry>(INITIAL_CAPACITY, LOAD_FACTOR, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        private synchronized Object get(Object key) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.expireTime >= 0) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+
+        private synchronized void put(Object key, Entry entry) {
+            entries.put(key, entry);
+        }
+
+        private synchronized void remove(Object key) {
+            entries.remove(key);
+        }
+
+        private synchronized void clear() {
+            entries.clear();
+        }
+
+        private synchronized int size() {
+            return entries.size();
+        }
+    }
+
+    private static final class Entry {
+        private final Object value;
+        private final long expireTime;
+
+        private Entry(Object value, long expireTime) {
+            this.value = value;
+            this.expireTime = expireTime;
+        }
+    }
+}
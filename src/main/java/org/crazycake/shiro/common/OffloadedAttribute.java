@@ -0,0 +1,29 @@
+package org.crazycake.shiro.common;
+
+import java.io.Serializable;
+
+/**
+ * Saved in a session instead of an attribute which is stored under its own Redis key (see RedisSessionDAO.attributeOffloadThreshold).
+ * It remembers the key and the fingerprint of the serialized attribute, so that the attribute is only written again when it's changed.
+ */
+public class OffloadedAttribute implements Serializable {
+
+    private static final long serialVersionUID = 6713908125476209114L;
+
+    private final byte[] key;
+
+    private final long fingerprint;
+
+    public OffloadedAttribute(byte[] key, long fingerprint) {
+        this.key = key;
+        this.fingerprint = fingerprint;
+    }
+
+    public byte[] getKey() {
+        return key;
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+}
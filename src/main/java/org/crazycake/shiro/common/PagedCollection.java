@@ -0,0 +1,73 @@
+package org.crazycake.shiro.common;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Read-only collection which loads its elements page by page while it's iterated.
+ * Only the elements of the current page are held in memory.
+ *
+ * Every iteration scans Redis again, so size() and isEmpty() are as expensive as an iteration.
+ * @param <T> element type
+ */
+public class PagedCollection<T> extends AbstractCollection<T> {
+
+    private final Supplier<Iterator<List<byte[]>>> keyPages;
+
+    private final Function<List<byte[]>, Collection<T>> pageLoader;
+
+    /**
+     * @param keyPages supplies a new iterator of key pages for every iteration
+     * @param pageLoader loads the elements of a key page
+     */
+    public PagedCollection(Supplier<Iterator<List<byte[]>>> keyPages, Function<List<byte[]>, Collection<T>> pageLoader) {
+        this.keyPages = keyPages;
+        this.pageLoader = pageLoader;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        final Iterator<List<byte[]>> pageIt = keyPages.get();
+        return new Iterator<T>() {
+            private Iterator<T> elementIt = Collections.<T>emptyList().iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!elementIt.hasNext() && pageIt.hasNext()) {
+                    elementIt = pageLoader.apply(pageIt.next()).iterator();
+                }
+                return elementIt.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return elementIt.next();
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        Iterator<T> it = iterator();
+        while (it.hasNext()) {
+            it.next();
+            size++;
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !iterator().hasNext();
+    }
+}
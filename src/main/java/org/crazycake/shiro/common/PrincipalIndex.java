@@ -0,0 +1,120 @@
+package org.crazycake.shiro.common;
+
+import org.crazycake.shiro.IRedisManager;
+import org.crazycake.shiro.exception.SerializationException;
+import org.crazycake.shiro.serializer.RedisSerializer;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Indexes of sessions by principal, used by RedisSessionDAO.
+ *
+ * Every index is a sorted set at indexKeyPrefix + principal id, whose members are session keys and scores are the time when they expire.
+ * The principal id a session is indexed by is saved at sessionPrincipalKeyPrefix + session id,
+ * so that the session can be removed from the index after its principal is gone, e.g. by logout.
+ * Indexes don't expire, expired members are removed when a session joins the index and when sessions of the principal are read.
+ *
+ * A write which only refreshes the expire time of a session doesn't change the index if the principal is the same.
+ * Such writes happen within touchInterval after lastAccessTime is written, so members are scored by the expire time plus touchInterval,
+ * and stay in the index as long as their sessions.
+ */
+public class PrincipalIndex {
+
+    private static final int MILLISECONDS_IN_A_SECOND = 1000;
+
+    private final IRedisManager redisManager;
+
+    private final RedisSerializer keySerializer;
+
+    private final String indexKeyPrefix;
+
+    private final String sessionPrincipalKeyPrefix;
+
+    private final long touchIntervalMillis;
+
+    /**
+     * @param redisManager redisManager
+     * @param keySerializer serializer of keys
+     * @param indexKeyPrefix prefix of principal index keys
+     * @param sessionPrincipalKeyPrefix prefix of the keys which save the principal id of sessions
+     * @param touchInterval touchInterval of RedisSessionDAO in seconds
+     */
+    public PrincipalIndex(IRedisManager redisManager, RedisSerializer keySerializer, String indexKeyPrefix, String sessionPrincipalKeyPrefix,
+            int touchInterval) {
+        this.redisManager = redisManager;
+        this.keySerializer = keySerializer;
+        this.indexKeyPrefix = indexKeyPrefix;
+        this.sessionPrincipalKeyPrefix = sessionPrincipalKeyPrefix;
+        this.touchIntervalMillis = (long) Math.max(touchInterval, 0) * MILLISECONDS_IN_A_SECOND;
+    }
+
+    /**
+     * Put session key into the index of its principal, and remove it from the index of the principal it was stored with
+     * if the principal has been changed or is gone.
+     * @param key session key
+     * @param sessionId session id
+     * @param principalId id of the principal which is logged in with the session, or null
+     * @param knownStoredPrincipalId an array holding the principal id the session is indexed by, or null if it has to be read from Redis
+     * @param redisExpire expire time of the session key in seconds
+     * @param expireOnly whether the write of the session only refreshes the expire time
+     * @throws SerializationException
+     */
+    public void index(byte[] key, Serializable sessionId, String principalId, String[] knownStoredPrincipalId, int redisExpire, boolean expireOnly)
+            throws SerializationException {
+        byte[] sessionPrincipalKey = getSessionPrincipalKey(sessionId);
+        String storedPrincipalId = knownStoredPrincipalId != null ? knownStoredPrincipalId[0] : getStoredPrincipalId(sessionPrincipalKey);
+        boolean changed = storedPrincipalId == null ? principalId != null : !storedPrincipalId.equals(principalId);
+        if (!changed && expireOnly) {
+            if (principalId != null) {
+                redisManager.expire(sessionPrincipalKey, redisExpire);
+            }
+            return;
+        }
+        if (changed && storedPrincipalId != null) {
+            redisManager.zrem(getIndexKey(storedPrincipalId), key);
+        }
+        if (principalId == null) {
+            if (storedPrincipalId != null) {
+                redisManager.del(sessionPrincipalKey);
+            }
+            return;
+        }
+        byte[] indexKey = getIndexKey(principalId);
+        double expireAt = redisExpire > 0
+                ? System.currentTimeMillis() + touchIntervalMillis + (double) redisExpire * MILLISECONDS_IN_A_SECOND : Double.POSITIVE_INFINITY;
+        redisManager.zadd(indexKey, expireAt, key);
+        if (changed) {
+            redisManager.zremrangeByScore(indexKey, Double.NEGATIVE_INFINITY, System.currentTimeMillis());
+        }
+        redisManager.set(sessionPrincipalKey, principalId.getBytes(StandardCharsets.UTF_8), redisExpire);
+    }
+
+    /**
+     * Remove session key from the index of the principal it was stored with
+     * @param key session key
+     * @param sessionId session id
+     * @throws SerializationException
+     */
+    public void unindex(byte[] key, Serializable sessionId) throws SerializationException {
+        byte[] sessionPrincipalKey = getSessionPrincipalKey(sessionId);
+        String storedPrincipalId = getStoredPrincipalId(sessionPrincipalKey);
+        if (storedPrincipalId != null) {
+            redisManager.zrem(getIndexKey(storedPrincipalId), key);
+            redisManager.del(sessionPrincipalKey);
+        }
+    }
+
+    public byte[] getIndexKey(String principalId) throws SerializationException {
+        return keySerializer.serialize(indexKeyPrefix + principalId);
+    }
+
+    public byte[] getSessionPrincipalKey(Serializable sessionId) throws SerializationException {
+        return keySerializer.serialize(sessionPrincipalKeyPrefix + sessionId);
+    }
+
+    private String getStoredPrincipalId(byte[] sessionPrincipalKey) {
+        byte[] value = redisManager.get(sessionPrincipalKey);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,22 @@
+package org.crazycake.shiro.common;
+
+import org.apache.shiro.subject.PrincipalCollection;
+
+/**
+ * Get an id which identifies a principal in Redis. It's used in keys of RedisCache and in principal indexes of RedisSessionDAO.
+ * Implement it to identify principals without a getter, or by more than one field.
+ * Implementations are called on every get(), put() and remove() of RedisCache, so they should be fast and thread safe.
+ *
+ * shiro.ini:
+ * principalKeyResolver = com.example.UserKeyResolver
+ * cacheManager.principalKeyResolver = $principalKeyResolver
+ */
+public interface PrincipalKeyResolver {
+
+    /**
+     * get id of the primary principal
+     * @param principals principals, which are not empty
+     * @return id
+     */
+    String getPrincipalId(PrincipalCollection principals);
+}
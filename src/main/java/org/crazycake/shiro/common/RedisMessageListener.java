@@ -0,0 +1,14 @@
+package org.crazycake.shiro.common;
+
+/**
+ * Listener of messages received from subscribed Redis channels.
+ */
+public interface RedisMessageListener {
+
+    /**
+     * called when a message is received
+     * @param channel channel
+     * @param message message
+     */
+    void onMessage(byte[] channel, byte[] message);
+}
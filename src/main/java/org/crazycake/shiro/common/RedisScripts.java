@@ -0,0 +1,141 @@
+package org.crazycake.shiro.common;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lua scripts which make several commands atomic on Redis server.
+ */
+public final class RedisScripts {
+
+    /**
+     * KEYS[1]: key, ARGV[1]: expected prefix of the stored value, ARGV[2]: new value, ARGV[3]: expire time in seconds.
+     * Set value only if the stored value starts with the expected prefix. An empty prefix only matches a key which doesn't exist.
+     * Returns 1 if value is set, otherwise 0.
+     */
+    public static final String COMPARE_AND_SET =
+            "local prefix = ARGV[1] "
+            + "if #prefix == 0 then "
+            + "if redis.call('EXISTS', KEYS[1]) == 1 then return 0 end "
+            + "elseif redis.call('GETRANGE', KEYS[1], 0, #prefix - 1) ~= prefix then "
+            + "return 0 "
+            + "end "
+            + "if tonumber(ARGV[3]) > 0 then "
+            + "redis.call('SET', KEYS[1], ARGV[2], 'EX', ARGV[3]) "
+            + "else "
+            + "redis.call('SET', KEYS[1], ARGV[2]) "
+            + "end "
+            + "return 1";
+
+    public static final byte[] COMPARE_AND_SET_BYTES = COMPARE_AND_SET.getBytes(StandardCharsets.UTF_8);
+
+    public static final String COMPARE_AND_SET_SHA1 = sha1(COMPARE_AND_SET);
+
+    public static final byte[] COMPARE_AND_SET_SHA1_BYTES = COMPARE_AND_SET_SHA1.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * KEYS[1]: key.
+     * Get the value and delete the key, like GETDEL of Redis 6.2 but working on older servers as well.
+     * It's only used when the server doesn't know GETDEL.
+     * Returns the value, or nil if key doesn't exist.
+     */
+    public static final String GET_DEL =
+            "local value = redis.call('GET', KEYS[1]) "
+            + "if value then "
+            + "redis.call('DEL', KEYS[1]) "
+            + "end "
+            + "return value";
+
+    public static final byte[] GET_DEL_BYTES = GET_DEL.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * SHA1 digest of GET_DEL, used to call the cached script with EVALSHA
+     */
+    public static final String GET_DEL_SHA1 = sha1(GET_DEL);
+
+    public static final byte[] GET_DEL_SHA1_BYTES = GET_DEL_SHA1.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * KEYS[1]: key, ARGV[1]: expire time in seconds, ARGV[2..]: fields and values.
+     * Set fields of a hash and its expire time atomically. Expire time is not changed if it's not positive.
+     */
+    public static final String HSET_EXPIRE =
+            "redis.call('HSET', KEYS[1], unpack(ARGV, 2)) "
+            + "if tonumber(ARGV[1]) > 0 then "
+            + "redis.call('EXPIRE', KEYS[1], ARGV[1]) "
+            + "end "
+            + "return 1";
+
+    public static final byte[] HSET_EXPIRE_BYTES = HSET_EXPIRE.getBytes(StandardCharsets.UTF_8);
+
+    public static final String HSET_EXPIRE_SHA1 = sha1(HSET_EXPIRE);
+
+    public static final byte[] HSET_EXPIRE_SHA1_BYTES = HSET_EXPIRE_SHA1.getBytes(StandardCharsets.UTF_8);
+
+    private static final String UNKNOWN_COMMAND_ERROR = "ERR unknown command";
+
+    private static final String NO_SCRIPT_ERROR = "NOSCRIPT";
+
+    private RedisScripts() {
+    }
+
+    /**
+     * Whether or not e is the error Redis returns for a command it doesn't know, like GETDEL before Redis 6.2
+     * @param e error thrown by the Redis client
+     * @return true if the command is unknown
+     */
+    public static boolean isUnknownCommand(RuntimeException e) {
+        return e.getMessage() != null && e.getMessage().regionMatches(true, 0, UNKNOWN_COMMAND_ERROR, 0, UNKNOWN_COMMAND_ERROR.length());
+    }
+
+    /**
+     * Whether or not e is the error Redis returns to EVALSHA when the script is not cached yet
+     * @param e error thrown by the Redis client
+     * @return true if the script is not cached
+     */
+    public static boolean isNoScript(RuntimeException e) {
+        return e.getMessage() != null && e.getMessage().startsWith(NO_SCRIPT_ERROR);
+    }
+
+    /**
+     * Arguments of HSET_EXPIRE
+     * @param hash fields and values
+     * @param expire expire time in seconds
+     * @return expire time followed by fields and values
+     */
+    public static List<byte[]> toHashArgs(Map<byte[], byte[]> hash, int expire) {
+        List<byte[]> args = new ArrayList<byte[]>(hash.size() * 2 + 1);
+        args.add(toArg(expire));
+        for (Map.Entry<byte[], byte[]> field : hash.entrySet()) {
+            args.add(field.getKey());
+            args.add(field.getValue());
+        }
+        return args;
+    }
+
+    private static String sha1(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encode a number as an argument of script
+     * @param number number
+     * @return bytes of number
+     */
+    public static byte[] toArg(long number) {
+        return String.valueOf(number).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,12 @@
+package org.crazycake.shiro.common;
+
+/**
+ * Subscription of Redis channels created by IRedisManager.subscribe.
+ */
+public interface RedisSubscription {
+
+    /**
+     * unsubscribe channels and release the connection
+     */
+    void close();
+}
@@ -0,0 +1,195 @@
+package org.crazycake.shiro.common;
+
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.crazycake.shiro.exception.SerializationException;
+import org.crazycake.shiro.serializer.RedisSerializer;
+
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Convert SimpleSession to fields of a Redis hash and back.
+ * Core properties of session are saved in their own fields. Every attribute is saved in its own field as well,
+ * String attribute names are saved as "s:" + name, other attribute names are serialized and saved as "o:" + serialized name.
+ *
+ * Field names are kept as ISO-8859-1 strings, which map to bytes one to one.
+ */
+public class SessionHashCodec {
+
+    public static final String ID = "id";
+    public static final String START_TIMESTAMP = "startTimestamp";
+    public static final String STOP_TIMESTAMP = "stopTimestamp";
+    public static final String LAST_ACCESS_TIME = "lastAccessTime";
+    public static final String TIMEOUT = "timeout";
+    public static final String EXPIRED = "expired";
+    public static final String HOST = "host";
+    public static final String VERSION = "version";
+
+    private static final String STRING_ATTRIBUTE_PREFIX = "s:";
+    private static final String OBJECT_ATTRIBUTE_PREFIX = "o:";
+
+    private static final Charset FIELD_CHARSET = StandardCharsets.ISO_8859_1;
+    private static final Charset TEXT_CHARSET = StandardCharsets.UTF_8;
+
+    private RedisSerializer valueSerializer;
+
+    public SessionHashCodec(RedisSerializer valueSerializer) {
+        this.valueSerializer = valueSerializer;
+    }
+
+    /**
+     * Convert session to hash fields
+     * @param session session
+     * @return field names and values
+     * @throws SerializationException serialize error
+     */
+    public Map<String, byte[]> encode(SimpleSession session) throws SerializationException {
+        Map<String, byte[]> fields = new HashMap<String, byte[]>();
+        fields.put(ID, valueSerializer.serialize(session.getId()));
+        putDate(fields, START_TIMESTAMP, session.getStartTimestamp());
+        putDate(fields, STOP_TIMESTAMP, session.getStopTimestamp());
+        putDate(fields, LAST_ACCESS_TIME, session.getLastAccessTime());
+        fields.put(TIMEOUT, encodeLong(session.getTimeout()));
+        fields.put(EXPIRED, encodeLong(session.isExpired() ? 1L : 0L));
+        if (session.getHost() != null) {
+            fields.put(HOST, session.getHost().getBytes(TEXT_CHARSET));
+        }
+        Map<Object, Object> attributes = session.getAttributes();
+        if (attributes instanceof LazyAttributes) {
+            // attributes which have never been got are saved as they were read
+            LazyAttributes lazyAttributes = (LazyAttributes) attributes;
+            for (Object name : lazyAttributes.keySet()) {
+                byte[] value = lazyAttributes.getSerialized(name);
+                fields.put(getAttributeField(name), value != null ? value : valueSerializer.serialize(lazyAttributes.get(name)));
+            }
+        } else if (attributes != null) {
+            for (Map.Entry<Object, Object> attribute : attributes.entrySet()) {
+                fields.put(getAttributeField(attribute.getKey()), valueSerializer.serialize(attribute.getValue()));
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Convert hash fields to session. Fingerprints of fields and version are remembered by the session.
+     * @param hash hash got from Redis
+     * @return session, or null if hash is empty or incomplete
+     * @throws SerializationException deserialize error
+     */
+    public TrackedSession decode(Map<byte[], byte[]> hash) throws SerializationException {
+        return decode(hash, false);
+    }
+
+    /**
+     * Convert hash fields to session. Fingerprints of fields and version are remembered by the session.
+     * @param hash hash got from Redis
+     * @param lazyAttributes whether attributes are kept serialized until they are got (see LazyAttributes)
+     * @return session, or null if hash is empty or incomplete
+     * @throws SerializationException deserialize error
+     */
+    public TrackedSession decode(Map<byte[], byte[]> hash, boolean lazyAttributes) throws SerializationException {
+        if (hash == null || hash.isEmpty()) {
+            return null;
+        }
+        TrackedSession session = new TrackedSession();
+        Map<String, Long> storedFields = new HashMap<String, Long>();
+        Map<Object, Object> attributes = null;
+        boolean hasId = false;
+        for (Map.Entry<byte[], byte[]> entry : hash.entrySet()) {
+            String field = fromBytes(entry.getKey());
+            byte[] value = entry.getValue();
+            storedFields.put(field, Fingerprint.of(value));
+            switch (field) {
+                case ID:
+                    session.setId((Serializable) valueSerializer.deserialize(value));
+                    hasId = true;
+                    break;
+                case START_TIMESTAMP:
+                    session.setStartTimestamp(new Date(decodeLong(value)));
+                    break;
+                case STOP_TIMESTAMP:
+                    session.setStopTimestamp(new Date(decodeLong(value)));
+                    break;
+                case LAST_ACCESS_TIME:
+                    session.setLastAccessTime(new Date(decodeLong(value)));
+                    break;
+                case TIMEOUT:
+                    session.setTimeout(decodeLong(value));
+                    break;
+                case EXPIRED:
+                    session.setExpired(decodeLong(value) != 0L);
+                    break;
+                case HOST:
+                    session.setHost(new String(value, TEXT_CHARSET));
+                    break;
+                case VERSION:
+                    session.setStoredVersion(decodeLong(value));
+                    break;
+                default:
+                    if (lazyAttributes) {
+                        if (attributes == null) {
+                            attributes = new LazyAttributes(valueSerializer);
+                        }
+                        ((LazyAttributes) attributes).putSerialized(getAttributeName(field), value);
+                        break;
+                    }
+                    if (attributes == null) {
+                        attributes = new HashMap<Object, Object>();
+                    }
+                    attributes.put(getAttributeName(field), valueSerializer.deserialize(value));
+            }
+        }
+        if (!hasId) {
+            // Only some fields were written after the hash had expired
+            return null;
+        }
+        session.setAttributes(attributes);
+        session.setStoredFields(storedFields);
+        session.setStoredLastAccessTime(session.getLastAccessTime());
+        session.setChanged(false);
+        return session;
+    }
+
+    private void putDate(Map<String, byte[]> fields, String field, Date date) {
+        if (date != null) {
+            fields.put(field, encodeLong(date.getTime()));
+        }
+    }
+
+    private String getAttributeField(Object name) throws SerializationException {
+        if (name instanceof String) {
+            return STRING_ATTRIBUTE_PREFIX + fromBytes(((String) name).getBytes(TEXT_CHARSET));
+        }
+        return OBJECT_ATTRIBUTE_PREFIX + fromBytes(valueSerializer.serialize(name));
+    }
+
+    private Object getAttributeName(String field) throws SerializationException {
+        if (field.startsWith(STRING_ATTRIBUTE_PREFIX)) {
+            return new String(toBytes(field.substring(STRING_ATTRIBUTE_PREFIX.length())), TEXT_CHARSET);
+        }
+        if (field.startsWith(OBJECT_ATTRIBUTE_PREFIX)) {
+            return valueSerializer.deserialize(toBytes(field.substring(OBJECT_ATTRIBUTE_PREFIX.length())));
+        }
+        throw new SerializationException("unknown session hash field: " + field);
+    }
+
+    public static byte[] toBytes(String field) {
+        return field.getBytes(FIELD_CHARSET);
+    }
+
+    public static String fromBytes(byte[] field) {
+        return new String(field, FIELD_CHARSET);
+    }
+
+    public static byte[] encodeLong(long value) {
+        return String.valueOf(value).getBytes(FIELD_CHARSET);
+    }
+
+    public static long decodeLong(byte[] value) {
+        return Long.parseLong(new String(value, FIELD_CHARSET));
+    }
+}
@@ -6,7 +6,10 @@ import java.util.Date;
 
 /**
  * Use ThreadLocal as a temporary storage of Session, so that shiro wouldn't keep read redis several times while a request coming.
+ * @deprecated RedisSessionDAO keeps sessions of a thread in SessionsInMemory now, and doesn't use this class any more.
+ * It will be removed in the next major version.
  */
+@Deprecated
 public class SessionInMemory {
     private Session session;
     private Date createTime;
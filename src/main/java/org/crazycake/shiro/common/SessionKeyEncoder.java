@@ -0,0 +1,194 @@
+package org.crazycake.shiro.common;
+
+import org.crazycake.shiro.exception.SerializationException;
+import org.crazycake.shiro.serializer.RedisSerializer;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Encode session ids to session keys and back.
+ *
+ * Session keys are keyPrefix + session id, serialized by keySerializer.
+ * If compactPrefix is set, session ids which are UUIDs in the lowercase form generated by Shiro are saved as compactPrefix
+ * followed by the 16 bytes of the UUID, instead of keyPrefix followed by 36 characters. Other session ids are saved as usual.
+ *
+ * The last session key encoded by every thread is cached, so the key of a session is only built once by a request.
+ * Keys returned by encode() are shared and must not be modified.
+ */
+public class SessionKeyEncoder {
+
+    private static final int UUID_LENGTH = 36;
+
+    private static final int UUID_BYTES = 16;
+
+    private static final int[] DASH_POSITIONS = new int[] {8, 13, 18, 23};
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final int HEX_RADIX = 16;
+
+    private static final int BITS_IN_A_HEX_DIGIT = 4;
+
+    private static final int HEX_DIGIT_MASK = 0xF;
+
+    private static final int BYTE_MASK = 0xFF;
+
+    private static final byte PATTERN_WILDCARD = '*';
+
+    private final String keyPrefix;
+
+    private final RedisSerializer keySerializer;
+
+    private final byte[] compactPrefix;
+
+    private final ThreadLocal<CachedKey> lastKey = new ThreadLocal<CachedKey>();
+
+    /**
+     * @param keyPrefix prefix of session keys
+     * @param keySerializer serializer of session keys
+     * @param compactPrefix prefix of compact session keys, or null if session keys are not compact.
+     *                      It must not be the beginning of keyPrefix, and must not contain characters which are special in Redis patterns.
+     */
+    public SessionKeyEncoder(String keyPrefix, RedisSerializer keySerializer, String compactPrefix) {
+        this.keyPrefix = keyPrefix;
+        this.keySerializer = keySerializer;
+        this.compactPrefix = compactPrefix == null ? null : compactPrefix.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param sessionId session id
+     * @return session key
+     * @throws SerializationException serialize error
+     */
+    public byte[] encode(Serializable sessionId) throws SerializationException {
+        CachedKey cached = lastKey.get();
+        if (cached == null) {
+            cached = new CachedKey();
+            lastKey.set(cached);
+        } else if (sessionId.equals(cached.sessionId)) {
+            return cached.key;
+        }
+        byte[] key;
+        if (compactPrefix != null && isUuid(sessionId)) {
+            key = encodeUuid((String) sessionId);
+        } else {
+            key = keySerializer.serialize(keyPrefix + sessionId);
+        }
+        cached.sessionId = sessionId;
+        cached.key = key;
+        return key;
+    }
+
+    /**
+     * @param key session key
+     * @return session id, or null if it's not a session key
+     * @throws SerializationException deserialize error
+     */
+    public Serializable decode(byte[] key) throws SerializationException {
+        if (isCompact(key)) {
+            return decodeUuid(key);
+        }
+        Object redisKey = keySerializer.deserialize(key);
+        if (redisKey instanceof String && ((String) redisKey).startsWith(keyPrefix)) {
+            return ((String) redisKey).substring(keyPrefix.length());
+        }
+        return null;
+    }
+
+    /**
+     * Patterns which match all session keys. With compact keys, session ids which are not UUIDs are still saved under keyPrefix,
+     * so keys under both prefixes are matched. A key is only matched by one of the patterns.
+     * @return patterns
+     * @throws SerializationException serialize error
+     */
+    public List<byte[]> getPatterns() throws SerializationException {
+        byte[] pattern = keySerializer.serialize(keyPrefix + "*");
+        if (compactPrefix == null || startsWith(compactPrefix, Arrays.copyOf(pattern, pattern.length - 1))) {
+            return Collections.singletonList(pattern);
+        }
+        byte[] compactPattern = Arrays.copyOf(compactPrefix, compactPrefix.length + 1);
+        compactPattern[compactPrefix.length] = PATTERN_WILDCARD;
+        return Arrays.asList(compactPattern, pattern);
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        if (bytes.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isUuid(Serializable sessionId) {
+        if (!(sessionId instanceof String) || ((String) sessionId).length() != UUID_LENGTH) {
+            return false;
+        }
+        String id = (String) sessionId;
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            char c = id.charAt(i);
+            if (isDashPosition(i) ? c != '-' : !((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDashPosition(int position) {
+        for (int dashPosition : DASH_POSITIONS) {
+            if (position == dashPosition) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private byte[] encodeUuid(String sessionId) {
+        byte[] key = Arrays.copyOf(compactPrefix, compactPrefix.length + UUID_BYTES);
+        int offset = compactPrefix.length;
+        int high = -1;
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            if (isDashPosition(i)) {
+                continue;
+            }
+            int digit = Character.digit(sessionId.charAt(i), HEX_RADIX);
+            if (high < 0) {
+                high = digit;
+            } else {
+                key[offset++] = (byte) ((high << BITS_IN_A_HEX_DIGIT) | digit);
+                high = -1;
+            }
+        }
+        return key;
+    }
+
+    private boolean isCompact(byte[] key) {
+        return compactPrefix != null && key != null && key.length == compactPrefix.length + UUID_BYTES && startsWith(key, compactPrefix);
+    }
+
+    private String decodeUuid(byte[] key) {
+        char[] chars = new char[UUID_LENGTH];
+        int position = 0;
+        for (int i = compactPrefix.length; i < key.length; i++) {
+            if (isDashPosition(position)) {
+                chars[position++] = '-';
+            }
+            int b = key[i] & BYTE_MASK;
+            chars[position++] = HEX_DIGITS[b >>> BITS_IN_A_HEX_DIGIT];
+            chars[position++] = HEX_DIGITS[b & HEX_DIGIT_MASK];
+        }
+        return new String(chars);
+    }
+
+    private static final class CachedKey {
+        private Serializable sessionId;
+        private byte[] key;
+    }
+}
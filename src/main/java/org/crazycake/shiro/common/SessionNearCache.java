@@ -0,0 +1,107 @@
+package org.crazycake.shiro.common;
+
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SimpleSession;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of deserialized sessions which is shared by all threads of the process.
+ * Each session is saved together with the version it has in Redis, so that RedisSessionDAO can check
+ * whether it is still up to date by reading the version only. Least recently used sessions are evicted first.
+ *
+ * Sessions are copied when they are put and when they are got, so that threads never share a Session instance
+ * or the stored state a TrackedSession remembers. Only SimpleSession and TrackedSession are cached.
+ */
+public class SessionNearCache {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final int maxSize;
+
+    private final Map<Serializable, VersionedSession> sessions;
+
+    public SessionNearCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.sessions = new LinkedHashMap<Serializable, VersionedSession>(INITIAL_CAPACITY, LOAD_FACTOR, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Serializable, VersionedSession> eldest) {
+                return size() > SessionNearCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param sessionId session id
+     * @return a copy of the cached session with its version, or null if it's not cached
+     */
+    public VersionedSession get(Serializable sessionId) {
+        VersionedSession cached;
+        synchronized (this) {
+            cached = sessions.get(sessionId);
+        }
+        if (cached == null) {
+            return null;
+        }
+        return new VersionedSession(TrackedSession.copyOf((SimpleSession) cached.getSession()), cached.getVersion());
+    }
+
+    /**
+     * Cache a copy of session. Sessions of other classes than SimpleSession and TrackedSession are not cached,
+     * because they can't be copied.
+     * @param sessionId session id
+     * @param session session
+     * @param version version of the session in Redis
+     */
+    public void put(Serializable sessionId, Session session, long version) {
+        if (session == null || (session.getClass() != SimpleSession.class && !(session instanceof TrackedSession))) {
+            remove(sessionId);
+            return;
+        }
+        VersionedSession cached = new VersionedSession(TrackedSession.copyOf((SimpleSession) session), version);
+        synchronized (this) {
+            sessions.put(sessionId, cached);
+        }
+    }
+
+    public synchronized void remove(Serializable sessionId) {
+        sessions.remove(sessionId);
+    }
+
+    public synchronized void clear() {
+        sessions.clear();
+    }
+
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Session and the version it has in Redis
+     */
+    public static class VersionedSession {
+        private final Session session;
+        private final long version;
+
+        public VersionedSession(Session session, long version) {
+            this.session = session;
+            this.version = version;
+        }
+
+        public Session getSession() {
+            return session;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+}
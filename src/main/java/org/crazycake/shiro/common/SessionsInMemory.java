@@ -0,0 +1,147 @@
+package org.crazycake.shiro.common;
+
+import org.apache.shiro.session.Session;
+
+import java.io.Serializable;
+
+/**
+ * Use ThreadLocal as a temporary storage of Session, so that shiro wouldn't keep read redis several times while a request coming.
+ *
+ * A request only touches a few sessions, so they are kept in small fixed-size arrays and found by a linear search.
+ * Create times come from System.nanoTime(), and expired sessions are cleared when they are found,
+ * so nothing is allocated when a session is read or saved.
+ * When it's full, the oldest session is replaced.
+ */
+public class SessionsInMemory {
+
+    public static final int DEFAULT_CAPACITY = 8;
+
+    private final Serializable[] ids;
+
+    private final Session[] sessions;
+
+    private final long[] createTimes;
+
+    public SessionsInMemory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SessionsInMemory(int capacity) {
+        this.ids = new Serializable[capacity];
+        this.sessions = new Session[capacity];
+        this.createTimes = new long[capacity];
+    }
+
+    /**
+     * Get a session which has not expired
+     * @param sessionId session id
+     * @param now current time from System.nanoTime()
+     * @param timeout live time of session in nanoseconds
+     * @return session, or null if it's not found or has expired
+     */
+    public Session get(Serializable sessionId, long now, long timeout) {
+        int i = indexOf(sessionId);
+        if (i < 0) {
+            return null;
+        }
+        if (isExpired(i, now, timeout)) {
+            clear(i);
+            return null;
+        }
+        return sessions[i];
+    }
+
+    /**
+     * Save a session
+     * @param sessionId session id
+     * @param session session
+     * @param now current time from System.nanoTime()
+     */
+    public void put(Serializable sessionId, Session session, long now) {
+        int i = indexOf(sessionId);
+        if (i < 0) {
+            i = indexOfEmptyOrOldest();
+        }
+        ids[i] = sessionId;
+        sessions[i] = session;
+        createTimes[i] = now;
+    }
+
+    /**
+     * Remove a session
+     * @param sessionId session id
+     */
+    public void remove(Serializable sessionId) {
+        int i = indexOf(sessionId);
+        if (i >= 0) {
+            clear(i);
+        }
+    }
+
+    /**
+     * Remove expired sessions
+     * @param now current time from System.nanoTime()
+     * @param timeout live time of session in nanoseconds
+     */
+    public void removeExpired(long now, long timeout) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != null && isExpired(i, now, timeout)) {
+                clear(i);
+            }
+        }
+    }
+
+    /**
+     * @return number of saved sessions, including those which have expired but haven't been removed yet
+     */
+    public int size() {
+        int size = 0;
+        for (Serializable id : ids) {
+            if (id != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        for (Serializable id : ids) {
+            if (id != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(Serializable sessionId) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != null && ids[i].equals(sessionId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOfEmptyOrOldest() {
+        int oldest = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == null) {
+                return i;
+            }
+            if (createTimes[i] - createTimes[oldest] < 0) {
+                oldest = i;
+            }
+        }
+        return oldest;
+    }
+
+    private boolean isExpired(int i, long now, long timeout) {
+        return now - createTimes[i] > timeout;
+    }
+
+    private void clear(int i) {
+        ids[i] = null;
+        sessions[i] = null;
+        createTimes[i] = 0L;
+    }
+}
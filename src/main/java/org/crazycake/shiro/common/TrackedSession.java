@@ -0,0 +1,331 @@
+package org.crazycake.shiro.common;
+
+import org.apache.shiro.session.mgt.SimpleSession;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SimpleSession read from Redis by RedisSessionDAO.
+ * It remembers what is stored in Redis for this session, so that RedisSessionDAO can find out what has been changed since it was read.
+ *
+ * Every change except touch() marks the session as changed.
+ * NOTE: Changes made inside an attribute object can't be noticed unless setAttribute is called again.
+ *
+ * It's serialized as a plain SimpleSession.
+ */
+public class TrackedSession extends SimpleSession {
+
+    private static final long serialVersionUID = 4218163749217836092L;
+
+    /**
+     * Fingerprints of the hash fields stored in Redis
+     */
+    private transient Map<String, Long> storedFields;
+
+    /**
+     * Version stored in Redis
+     */
+    private transient long storedVersion = VersionedValue.NO_VERSION;
+
+    /**
+     * lastAccessTime stored in Redis
+     */
+    private transient Date storedLastAccessTime;
+
+    /**
+     * Fingerprint of the serialized session stored in Redis, or null if it's unknown
+     */
+    private transient Long storedFingerprint;
+
+    /**
+     * Attributes stored under their own keys in Redis, by attribute name
+     */
+    private transient Map<Object, OffloadedAttribute> storedOffloadedAttributes;
+
+    /**
+     * Id of the principal whose index the session is stored in, or null if it's in no principal index
+     */
+    private transient volatile String storedPrincipalId;
+
+    /**
+     * Whether storedPrincipalId is known
+     */
+    private transient volatile boolean principalIdStored;
+
+    /**
+     * Whether anything other than lastAccessTime has been changed since the session was stored
+     */
+    private transient boolean changed;
+
+    /**
+     * Keys of the attributes which have been set or removed since the session was stored
+     */
+    private transient Set<Object> changedAttributeKeys = new HashSet<Object>();
+
+    /**
+     * Whether all attributes have been replaced since the session was stored
+     */
+    private transient boolean attributesReplaced;
+
+    /**
+     * Copy a SimpleSession
+     * @param session session
+     * @return tracked session which is not changed
+     */
+    public static TrackedSession of(SimpleSession session) {
+        TrackedSession trackedSession = new TrackedSession();
+        copy(session, trackedSession);
+        trackedSession.setStoredLastAccessTime(session.getLastAccessTime());
+        trackedSession.setChanged(false);
+        return trackedSession;
+    }
+
+    /**
+     * Copy a session as a plain SimpleSession with other attributes
+     * @param session session
+     * @param attributes attributes of the copy
+     * @return SimpleSession
+     */
+    public static SimpleSession copyOf(SimpleSession session, Map<Object, Object> attributes) {
+        SimpleSession copy = new SimpleSession();
+        copy(session, copy);
+        copy.setAttributes(attributes);
+        return copy;
+    }
+
+    /**
+     * Copy a session with its own attribute map, so that the copy can be changed without changing the session.
+     * Attribute values are not copied.
+     * @param session session
+     * @return TrackedSession which remembers the same stored state and changes as session, or a SimpleSession
+     */
+    public static SimpleSession copyOf(SimpleSession session) {
+        if (!(session instanceof TrackedSession)) {
+            return copyOf(session, copyAttributes(session.getAttributes()));
+        }
+        TrackedSession from = (TrackedSession) session;
+        TrackedSession to = new TrackedSession();
+        copy(from, to);
+        to.setAttributesQuietly(copyAttributes(from.getAttributes()));
+        to.storedFields = from.storedFields == null ? null : new HashMap<String, Long>(from.storedFields);
+        to.storedVersion = from.storedVersion;
+        to.storedLastAccessTime = from.storedLastAccessTime;
+        to.storedFingerprint = from.storedFingerprint;
+        to.storedOffloadedAttributes = from.storedOffloadedAttributes == null ? null
+                : new HashMap<Object, OffloadedAttribute>(from.storedOffloadedAttributes);
+        to.storedPrincipalId = from.storedPrincipalId;
+        to.principalIdStored = from.principalIdStored;
+        to.changed = from.changed;
+        to.changedAttributeKeys = new HashSet<Object>(from.changedAttributeKeys);
+        to.attributesReplaced = from.attributesReplaced;
+        return to;
+    }
+
+    private static Map<Object, Object> copyAttributes(Map<Object, Object> attributes) {
+        if (attributes instanceof LazyAttributes) {
+            return ((LazyAttributes) attributes).copy();
+        }
+        return attributes == null ? null : new HashMap<Object, Object>(attributes);
+    }
+
+    private void setAttributesQuietly(Map<Object, Object> attributes) {
+        super.setAttributes(attributes);
+    }
+
+    private static void copy(SimpleSession from, SimpleSession to) {
+        to.setId(from.getId());
+        to.setStartTimestamp(from.getStartTimestamp());
+        to.setStopTimestamp(from.getStopTimestamp());
+        to.setLastAccessTime(from.getLastAccessTime());
+        to.setTimeout(from.getTimeout());
+        to.setExpired(from.isExpired());
+        to.setHost(from.getHost());
+        to.setAttributes(from.getAttributes());
+    }
+
+    @Override
+    public void setStopTimestamp(Date stopTimestamp) {
+        super.setStopTimestamp(stopTimestamp);
+        this.changed = true;
+    }
+
+    @Override
+    public void setExpired(boolean expired) {
+        super.setExpired(expired);
+        this.changed = true;
+    }
+
+    @Override
+    public void setTimeout(long timeout) {
+        super.setTimeout(timeout);
+        this.changed = true;
+    }
+
+    @Override
+    public void setHost(String host) {
+        super.setHost(host);
+        this.changed = true;
+    }
+
+    @Override
+    public void setAttributes(Map<Object, Object> attributes) {
+        // SimpleSession sets an empty map before the first attribute is set, which doesn't replace anything
+        if (getAttributes() != null || (attributes != null && !attributes.isEmpty())) {
+            this.attributesReplaced = true;
+        }
+        super.setAttributes(attributes);
+        this.changed = true;
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        this.changed = true;
+    }
+
+    @Override
+    protected void expire() {
+        super.expire();
+        this.changed = true;
+    }
+
+    @Override
+    public void setAttribute(Object key, Object value) {
+        super.setAttribute(key, value);
+        this.changed = true;
+        this.changedAttributeKeys.add(key);
+    }
+
+    @Override
+    public Object removeAttribute(Object key) {
+        Object removed = super.removeAttribute(key);
+        this.changed = true;
+        this.changedAttributeKeys.add(key);
+        return removed;
+    }
+
+    /**
+     * Apply changes of this session on the latest session stored by someone else, and make this session the result.
+     * Attributes which have been set or removed here keep their values here, other attributes are taken from the latest session.
+     * lastAccessTime is the later one of both, and the session is stopped or expired if either of them is.
+     * Other properties are kept.
+     * @param latest the latest session stored in Redis
+     */
+    public void rebase(SimpleSession latest) {
+        if (!attributesReplaced) {
+            Map<Object, Object> attributes = new HashMap<Object, Object>();
+            if (latest.getAttributes() != null) {
+                attributes.putAll(latest.getAttributes());
+            }
+            for (Object key : changedAttributeKeys) {
+                Object value = getAttribute(key);
+                if (value == null) {
+                    attributes.remove(key);
+                } else {
+                    attributes.put(key, value);
+                }
+            }
+            super.setAttributes(attributes.isEmpty() ? null : attributes);
+        }
+        Date latestAccessTime = latest.getLastAccessTime();
+        if (latestAccessTime != null && (getLastAccessTime() == null || latestAccessTime.after(getLastAccessTime()))) {
+            setLastAccessTime(latestAccessTime);
+        }
+        if (getStopTimestamp() == null && latest.getStopTimestamp() != null) {
+            super.setStopTimestamp(latest.getStopTimestamp());
+        }
+        if (latest.isExpired()) {
+            super.setExpired(true);
+        }
+    }
+
+    /**
+     * Serialize it as a SimpleSession, so that it can be read without this class
+     * @return SimpleSession
+     */
+    protected Object writeReplace() {
+        SimpleSession session = new SimpleSession();
+        copy(this, session);
+        if (getAttributes() instanceof LazyAttributes) {
+            session.setAttributes(new HashMap<Object, Object>(getAttributes()));
+        }
+        return session;
+    }
+
+    public Map<String, Long> getStoredFields() {
+        return storedFields;
+    }
+
+    public void setStoredFields(Map<String, Long> storedFields) {
+        this.storedFields = storedFields;
+    }
+
+    public long getStoredVersion() {
+        return storedVersion;
+    }
+
+    public void setStoredVersion(long storedVersion) {
+        this.storedVersion = storedVersion;
+    }
+
+    public Date getStoredLastAccessTime() {
+        return storedLastAccessTime;
+    }
+
+    public void setStoredLastAccessTime(Date storedLastAccessTime) {
+        this.storedLastAccessTime = storedLastAccessTime;
+    }
+
+    public Long getStoredFingerprint() {
+        return storedFingerprint;
+    }
+
+    public void setStoredFingerprint(Long storedFingerprint) {
+        this.storedFingerprint = storedFingerprint;
+    }
+
+    public Map<Object, OffloadedAttribute> getStoredOffloadedAttributes() {
+        return storedOffloadedAttributes;
+    }
+
+    public void setStoredOffloadedAttributes(Map<Object, OffloadedAttribute> storedOffloadedAttributes) {
+        this.storedOffloadedAttributes = storedOffloadedAttributes;
+    }
+
+    public String getStoredPrincipalId() {
+        return storedPrincipalId;
+    }
+
+    public boolean isPrincipalIdStored() {
+        return principalIdStored;
+    }
+
+    /**
+     * Remember the principal id stored in Redis for this session. It may be called by a write-behind writer thread.
+     * @param storedPrincipalId principal id, or null if the session is in no principal index
+     */
+    public void setStoredPrincipalId(String storedPrincipalId) {
+        this.storedPrincipalId = storedPrincipalId;
+        this.principalIdStored = true;
+    }
+
+    public boolean isChanged() {
+        return changed;
+    }
+
+    /**
+     * Mark whether the session has been changed. Changes of attributes are forgotten when it's marked as not changed.
+     * @param changed changed
+     */
+    public void setChanged(boolean changed) {
+        this.changed = changed;
+        if (!changed) {
+            this.changedAttributeKeys.clear();
+            this.attributesReplaced = false;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.crazycake.shiro.common;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded cache of session ids which are known not to exist in Redis, shared by all threads of the process.
+ * Requests with expired or forged session ids can be answered without calling Redis.
+ *
+ * Ids are only remembered for a limited time, after which they are looked up in Redis again.
+ * An id can be added with a delay, so that it's only known as unknown after the delay.
+ * When it's full, the ids which were added first are evicted first.
+ */
+public class UnknownSessionIds {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final int maxSize;
+
+    private final long timeout;
+
+    /**
+     * Time (System.nanoTime()) from which every id is known not to exist
+     */
+    private final Map<Serializable, Long> addTimes;
+
+    /**
+     * @param maxSize max number of ids
+     * @param timeout how long an id is remembered, in milliseconds
+     */
+    public UnknownSessionIds(final int maxSize, long timeout) {
+        this.maxSize = maxSize;
+        this.timeout = timeout;
+        this.addTimes = new LinkedHashMap<Serializable, Long>(INITIAL_CAPACITY, LOAD_FACTOR, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Serializable, Long> eldest) {
+                return size() > UnknownSessionIds.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param sessionId session id
+     * @return true if the session is known not to exist
+     */
+    public synchronized boolean contains(Serializable sessionId) {
+        Long addTime = addTimes.get(sessionId);
+        if (addTime == null) {
+            return false;
+        }
+        long age = System.nanoTime() - addTime;
+        if (age >= TimeUnit.MILLISECONDS.toNanos(timeout)) {
+            addTimes.remove(sessionId);
+            return false;
+        }
+        return age >= 0;
+    }
+
+    public synchronized void add(Serializable sessionId) {
+        addTimes.remove(sessionId);
+        addTimes.put(sessionId, System.nanoTime());
+    }
+
+    /**
+     * Add an id which is only known not to exist after delay, e.g. because a new session may reach Redis later.
+     * Adding an id again while it's waiting for its delay doesn't postpone it.
+     * @param sessionId session id
+     * @param delay delay in milliseconds
+     */
+    public synchronized void add(Serializable sessionId, long delay) {
+        if (delay <= 0) {
+            add(sessionId);
+            return;
+        }
+        Long addTime = addTimes.get(sessionId);
+        long now = System.nanoTime();
+        if (addTime != null && now - addTime < TimeUnit.MILLISECONDS.toNanos(timeout)) {
+            return;
+        }
+        addTimes.remove(sessionId);
+        addTimes.put(sessionId, now + TimeUnit.MILLISECONDS.toNanos(delay));
+    }
+
+    public synchronized void remove(Serializable sessionId) {
+        addTimes.remove(sessionId);
+    }
+
+    public synchronized void clear() {
+        addTimes.clear();
+    }
+
+    public synchronized int size() {
+        return addTimes.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+}
@@ -0,0 +1,117 @@
+package org.crazycake.shiro.common;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Layout of a value that carries a version stamp in front of the serialized payload:
+ * 4 bytes of magic number, followed by 8 bytes of version, followed by the payload.
+ *
+ * The version can be read from Redis with GETRANGE without transferring the payload.
+ * Values written without a header are still accepted, they just have no version.
+ */
+public final class VersionedValue {
+
+    private static final byte[] MAGIC = new byte[] {'S', 'R', 'V', 1};
+
+    private static final int VERSION_LENGTH = 8;
+
+    private static final int BITS_IN_A_BYTE = 8;
+
+    private static final int BYTE_MASK = 0xFF;
+
+    /**
+     * The length of the header, which is also the length of a GETRANGE query for the version.
+     */
+    public static final int HEADER_LENGTH = MAGIC.length + VERSION_LENGTH;
+
+    /**
+     * Version of values which don't have a header.
+     */
+    public static final long NO_VERSION = 0L;
+
+    private VersionedValue() {
+    }
+
+    /**
+     * Generate a new random version. It is never NO_VERSION.
+     * @return version
+     */
+    public static long newVersion() {
+        long version;
+        do {
+            version = ThreadLocalRandom.current().nextLong();
+        } while (version == NO_VERSION);
+        return version;
+    }
+
+    /**
+     * Header of a version, which is the prefix of values with this version
+     * @param version version
+     * @return header
+     */
+    public static byte[] header(long version) {
+        return wrap(version, new byte[0]);
+    }
+
+    /**
+     * Put header in front of payload
+     * @param version version
+     * @param payload serialized value
+     * @return value with header
+     */
+    public static byte[] wrap(long version, byte[] payload) {
+        byte[] value = new byte[HEADER_LENGTH + payload.length];
+        System.arraycopy(MAGIC, 0, value, 0, MAGIC.length);
+        for (int i = 0; i < VERSION_LENGTH; i++) {
+            value[MAGIC.length + i] = (byte) (version >>> (BITS_IN_A_BYTE * (VERSION_LENGTH - 1 - i)));
+        }
+        System.arraycopy(payload, 0, value, HEADER_LENGTH, payload.length);
+        return value;
+    }
+
+    /**
+     * Whether value (or the first HEADER_LENGTH bytes of it) starts with a header
+     * @param value value
+     * @return true if value has a header
+     */
+    public static boolean isVersioned(byte[] value) {
+        if (value == null || value.length < HEADER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (value[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read version from value (or the first HEADER_LENGTH bytes of it)
+     * @param value value
+     * @return version, or NO_VERSION if value has no header
+     */
+    public static long getVersion(byte[] value) {
+        if (!isVersioned(value)) {
+            return NO_VERSION;
+        }
+        long version = 0L;
+        for (int i = 0; i < VERSION_LENGTH; i++) {
+            version = (version << BITS_IN_A_BYTE) | (value[MAGIC.length + i] & BYTE_MASK);
+        }
+        return version;
+    }
+
+    /**
+     * Strip header from value
+     * @param value value
+     * @return payload. If value has no header, value itself is returned.
+     */
+    public static byte[] unwrap(byte[] value) {
+        if (!isVersioned(value)) {
+            return value;
+        }
+        return Arrays.copyOfRange(value, HEADER_LENGTH, value.length);
+    }
+}
@@ -0,0 +1,75 @@
+package org.crazycake.shiro.common;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A map whose keys are weakly referenced like WeakHashMap, but compared by identity like IdentityHashMap,
+ * so that two objects which are equal, e.g. two copies of the same session, have their own values.
+ * Entries of keys which have been garbage collected are removed when the map is used. All methods are synchronized.
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class WeakIdentityMap<K, V> {
+
+    private final Map<IdentityWeakReference<K>, V> entries = new HashMap<IdentityWeakReference<K>, V>();
+
+    private final ReferenceQueue<K> queue = new ReferenceQueue<K>();
+
+    public synchronized V get(K key) {
+        expunge();
+        return entries.get(new IdentityWeakReference<K>(key, null));
+    }
+
+    public synchronized void put(K key, V value) {
+        expunge();
+        entries.put(new IdentityWeakReference<K>(key, queue), value);
+    }
+
+    public synchronized void remove(K key) {
+        expunge();
+        entries.remove(new IdentityWeakReference<K>(key, null));
+    }
+
+    public synchronized int size() {
+        expunge();
+        return entries.size();
+    }
+
+    private void expunge() {
+        Reference<? extends K> reference;
+        while ((reference = queue.poll()) != null) {
+            entries.remove(reference);
+        }
+    }
+
+    private static final class IdentityWeakReference<T> extends WeakReference<T> {
+
+        private final int hash;
+
+        IdentityWeakReference(T referent, ReferenceQueue<? super T> queue) {
+            super(referent, queue);
+            this.hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof IdentityWeakReference)) {
+                return false;
+            }
+            Object referent = get();
+            return referent != null && referent == ((IdentityWeakReference<?>) o).get();
+        }
+    }
+}
@@ -3,11 +3,19 @@ package org.crazycake.shiro.common;
 import org.crazycake.shiro.IRedisManager;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.ScanParams;
 import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisDataException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -27,6 +35,8 @@ public abstract class WorkAloneRedisManager implements IRedisManager {
      */
     protected static final int DEFAULT_COUNT = 100;
 
+    private static final String SUBSCRIPTION_THREAD_NAME = "shiro-redis-subscription";
+
     /**
      * The number of elements returned at every iteration.
      */
@@ -37,6 +47,12 @@ public abstract class WorkAloneRedisManager implements IRedisManager {
      */
     private JedisPoolConfig jedisPoolConfig = new JedisPoolConfig();
 
+    /**
+     * Whether or not the server knows GETDEL (Redis 6.2+). It's set to false after GETDEL is rejected,
+     * and the GET_DEL script is used instead.
+     */
+    private volatile boolean getDelSupported = true;
+
     /**
      * get value from redis
      * @param key key
@@ -57,6 +73,28 @@ public abstract class WorkAloneRedisManager implements IRedisManager {
         return value;
     }
 
+    /**
+     * get part of the value from redis
+     * @param key key
+     * @param start start offset
+     * @param end end offset (inclusive)
+     * @return part of the value
+     */
+    @Override
+    public byte[] getRange(byte[] key, long start, long end) {
+        if (key == null) {
+            return null;
+        }
+        byte[] value;
+        Jedis jedis = getJedis();
+        try {
+            value = jedis.getrange(key, start, end);
+        } finally {
+            jedis.close();
+        }
+        return value;
+    }
+
     /**
      * set
      * @param key key
@@ -82,6 +120,47 @@ public abstract class WorkAloneRedisManager implements IRedisManager {
         return value;
     }
 
+    /**
+     * set value only if the stored value starts with expectedPrefix
+     * @param key key
+     * @param expectedPrefix expected prefix of the stored value. An empty prefix only matches a key which doesn't exist
+     * @param value value
+     * @param expireTime expire time in second
+     * @return true if value is set
+     */
+    @Override
+    public boolean compareAndSet(byte[] key, byte[] expectedPrefix, byte[] value, int expireTime) {
+        if (key == null) {
+            return false;
+        }
+        Jedis jedis = getJedis();
+        try {
+            Object result = evalCached(jedis, RedisScripts.COMPARE_AND_SET_SHA1_BYTES, RedisScripts.COMPARE_AND_SET_BYTES, Collections.singletonList(key),
+                    Arrays.asList(expectedPrefix, value, RedisScripts.toArg(expireTime)));
+            return Long.valueOf(1L).equals(result);
+        } finally {
+            jedis.close();
+        }
+    }
+
+    /**
+     * set expire time of key
+     * @param key key
+     * @param expireTime expire time in second
+     */
+    @Override
+    public void expire(byte[] key, int expireTime) {
+        if (key == null || expireTime <= 0) {
+            return;
+        }
+        Jedis jedis = getJedis();
+        try {
+            jedis.expire(key, expireTime);
+        } finally {
+            jedis.close();
+        }
+    }
+
     /**
      * Delete a key-value pair.
      * @param key key
@@ -99,6 +178,336 @@ public abstract class WorkAloneRedisManager implements IRedisManager {
         }
     }
 
+    /**
+     * get value and del key. GETDEL is used if the server knows it, otherwise the GET_DEL script is run by EVALSHA.
+     * @param key key
+     * @return value
+     */
+    @Override
+    public byte[] getDel(byte[] key) {
+        if (key == null) {
+            return null;
+        }
+        Jedis jedis = getJedis();
+        try {
+            if (getDelSupported) {
+                try {
+                    return jedis.getDel(key);
+                } catch (JedisDataException e) {
+                    if (!RedisScripts.isUnknownCommand(e)) {
+                        throw e;
+                    }
+                    getDelSupported = false;
+                }
+            }
+            return (byte[]) evalCached(jedis, RedisScripts.GET_DEL_SHA1_BYTES, RedisScripts.GET_DEL_BYTES,
+                    Collections.singletonList(key), Collections.<byte[]>emptyList());
+        } finally {
+            jedis.close();
+        }
+    }
+
+    /**
+     * Run a script by EVALSHA. If the server hasn't cached it yet, it's run by EVAL, which caches it.
+     * @param jedis jedis
+     * @param sha1 SHA1 digest of script
+     * @param script script
+     * @param keys keys
+     * @param args arguments
+     * @return result of script
+     */
+    private static Object evalCached(Jedis jedis, byte[] sha1, byte[] script, List<byte[]> keys, List<byte[]> args) {
+        try {
+            return jedis.evalsha(sha1, keys, args);
+        } catch (JedisDataException e) {
+            if (!RedisScripts.isNoScript(e)) {
+                throw e;
+            }
+            return jedis.eval(script, keys, args);
+        }
+    }
+
+    /**
+     * incr
+     * @param key key
+     * @return value after the increment
+     */
+    @Override
+    public long incr(byte[] key) {
+        Long value;
+        Jedis jedis = getJedis();
+        try {
+            value = jedis.incr(key);
+        } finally {
+            jedis.close();
+        }
+        return value == null ? 0L : value;
+    }
+
+    /**
+     * get value of a hash field
+     * @param key key
+     * @param field field
+     * @return value
+     */
+    @Override
+    public byte[] hget(byte[] key, byte[] field) {
+        if (key == null) {
+            return null;
+        }
+        byte[] value;
+        Jedis jedis = getJedis();
+        try {
+            value = jedis.hget(key, field);
+        } finally {
+            jedis.close();
+        }
+        return value;
+    }
+
+    /**
+     * get all fields and values of a hash
+     * @param key key
+     * @return fields and values
+     */
+    @Override
+    public Map<byte[], byte[]> hgetAll(byte[] key) {
+        if (key == null) {
+            return null;
+        }
+        Map<byte[], byte[]> hash;
+        Jedis jedis = getJedis();
+        try {
+            hash = jedis.hgetAll(key);
+        } finally {
+            jedis.close();
+        }
+        return hash;
+    }
+
+    /**
+     * get all fields and values of multiple hashes by a pipeline
+     * @param keys keys
+     * @return fields and values
+     */
+    @Override
+    public List<Map<byte[], byte[]>> mhgetAll(byte[]... keys) {
+        List<Map<byte[], byte[]>> hashes = new ArrayList<Map<byte[], byte[]>>();
+        if (keys == null || keys.length == 0) {
+            return hashes;
+        }
+        List<Response<Map<byte[], byte[]>>> responses = new ArrayList<Response<Map<byte[], byte[]>>>(keys.length);
+        Jedis jedis = getJedis();
+        try {
+            Pipeline pipeline = jedis.pipelined();
+            for (byte[] key : keys) {
+                responses.add(pipeline.hgetAll(key));
+            }
+            pipeline.sync();
+        } finally {
+            jedis.close();
+        }
+        for (Response<Map<byte[], byte[]>> response : responses) {
+            hashes.add(response.get());
+        }
+        return hashes;
+    }
+
+    /**
+     * get all field names of a hash
+     * @param key key
+     * @return field names
+     */
+    @Override
+    public Set<byte[]> hkeys(byte[] key) {
+        if (key == null) {
+            return null;
+        }
+        Set<byte[]> fields;
+        Jedis jedis = getJedis();
+        try {
+            fields = jedis.hkeys(key);
+        } finally {
+            jedis.close();
+        }
+        return fields;
+    }
+
+    /**
+     * set fields of a hash
+     * @param key key
+     * @param hash fields and values
+     * @param expireTime expire time in second
+     */
+    @Override
+    public void hset(byte[] key, Map<byte[], byte[]> hash, int expireTime) {
+        if (key == null || hash == null || hash.isEmpty()) {
+            return;
+        }
+        Jedis jedis = getJedis();
+        try {
+            if (expireTime > 0) {
+                evalCached(jedis, RedisScripts.HSET_EXPIRE_SHA1_BYTES, RedisScripts.HSET_EXPIRE_BYTES,
+                        Collections.singletonList(key), RedisScripts.toHashArgs(hash, expireTime));
+            } else {
+                jedis.hset(key, hash);
+            }
+        } finally {
+            jedis.close();
+        }
+    }
+
+    /**
+     * delete fields of a hash
+     * @param key key
+     * @param fields fields
+     */
+    @Override
+    public void hdel(byte[] key, byte[]... fields) {
+        if (key == null || fields == null || fields.length == 0) {
+            return;
+        }
+        Jedis jedis = getJedis();
+        try {
+            jedis.hdel(key, fields);
+        } finally {
+            jedis.close();
+        }
+    }
+
+    /**
+     * get time to live of multiple keys by a pipeline
+     * @param keys keys
+     * @return time to live in milliseconds
+     */
+    @Override
+    public List<Long> pttl(byte[]... keys) {
+        List<Long> ttls = new ArrayList<Long>();
+        if (keys == null || keys.length == 0) {
+            return ttls;
+        }
+        List<Response<Long>> responses = new ArrayList<Response<Long>>(keys.length);
+        Jedis jedis = getJedis();
+        try {
+            Pipeline pipeline = jedis.pipelined();
+            for (byte[] key : keys) {
+                responses.add(pipeline.pttl(key));
+            }
+            pipeline.sync();
+        } finally {
+            jedis.close();
+        }
+        for (Response<Long> response : responses) {
+            ttls.add(response.get());
+        }
+        return ttls;
+    }
+
+    /**
+     * add a member to a sorted set
+     * @param key key
+     * @param score score
+     * @param member member
+     */
+    @Override
+    public void zadd(byte[] key, double score, byte[] member) {
+        if (key == null) {
+            return;
+        }
+        Jedis jedis = getJedis();
+        try {
+            jedis.zadd(key, score, member);
+        } finally {
+            jedis.close();
+        }
+    }
+
+    /**
+     * remove members from a sorted set
+     * @param key key
+     * @param members members
+     */
+    @Override
+    public void zrem(byte[] key, byte[]... members) {
+        if (key == null || members == null || members.length == 0) {
+            return;
+        }
+        Jedis jedis = getJedis();
+        try {
+            jedis.zrem(key, members);
+        } finally {
+            jedis.close();
+        }
+    }
+
+    /**
+     * count members of a sorted set by score
+     * @param key key
+     * @param min min score
+     * @param max max score
+     * @return number of members
+     */
+    @Override
+    public long zcount(byte[] key, double min, double max) {
+        if (key == null) {
+            return 0L;
+        }
+        Long number;
+        Jedis jedis = getJedis();
+        try {
+            number = jedis.zcount(key, min, max);
+        } finally {
+            jedis.close();
+        }
+        return number == null ? 0L : number;
+    }
+
+    /**
+     * get members of a sorted set by score
+     * @param key key
+     * @param min min score
+     * @param max max score
+     * @param offset offset
+     * @param limit limit
+     * @return members
+     */
+    @Override
+    public List<byte[]> zrangeByScore(byte[] key, double min, double max, int offset, int limit) {
+        List<byte[]> members = new ArrayList<byte[]>();
+        if (key == null) {
+            return members;
+        }
+        Jedis jedis = getJedis();
+        try {
+            members.addAll(jedis.zrangeByScore(key, min, max, offset, limit));
+        } finally {
+            jedis.close();
+        }
+        return members;
+    }
+
+    /**
+     * remove members of a sorted set by score
+     * @param key key
+     * @param min min score
+     * @param max max score
+     * @return number of removed members
+     */
+    @Override
+    public long zremrangeByScore(byte[] key, double min, double max) {
+        if (key == null) {
+            return 0L;
+        }
+        Long removed;
+        Jedis jedis = getJedis();
+        try {
+            removed = jedis.zremrangeByScore(key, min, max);
+        } finally {
+            jedis.close();
+        }
+        return removed == null ? 0L : removed;
+    }
+
     /**
      * Return the size of redis db.
      * @param pattern key pattern
@@ -154,6 +563,105 @@ public abstract class WorkAloneRedisManager implements IRedisManager {
 
     }
 
+    /**
+     * Scan keys of Redis db page by page. Filtered by pattern.
+     * @param pattern key pattern
+     * @return iterator of key pages
+     */
+    @Override
+    public Iterator<List<byte[]>> scan(final byte[] pattern) {
+        final ScanParams params = new ScanParams();
+        params.count(count);
+        params.match(pattern);
+        return new KeyPageIterator() {
+            private byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+
+            @Override
+            protected List<byte[]> scanPage() {
+                ScanResult<byte[]> scanResult;
+                Jedis jedis = getJedis();
+                try {
+                    scanResult = jedis.scan(cursor, params);
+                } finally {
+                    jedis.close();
+                }
+                cursor = scanResult.getCursorAsBytes();
+                if (scanResult.getCursor().compareTo(ScanParams.SCAN_POINTER_START) <= 0) {
+                    finish();
+                }
+                return scanResult.getResult();
+            }
+        };
+    }
+
+    /**
+     * get values of multiple keys by one MGET
+     * @param keys keys
+     * @return values
+     */
+    @Override
+    public List<byte[]> mget(byte[]... keys) {
+        if (keys == null || keys.length == 0) {
+            return new ArrayList<byte[]>();
+        }
+        List<byte[]> values;
+        Jedis jedis = getJedis();
+        try {
+            values = jedis.mget(keys);
+        } finally {
+            jedis.close();
+        }
+        return values;
+    }
+
+    /**
+     * delete multiple keys by one DEL
+     * @param keys keys
+     */
+    @Override
+    public void mdel(byte[]... keys) {
+        if (keys == null || keys.length == 0) {
+            return;
+        }
+        Jedis jedis = getJedis();
+        try {
+            jedis.del(keys);
+        } finally {
+            jedis.close();
+        }
+    }
+
+    /**
+     * publish a message
+     * @param channel channel
+     * @param message message
+     */
+    @Override
+    public void publish(byte[] channel, byte[] message) {
+        if (channel == null) {
+            return;
+        }
+        Jedis jedis = getJedis();
+        try {
+            jedis.publish(channel, message);
+        } finally {
+            jedis.close();
+        }
+    }
+
+    /**
+     * subscribe channels in a daemon thread. A connection is held by the subscription until it's closed.
+     * @param listener listener of messages
+     * @param channels channels
+     * @return subscription
+     */
+    @Override
+    public RedisSubscription subscribe(RedisMessageListener listener, byte[]... channels) {
+        JedisSubscription subscription = new JedisSubscription(this::getJedis, listener, channels, SUBSCRIPTION_THREAD_NAME);
+        subscription.start();
+        return subscription;
+    }
+
     public int getCount() {
         return count;
     }
@@ -0,0 +1,343 @@
+package org.crazycake.shiro.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs writes of sessions in background writer threads, so that requests don't wait for Redis.
+ *
+ * Writes of the same session always go to the same writer and run in the order they are submitted.
+ * A write which overwrites the whole session (or deletes it) drops the writes of this session which are still waiting,
+ * except those submitted as not droppable, e.g. writes of keys which the later writes rely on.
+ * A writer waits at most maxDelay milliseconds after a write is submitted, then runs all waiting writes as a batch.
+ * When a writer has queueSize writes waiting, submit() blocks until they are written.
+ * While the writes of a session are running, only flush() of the same session, and submit() of it which runs in the current thread, wait for them.
+ *
+ * Writes are only logged and counted when they fail, and are not retried.
+ */
+public class WriteBehindQueue {
+
+    private static Logger logger = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    private final Writer[] writers;
+
+    private final int queueSize;
+
+    private final long maxDelay;
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param writerCount number of writer threads
+     * @param queueSize max number of waiting writes of every writer
+     * @param maxDelay max time in milliseconds a write waits before it's run
+     * @param threadNamePrefix prefix of writer thread names
+     */
+    public WriteBehindQueue(int writerCount, int queueSize, long maxDelay, String threadNamePrefix) {
+        this.queueSize = queueSize;
+        this.maxDelay = maxDelay;
+        this.writers = new Writer[writerCount];
+        for (int i = 0; i < writerCount; i++) {
+            writers[i] = new Writer(threadNamePrefix + i);
+            writers[i].thread.start();
+        }
+    }
+
+    /**
+     * Submit a write of a session. After the queue is closed, the write runs in the current thread.
+     * @param sessionId session id
+     * @param write write
+     * @param overwrite whether the write overwrites the whole session, so that writes of the session still waiting can be dropped
+     */
+    public void submit(Serializable sessionId, Runnable write, boolean overwrite) {
+        submit(sessionId, write, overwrite, true);
+    }
+
+    /**
+     * Submit a write of a session. After the queue is closed, the write runs in the current thread.
+     * @param sessionId session id
+     * @param write write
+     * @param overwrite whether the write overwrites the whole session, so that writes of the session still waiting can be dropped
+     * @param droppable whether the write can be dropped by a later write which overwrites the whole session
+     */
+    public void submit(Serializable sessionId, Runnable write, boolean overwrite, boolean droppable) {
+        Writer writer = getWriter(sessionId);
+        List<Runnable> writes;
+        synchronized (writer) {
+            while (writer.size >= queueSize && !closed) {
+                try {
+                    writer.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (!closed && writer.size < queueSize) {
+                writes = writer.pending.get(sessionId);
+                if (writes == null) {
+                    writes = new ArrayList<Runnable>();
+                    writer.pending.put(sessionId, writes);
+                } else if (overwrite) {
+                    int size = writes.size();
+                    writes.removeIf(waiting -> !(waiting instanceof KeptWrite));
+                    writer.size -= size - writes.size();
+                }
+                writes.add(droppable ? write : new KeptWrite(write));
+                if (writer.size == 0) {
+                    writer.firstSubmitTime = System.currentTimeMillis();
+                }
+                writer.size++;
+                writer.notifyAll();
+                return;
+            }
+            writes = writer.takeForCurrentThread(sessionId);
+        }
+        writes.add(write);
+        writer.runWrites(sessionId, writes);
+    }
+
+    /**
+     * Run waiting writes of a session in the current thread, so that the session can be read from Redis.
+     * @param sessionId session id
+     */
+    public void flush(Serializable sessionId) {
+        Writer writer = getWriter(sessionId);
+        List<Runnable> writes;
+        synchronized (writer) {
+            while (writer.running.contains(sessionId)) {
+                try {
+                    writer.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            writes = writer.pending.remove(sessionId);
+            if (writes == null) {
+                return;
+            }
+            writer.size -= writes.size();
+            writer.running.add(sessionId);
+            writer.notifyAll();
+        }
+        writer.runWrites(sessionId, writes);
+    }
+
+    /**
+     * Run all waiting writes and stop writer threads. Writes submitted later run in the current thread.
+     */
+    public void close() {
+        closed = true;
+        for (Writer writer : writers) {
+            synchronized (writer) {
+                writer.notifyAll();
+            }
+        }
+        for (Writer writer : writers) {
+            try {
+                writer.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return number of writes waiting
+     */
+    public int size() {
+        int size = 0;
+        for (Writer writer : writers) {
+            synchronized (writer) {
+                size += writer.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return number of writes which have failed
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    private Writer getWriter(Serializable sessionId) {
+        return writers[(sessionId.hashCode() & Integer.MAX_VALUE) % writers.length];
+    }
+
+    private void run(Serializable sessionId, Runnable write) {
+        try {
+            write.run();
+        } catch (RuntimeException e) {
+            failedCount.incrementAndGet();
+            logger.error("write session error. session id=" + sessionId, e);
+        }
+    }
+
+    /**
+     * A waiting write which is not dropped by later writes overwriting the whole session
+     */
+    private static final class KeptWrite implements Runnable {
+
+        private final Runnable write;
+
+        KeptWrite(Runnable write) {
+            this.write = write;
+        }
+
+        @Override
+        public void run() {
+            write.run();
+        }
+    }
+
+    private class Writer implements Runnable {
+
+        private final Thread thread;
+
+        private final Map<Serializable, List<Runnable>> pending = new LinkedHashMap<Serializable, List<Runnable>>();
+
+        /**
+         * Sessions whose writes are running, so that newer writes of a session don't run before older ones are done
+         */
+        private final Set<Serializable> running = new HashSet<Serializable>();
+
+        private int size = 0;
+
+        private long firstSubmitTime;
+
+        Writer(String name) {
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Map<Serializable, List<Runnable>> batch;
+                try {
+                    if (!awaitWrites()) {
+                        return;
+                    }
+                    batch = takeBatch();
+                } catch (InterruptedException e) {
+                    logger.warn("write-behind writer is interrupted, " + size() + " writes are waiting.");
+                    return;
+                }
+                for (Map.Entry<Serializable, List<Runnable>> writes : batch.entrySet()) {
+                    runWrites(writes.getKey(), writes.getValue());
+                }
+            }
+        }
+
+        /**
+         * Take all waiting writes except those of sessions being flushed, which are left for the next batch
+         * @return waiting writes by session id
+         * @throws InterruptedException
+         */
+        private synchronized Map<Serializable, List<Runnable>> takeBatch() throws InterruptedException {
+            Map<Serializable, List<Runnable>> batch = new LinkedHashMap<Serializable, List<Runnable>>();
+            Iterator<Map.Entry<Serializable, List<Runnable>>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Serializable, List<Runnable>> writes = it.next();
+                if (running.add(writes.getKey())) {
+                    batch.put(writes.getKey(), writes.getValue());
+                    size -= writes.getValue().size();
+                    it.remove();
+                }
+            }
+            if (size > 0) {
+                firstSubmitTime = System.currentTimeMillis();
+                if (batch.isEmpty() && closed) {
+                    // awaitWrites() doesn't wait after close, so wait here for the flush to be done
+                    wait(maxDelay);
+                }
+            }
+            notifyAll();
+            return batch;
+        }
+
+        /**
+         * Wait until writes of a session are not running, then take its waiting writes and add it to running,
+         * so that the caller can run them and a newer write in its own thread without other writes of the session in between.
+         * It has to be called while holding the lock of this writer.
+         * @param sessionId session id
+         * @return waiting writes of the session, which may be empty
+         */
+        private List<Runnable> takeForCurrentThread(Serializable sessionId) {
+            boolean interrupted = false;
+            while (running.contains(sessionId)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // running writes end soon, and the order of writes must be kept
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            List<Runnable> writes = pending.remove(sessionId);
+            if (writes == null) {
+                writes = new ArrayList<Runnable>();
+            } else {
+                size -= writes.size();
+            }
+            running.add(sessionId);
+            notifyAll();
+            return writes;
+        }
+
+        /**
+         * Run writes of a session which has been added to running, then let flush() of the session go on
+         * @param sessionId session id
+         * @param writes writes
+         */
+        private void runWrites(Serializable sessionId, List<Runnable> writes) {
+            try {
+                for (Runnable write : writes) {
+                    WriteBehindQueue.this.run(sessionId, write);
+                }
+            } finally {
+                synchronized (this) {
+                    running.remove(sessionId);
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Wait until there are writes which have waited for maxDelay, or the queue is closed
+         * @return false if the queue is closed and no write is waiting
+         * @throws InterruptedException
+         */
+        private synchronized boolean awaitWrites() throws InterruptedException {
+            while (size == 0 && !closed) {
+                wait();
+            }
+            if (size == 0) {
+                return false;
+            }
+            long delay = firstSubmitTime + maxDelay - System.currentTimeMillis();
+            while (delay > 0 && !closed && size > 0) {
+                wait(delay);
+                delay = firstSubmitTime + maxDelay - System.currentTimeMillis();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.crazycake.shiro.serializer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.crazycake.shiro.exception.SerializationException;
+
+/**
+ * Compress values serialized by another serializer with Deflater of JDK.
+ * Only values which are at least threshold bytes long are compressed. Compressed values start with a magic header,
+ * followed by the length of the uncompressed value, so values which are not compressed (including values written before
+ * this serializer is used) can still be read.
+ *
+ * shiro.ini:
+ * sessionValueSerializer = org.crazycake.shiro.serializer.CompressingSerializer
+ * sessionValueSerializer.threshold = 1024
+ * redisSessionDAO.valueSerializer = $sessionValueSerializer
+ */
+public class CompressingSerializer<T> implements RedisSerializer<T> {
+
+    private static final byte[] MAGIC = new byte[] {'S', 'R', 'Z', 1};
+
+    private static final int LENGTH_BYTES = 4;
+
+    private static final int HEADER_LENGTH = MAGIC.length + LENGTH_BYTES;
+
+    private static final int BITS_IN_A_BYTE = 8;
+
+    private static final int BYTE_MASK = 0xFF;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    private RedisSerializer<T> serializer;
+
+    /**
+     * Min length in bytes of the serialized value to be compressed
+     */
+    private int threshold = DEFAULT_THRESHOLD;
+
+    /**
+     * Compression level of Deflater, from 0 (no compression) to 9 (best compression)
+     */
+    private int level = Deflater.BEST_SPEED;
+
+    @SuppressWarnings("unchecked")
+    public CompressingSerializer() {
+        this((RedisSerializer<T>) new ObjectSerializer());
+    }
+
+    public CompressingSerializer(RedisSerializer<T> serializer) {
+        this.serializer = serializer;
+    }
+
+    @Override
+    public byte[] serialize(T t) throws SerializationException {
+        byte[] bytes = serializer.serialize(t);
+        if (bytes == null || bytes.length < threshold) {
+            return bytes;
+        }
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(bytes.length, BUFFER_SIZE));
+            out.write(MAGIC, 0, MAGIC.length);
+            for (int i = LENGTH_BYTES - 1; i >= 0; i--) {
+                out.write(bytes.length >>> (BITS_IN_A_BYTE * i));
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+            if (out.size() >= bytes.length) {
+                return bytes;
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public T deserialize(byte[] bytes) throws SerializationException {
+        if (!isCompressed(bytes)) {
+            return serializer.deserialize(bytes);
+        }
+        int length = 0;
+        for (int i = 0; i < LENGTH_BYTES; i++) {
+            length = (length << BITS_IN_A_BYTE) | (bytes[MAGIC.length + i] & BYTE_MASK);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH);
+            byte[] result = new byte[length];
+            int offset = 0;
+            while (offset < length && !inflater.finished()) {
+                int inflated = inflater.inflate(result, offset, length - offset);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new SerializationException("decompress error, value is truncated");
+                }
+                offset += inflated;
+            }
+            return serializer.deserialize(result);
+        } catch (DataFormatException e) {
+            throw new SerializationException("decompress error", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static boolean isCompressed(byte[] bytes) {
+        if (bytes == null || bytes.length < HEADER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public RedisSerializer<T> getSerializer() {
+        return serializer;
+    }
+
+    public void setSerializer(RedisSerializer<T> serializer) {
+        this.serializer = serializer;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+}
@@ -0,0 +1,37 @@
+package org.crazycake.shiro;
+
+import org.crazycake.shiro.exception.SerializationException;
+import org.crazycake.shiro.serializer.CompressingSerializer;
+import org.crazycake.shiro.serializer.ObjectSerializer;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class CompressingSerializerTest {
+
+    private ObjectSerializer objectSerializer = new ObjectSerializer();
+
+    @Test
+    public void testCompressLargeValue() throws SerializationException {
+        CompressingSerializer<Object> serializer = new CompressingSerializer<Object>();
+        char[] chars = new char[10000];
+        Arrays.fill(chars, 'a');
+        String value = new String(chars);
+
+        byte[] bytes = serializer.serialize(value);
+        assertThat(bytes.length, lessThan(objectSerializer.serialize(value).length));
+        assertThat(serializer.deserialize(bytes), is((Object) value));
+    }
+
+    @Test
+    public void testSmallAndUncompressedValue() throws SerializationException {
+        CompressingSerializer<Object> serializer = new CompressingSerializer<Object>();
+        byte[] plain = objectSerializer.serialize("abc");
+        assertThat(serializer.serialize("abc"), is(plain));
+        assertThat(serializer.deserialize(plain), is((Object) "abc"));
+    }
+}
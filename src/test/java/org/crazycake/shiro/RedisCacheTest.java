@@ -1,17 +1,36 @@
 package org.crazycake.shiro;
 
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.SimpleAuthorizationInfo;
 import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.crazycake.shiro.common.CacheInvalidator;
+import org.crazycake.shiro.common.CacheSweeper;
+import org.crazycake.shiro.common.LocalCache;
 import org.crazycake.shiro.exception.SerializationException;
 import org.crazycake.shiro.serializer.ObjectSerializer;
 import org.crazycake.shiro.serializer.StringSerializer;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.CoreMatchers.*;
@@ -50,6 +69,191 @@ public class RedisCacheTest {
 
         verify(redisManager).set(keySerializer.serialize("employee:3"), valueSerializer.serialize("account information"), 1);
     }
+
+    @Test
+    public void testPrincipalKeyResolver() throws SerializationException {
+        RedisCache rc = mountRedisCache();
+        rc.setPrincipalKeyResolver(principals -> "employee-" + ((Employee) principals.getPrimaryPrincipal()).getId());
+        rc.put(new EmployeePrincipal(3), "account information");
+        verify(redisManager).set(keySerializer.serialize("employee:employee-3"), valueSerializer.serialize("account information"), 1);
+
+        rc.setPrincipalKeyResolver(null);
+        rc.put(new EmployeePrincipal(4), "account information");
+        verify(redisManager).set(keySerializer.serialize("employee:4"), valueSerializer.serialize("account information"), 1);
+    }
+
+    @Test
+    public void testGeneration() throws SerializationException {
+        RedisCache rc = mountRedisCache();
+        CacheSweeper sweeper = mock(CacheSweeper.class);
+        rc.setGenerationKey("employee_generation");
+        rc.setGenerationRefreshInterval(60000L);
+        rc.setCacheSweeper(sweeper);
+        byte[] generationKey = keySerializer.serialize("employee_generation");
+        when(redisManager.get(generationKey)).thenReturn("2".getBytes(StandardCharsets.UTF_8));
+        when(redisManager.incr(generationKey)).thenReturn(3L);
+
+        rc.put("foo", "bar");
+        verify(redisManager).set(keySerializer.serialize("employee:2:foo"), valueSerializer.serialize("bar"), 1);
+
+        rc.clear();
+        verify(redisManager, never()).keys(ArgumentMatchers.any(byte[].class));
+        verify(redisManager, never()).del(ArgumentMatchers.any(byte[].class));
+        verify(sweeper).sweep(keySerializer.serialize("employee:2:*"));
+
+        rc.put("foo", "baz");
+        verify(redisManager).set(keySerializer.serialize("employee:3:foo"), valueSerializer.serialize("baz"), 1);
+        verify(redisManager, times(1)).get(generationKey);
+    }
+
+    @Test
+    public void testIndex() throws SerializationException {
+        RedisCache rc = mountRedisCache();
+        rc.setIndexKey("employee_index");
+        byte[] indexKey = keySerializer.serialize("employee_index");
+        byte[] key = keySerializer.serialize("employee:foo");
+
+        rc.put("foo", "bar");
+        verify(redisManager).zadd(ArgumentMatchers.eq(indexKey), ArgumentMatchers.anyDouble(), ArgumentMatchers.eq(key));
+        verify(redisManager).expire(indexKey, 1);
+
+        when(redisManager.zcount(ArgumentMatchers.eq(indexKey), ArgumentMatchers.anyDouble(), ArgumentMatchers.anyDouble())).thenReturn(1L);
+        assertThat(rc.size(), is(1));
+        when(redisManager.zrangeByScore(ArgumentMatchers.eq(indexKey), ArgumentMatchers.anyDouble(), ArgumentMatchers.anyDouble(), ArgumentMatchers.eq(0),
+                ArgumentMatchers.eq(-1))).thenReturn(Collections.singletonList(key));
+        assertThat(rc.keys(), is(Collections.singleton("employee:foo")));
+        verify(redisManager, never()).dbSize(ArgumentMatchers.any(byte[].class));
+        verify(redisManager, never()).keys(ArgumentMatchers.any(byte[].class));
+
+        rc.remove("foo");
+        verify(redisManager).zrem(indexKey, key);
+    }
+
+    @Test
+    public void testValues() throws SerializationException {
+        RedisCache rc = mountRedisCache();
+        byte[] pattern = keySerializer.serialize("employee:*");
+        byte[] key1 = keySerializer.serialize("employee:foo");
+        byte[] key2 = keySerializer.serialize("employee:bar");
+        Set<byte[]> keys = new LinkedHashSet<byte[]>(Arrays.asList(key1, key2));
+        when(redisManager.keys(pattern)).thenReturn(keys);
+        when(redisManager.scan(pattern)).thenAnswer(invocation -> Collections.singletonList(Arrays.asList(key1, key2)).iterator());
+        when(redisManager.mget(key1, key2)).thenReturn(Arrays.asList(valueSerializer.serialize("a"), null));
+
+        assertThat(new ArrayList<Object>(rc.values()), is(Collections.singletonList("a")));
+        assertThat(new ArrayList<Object>(rc.pagedValues()), is(Collections.singletonList("a")));
+        verify(redisManager, never()).get(ArgumentMatchers.any(byte[].class));
+    }
+
+    @Test
+    public void testRemove() throws SerializationException {
+        RedisCache rc = mountRedisCache();
+        byte[] key = keySerializer.serialize("employee:foo");
+        when(redisManager.getDel(key)).thenReturn(valueSerializer.serialize("bar"));
+        assertThat(rc.remove("foo"), is("bar"));
+        verify(redisManager, never()).get(key);
+        verify(redisManager, never()).del(key);
+
+        rc.setRemovedValueReturned(false);
+        assertThat(rc.remove("foo"), is(nullValue()));
+        verify(redisManager, times(1)).getDel(key);
+        verify(redisManager).del(key);
+    }
+
+    @Test
+    public void testRedisManagerWithBasicCommandsOnly() {
+        BasicRedisManager basicRedisManager = new BasicRedisManager();
+        RedisCache rc = new RedisCache(basicRedisManager, new StringSerializer(), new ObjectSerializer(), "employee:", 1, RedisCacheManager.DEFAULT_PRINCIPAL_ID_FIELD_NAME);
+        rc.put("foo", "a");
+        rc.put("bar", "b");
+
+        assertThat(new HashSet<Object>(rc.values()), is(new HashSet<Object>(Arrays.asList("a", "b"))));
+        assertThat(new HashSet<Object>(rc.pagedValues()), is(new HashSet<Object>(Arrays.asList("a", "b"))));
+        assertThat(rc.remove("foo"), is("a"));
+        assertThat(rc.get("foo"), is(nullValue()));
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> basicRedisManager.incr(new byte[0]));
+    }
+
+    @Test
+    public void testNegativeCache() throws SerializationException {
+        RedisCache rc = mountRedisCache();
+        rc.setNegativeExpire(10);
+        rc.setLocalCache(new LocalCache(10, 60000L));
+        byte[] key = keySerializer.serialize("employee:foo");
+
+        assertThat(rc.put("foo", null), is(nullValue()));
+        verify(redisManager).set(key, new byte[0], 10);
+        assertThat(rc.isAbsent("foo"), is(true));
+        assertThat(rc.get("foo"), is(nullValue()));
+        verify(redisManager, never()).get(key);
+
+        RedisCache other = mountRedisCache();
+        other.setNegativeExpire(10);
+        when(redisManager.get(key)).thenReturn(new byte[0]);
+        assertThat(other.get("foo"), is(nullValue()));
+        assertThat(other.isAbsent("foo"), is(true));
+        assertThat(other.isAbsent("bar"), is(false));
+    }
+
+    @Test
+    public void testNegativeCacheOfAuthorizingRealm() {
+        RedisCacheManager cacheManager = new RedisCacheManager();
+        cacheManager.setRedisManager(new BasicRedisManager());
+        cacheManager.setNegativeExpire(10);
+        final AtomicInteger lookups = new AtomicInteger();
+        RedisAuthorizingRealm realm = new RedisAuthorizingRealm() {
+            @Override
+            protected AuthorizationInfo doGetAuthorizationInfo(PrincipalCollection principals) {
+                lookups.incrementAndGet();
+                return "admin".equals(principals.getPrimaryPrincipal()) ? new SimpleAuthorizationInfo(Collections.singleton("admin")) : null;
+            }
+
+            @Override
+            protected AuthenticationInfo doGetAuthenticationInfo(AuthenticationToken token) {
+                return null;
+            }
+        };
+        realm.setCacheManager(cacheManager);
+        realm.init();
+
+        PrincipalCollection guest = new SimplePrincipalCollection("guest", "realm");
+        assertThat(realm.getAuthorizationInfo(guest), is(nullValue()));
+        assertThat(realm.hasRole(guest, "admin"), is(false));
+        assertThat(lookups.get(), is(1));
+
+        PrincipalCollection admin = new SimplePrincipalCollection("admin", "realm");
+        assertThat(realm.hasRole(admin, "admin"), is(true));
+        assertThat(realm.hasRole(admin, "admin"), is(true));
+        assertThat(lookups.get(), is(2));
+    }
+
+    @Test
+    public void testLocalCache() throws SerializationException {
+        RedisCache rc = mountRedisCache();
+        byte[] channel = "shiro:cache:invalidation".getBytes(StandardCharsets.UTF_8);
+        CacheInvalidator invalidator = new CacheInvalidator(redisManager, channel);
+        LocalCache localCache = new LocalCache(10, 60000L);
+        invalidator.register(keySerializer.serialize("employee:"), localCache);
+        rc.setLocalCache(localCache);
+        rc.setCacheInvalidator(invalidator);
+        byte[] key = keySerializer.serialize("employee:foo");
+        when(redisManager.get(key)).thenReturn(valueSerializer.serialize("bar"));
+
+        assertThat(rc.get("foo"), is("bar"));
+        assertThat(rc.get("foo"), is("bar"));
+        verify(redisManager, times(1)).get(key);
+
+        ByteBuffer message = ByteBuffer.allocate(9 + key.length);
+        message.putLong(invalidator.getSenderId() + 1).put((byte) 'k').put(key);
+        invalidator.onMessage(channel, message.array());
+        assertThat(rc.get("foo"), is("bar"));
+        verify(redisManager, times(2)).get(key);
+
+        rc.put("foo", "baz");
+        verify(redisManager).publish(ArgumentMatchers.eq(channel), ArgumentMatchers.any(byte[].class));
+        assertThat(rc.get("foo"), is("baz"));
+        verify(redisManager, times(2)).get(key);
+    }
 }
 
 class Employee {
@@ -117,3 +321,43 @@ class EmployeePrincipal implements PrincipalCollection {
         return null;
     }
 }
+
+/**
+ * IRedisManager which implements only the methods without default implementation
+ */
+class BasicRedisManager implements IRedisManager {
+    private final Map<ByteBuffer, byte[]> values = new HashMap<ByteBuffer, byte[]>();
+
+    @Override
+    public byte[] get(byte[] key) {
+        return values.get(ByteBuffer.wrap(key));
+    }
+
+    @Override
+    public byte[] set(byte[] key, byte[] value, int expire) {
+        values.put(ByteBuffer.wrap(key), value);
+        return value;
+    }
+
+    @Override
+    public void del(byte[] key) {
+        values.remove(ByteBuffer.wrap(key));
+    }
+
+    @Override
+    public Long dbSize(byte[] pattern) {
+        return (long) keys(pattern).size();
+    }
+
+    @Override
+    public Set<byte[]> keys(byte[] pattern) {
+        String prefix = new String(pattern, StandardCharsets.UTF_8).replace("*", "");
+        Set<byte[]> keys = new HashSet<byte[]>();
+        for (ByteBuffer key : values.keySet()) {
+            if (new String(key.array(), StandardCharsets.UTF_8).startsWith(prefix)) {
+                keys.add(key.array());
+            }
+        }
+        return keys;
+    }
+}
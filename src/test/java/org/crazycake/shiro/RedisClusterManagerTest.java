@@ -1,8 +1,11 @@
 package org.crazycake.shiro;
 
+import org.crazycake.shiro.common.RedisScripts;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.nullValue;
@@ -44,4 +47,47 @@ public class RedisClusterManagerTest {
         redisClusterManager.set(new byte[0], new byte[0], 1);
         verify(jedisCluster, times(2)).expire(any(byte[].class), any(int.class));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void getDel() {
+        byte[] key = "123".getBytes();
+        byte[] value = "abc".getBytes();
+        when(jedisCluster.getDel(key)).thenReturn(value);
+        assertThat(redisClusterManager.getDel(key), is(value));
+        verify(jedisCluster, never()).evalsha(any(byte[].class), anyList(), anyList());
+    }
+
+    @Test
+    public void getDelOnServerWithoutGetDel() {
+        byte[] key = "123".getBytes();
+        byte[] value = "abc".getBytes();
+        byte[] sha1 = RedisScripts.GET_DEL_SHA1_BYTES;
+        when(jedisCluster.getDel(key)).thenThrow(new JedisDataException("ERR unknown command `GETDEL`, with args beginning with: `123`,"));
+        when(jedisCluster.evalsha(eq(sha1), anyList(), anyList()))
+                .thenThrow(new JedisNoScriptException("NOSCRIPT No matching script. Please use EVAL."))
+                .thenReturn(value);
+        when(jedisCluster.eval(eq(RedisScripts.GET_DEL_BYTES), anyList(), anyList())).thenReturn(value);
+
+        assertThat(redisClusterManager.getDel(key), is(value));
+        verify(jedisCluster).eval(eq(RedisScripts.GET_DEL_BYTES), anyList(), anyList());
+        assertThat(redisClusterManager.getDel(key), is(value));
+        verify(jedisCluster, times(1)).getDel(key);
+        verify(jedisCluster, times(2)).evalsha(eq(sha1), anyList(), anyList());
+        verify(jedisCluster, times(1)).eval(eq(RedisScripts.GET_DEL_BYTES), anyList(), anyList());
+    }
+
+    @Test
+    public void compareAndSet() {
+        byte[] key = "123".getBytes();
+        byte[] sha1 = RedisScripts.COMPARE_AND_SET_SHA1_BYTES;
+        when(jedisCluster.evalsha(eq(sha1), anyList(), anyList()))
+                .thenThrow(new JedisNoScriptException("NOSCRIPT No matching script. Please use EVAL."))
+                .thenReturn(0L);
+        when(jedisCluster.eval(eq(RedisScripts.COMPARE_AND_SET_BYTES), anyList(), anyList())).thenReturn(1L);
+
+        assertThat(redisClusterManager.compareAndSet(key, new byte[0], "abc".getBytes(), 1), is(true));
+        assertThat(redisClusterManager.compareAndSet(key, new byte[0], "abc".getBytes(), 1), is(false));
+        verify(jedisCluster, times(2)).evalsha(eq(sha1), anyList(), anyList());
+        verify(jedisCluster, times(1)).eval(eq(RedisScripts.COMPARE_AND_SET_BYTES), anyList(), anyList());
+    }
+}
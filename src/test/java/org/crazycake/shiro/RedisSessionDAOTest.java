@@ -2,19 +2,46 @@ package org.crazycake.shiro;
 
 import org.apache.shiro.session.InvalidSessionException;
 import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.crazycake.shiro.common.SessionHashCodec;
+import org.crazycake.shiro.common.SessionsInMemory;
+import org.crazycake.shiro.common.VersionedValue;
+import org.crazycake.shiro.common.WriteBehindQueue;
 import org.crazycake.shiro.exception.SerializationException;
 import org.crazycake.shiro.serializer.ObjectSerializer;
 import org.crazycake.shiro.serializer.StringSerializer;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -74,19 +101,713 @@ public class RedisSessionDAOTest {
 
     @Test
     public void testGetActiveSessions() throws SerializationException {
-        Set<byte[]> mockKeys = new HashSet<byte[]>();
-        mockKeys.add(keySerializer.serialize("student:1"));
-        mockKeys.add(keySerializer.serialize("student:2"));
-        when(redisManager.keys(keySerializer.serialize("student:*"))).thenReturn(mockKeys);
+        final byte[] key1 = keySerializer.serialize("student:1");
+        final byte[] key2 = keySerializer.serialize("student:2");
+        when(redisManager.scan(keySerializer.serialize("student:*")))
+                .thenAnswer(invocation -> Collections.singletonList(Arrays.asList(key1, key2)).iterator());
 
         StudentSession mockSession1 = new StudentSession(1, 2000);
         StudentSession mockSession2 = new StudentSession(2, 2000);
-        when(redisManager.get(keySerializer.serialize("student:1"))).thenReturn(valueSerializer.serialize(mockSession1));
-        when(redisManager.get(keySerializer.serialize("student:2"))).thenReturn(valueSerializer.serialize(mockSession2));
+        when(redisManager.mget(key1, key2)).thenReturn(Arrays.asList(valueSerializer.serialize(mockSession1), valueSerializer.serialize(mockSession2)));
 
         RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
         assertThat(sessionDAO.getActiveSessions().size(), is(2));
     }
+
+    @Test
+    public void testGetActiveSessionsPageByPage() throws SerializationException {
+        final byte[] key1 = keySerializer.serialize("student:1");
+        final byte[] key2 = keySerializer.serialize("student:2");
+        final byte[] key3 = keySerializer.serialize("student:3");
+        when(redisManager.scan(keySerializer.serialize("student:*")))
+                .thenAnswer(invocation -> Arrays.asList(Arrays.asList(key1, key2), Collections.singletonList(key3)).iterator());
+        when(redisManager.mget(key1, key2)).thenReturn(Arrays.asList(valueSerializer.serialize(new StudentSession(1, 2000)), null));
+        when(redisManager.mget(key3)).thenReturn(Collections.singletonList(valueSerializer.serialize(new StudentSession(3, 2000))));
+
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        Collection<Session> sessions = sessionDAO.getActiveSessions();
+        verify(redisManager, never()).mget(key1, key2);
+
+        Iterator<Session> it = sessions.iterator();
+        assertThat(it.next().getId(), is((Serializable) 1));
+        verify(redisManager, never()).mget(key3);
+        assertThat(it.next().getId(), is((Serializable) 3));
+        assertThat(it.hasNext(), is(false));
+        verify(redisManager, never()).get(any(byte[].class));
+    }
+
+    @Test
+    public void testReadSessions() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setSessionInMemoryEnabled(false);
+        StudentSession session1 = new StudentSession(81, 2000);
+        StudentSession session3 = new StudentSession(83, 2000);
+        byte[] key1 = keySerializer.serialize("student:81");
+        byte[] key2 = keySerializer.serialize("student:82");
+        byte[] key3 = keySerializer.serialize("student:83");
+        when(redisManager.mget(key1, key2, key3)).thenReturn(Arrays.asList(valueSerializer.serialize(session1), null, valueSerializer.serialize(session3)));
+
+        Map<Serializable, Session> sessions = sessionDAO.readSessions(Arrays.<Serializable>asList(81, 82, 83, 81));
+        assertThat(sessions.size(), is(2));
+        assertThat(sessions.get(81).getId(), is((Serializable) 81));
+        assertThat(sessions.get(83).getId(), is((Serializable) 83));
+        verify(redisManager, never()).get(any(byte[].class));
+    }
+
+    @Test
+    public void testSessionIndex() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setSessionIndexEnabled(true);
+        byte[] indexKey = keySerializer.serialize("shiro:session_index");
+        byte[] key = keySerializer.serialize("student:96");
+        StudentSession session = new StudentSession(96, 2000);
+        long before = System.currentTimeMillis();
+        sessionDAO.update(session);
+        ArgumentCaptor<Double> scoreCaptor = ArgumentCaptor.forClass(Double.class);
+        verify(redisManager).zadd(eq(indexKey), scoreCaptor.capture(), eq(key));
+        assertThat(scoreCaptor.getValue() >= before + 2000, is(true));
+        assertThat(scoreCaptor.getValue() <= System.currentTimeMillis() + 2000, is(true));
+
+        sessionDAO.delete(session);
+        verify(redisManager).zrem(indexKey, key);
+    }
+
+    @Test
+    public void testGetActiveSessionsFromIndex() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setSessionIndexEnabled(true);
+        byte[] indexKey = keySerializer.serialize("shiro:session_index");
+        final byte[] key1 = keySerializer.serialize("student:1");
+        final byte[] key2 = keySerializer.serialize("student:2");
+        when(redisManager.zrangeByScore(eq(indexKey), anyDouble(), eq(Double.POSITIVE_INFINITY), eq(0), anyInt())).thenReturn(Arrays.asList(key1, key2));
+        when(redisManager.mget(key1, key2)).thenReturn(Arrays.asList(valueSerializer.serialize(new StudentSession(1, 2000)),
+                valueSerializer.serialize(new StudentSession(2, 2000))));
+        when(redisManager.zcount(eq(indexKey), anyDouble(), eq(Double.POSITIVE_INFINITY))).thenReturn(2L);
+
+        assertThat(sessionDAO.getActiveSessions().size(), is(2));
+        verify(redisManager).zremrangeByScore(eq(indexKey), eq(Double.NEGATIVE_INFINITY), anyDouble());
+        assertThat(sessionDAO.getActiveSessions(0, 2).size(), is(2));
+        assertThat(sessionDAO.getActiveSessionCount(), is(2L));
+        verify(redisManager, never()).scan(any(byte[].class));
+        verify(redisManager, never()).dbSize(any(byte[].class));
+    }
+
+    @Test
+    public void testPrincipalIndex() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setPrincipalIndexEnabled(true);
+        byte[] principalIndexKey = keySerializer.serialize("shiro:principal_sessions:alice");
+        byte[] key1 = keySerializer.serialize("student:101");
+        byte[] key2 = keySerializer.serialize("student:102");
+        SimpleSession session1 = new SimpleSession();
+        session1.setId(101);
+        session1.setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY, new SimplePrincipalCollection("alice", "realm"));
+        sessionDAO.update(session1);
+        verify(redisManager).zadd(eq(principalIndexKey), anyDouble(), eq(key1));
+        verify(redisManager).set(keySerializer.serialize("shiro:session_principal:101"), keySerializer.serialize("alice"), 1800);
+        verify(redisManager, never()).expire(eq(principalIndexKey), anyInt());
+
+        SimpleSession session2 = new SimpleSession();
+        session2.setId(102);
+        session2.setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY, new SimplePrincipalCollection("bob", "realm"));
+        when(redisManager.zrangeByScore(eq(principalIndexKey), anyDouble(), eq(Double.POSITIVE_INFINITY), eq(0), eq(-1))).thenReturn(Arrays.asList(key1, key2));
+        when(redisManager.mget(key1, key2)).thenReturn(Arrays.asList(valueSerializer.serialize(session1), valueSerializer.serialize(session2)));
+        Collection<Session> sessions = sessionDAO.getSessionsByPrincipalId("alice");
+        assertThat(sessions.size(), is(1));
+        assertThat(sessions.iterator().next().getId(), is((Serializable) 101));
+        verify(redisManager).zrem(principalIndexKey, key2);
+
+        // session 102 is still in the index of alice, but it belongs to bob now
+        assertThat(sessionDAO.deleteSessionsByPrincipalId("alice"), is(1));
+        verify(redisManager).mdel(key1, keySerializer.serialize("shiro:session_principal:101"));
+        verify(redisManager, never()).del(key2);
+        verify(redisManager).zrem(principalIndexKey, key1, key2);
+        verify(redisManager, never()).scan(any(byte[].class));
+    }
+
+    @Test
+    public void testPrincipalIndexTouch() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setSessionInMemoryEnabled(false);
+        sessionDAO.setPrincipalIndexEnabled(true);
+        sessionDAO.setTouchInterval(60);
+        byte[] principalIndexKey = keySerializer.serialize("shiro:principal_sessions:alice");
+        byte[] sessionPrincipalKey = keySerializer.serialize("shiro:session_principal:103");
+        byte[] key = keySerializer.serialize("student:103");
+        SimpleSession session = new SimpleSession();
+        session.setId(103);
+        session.setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY, new SimplePrincipalCollection("alice", "realm"));
+        when(redisManager.get(key)).thenReturn(valueSerializer.serialize(session));
+
+        Session readSession = sessionDAO.doReadSession(103);
+        readSession.touch();
+        sessionDAO.update(readSession);
+        verify(redisManager).expire(key, 1800);
+        verify(redisManager).expire(sessionPrincipalKey, 1800);
+        verify(redisManager, never()).zadd(eq(principalIndexKey), anyDouble(), any(byte[].class));
+        verify(redisManager, never()).set(eq(sessionPrincipalKey), any(byte[].class), anyInt());
+    }
+
+    @Test
+    public void testPrincipalIndexAfterLogout() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setPrincipalIndexEnabled(true);
+        byte[] principalIndexKey = keySerializer.serialize("shiro:principal_sessions:alice");
+        byte[] sessionPrincipalKey = keySerializer.serialize("shiro:session_principal:101");
+        byte[] key = keySerializer.serialize("student:101");
+        SimpleSession session = new SimpleSession();
+        session.setId(101);
+        when(redisManager.get(sessionPrincipalKey)).thenReturn(keySerializer.serialize("alice"));
+
+        // logout removes the principal before the session is stopped and deleted
+        sessionDAO.update(session);
+        verify(redisManager).zrem(principalIndexKey, key);
+        verify(redisManager).del(sessionPrincipalKey);
+
+        sessionDAO.delete(session);
+        verify(redisManager, times(2)).zrem(principalIndexKey, key);
+
+        SimpleSession loggedIn = new SimpleSession();
+        loggedIn.setId(101);
+        loggedIn.setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY, new SimplePrincipalCollection("bob", "realm"));
+        sessionDAO.update(loggedIn);
+        verify(redisManager, times(3)).zrem(principalIndexKey, key);
+        verify(redisManager).zadd(eq(keySerializer.serialize("shiro:principal_sessions:bob")), anyDouble(), eq(key));
+    }
+
+    @Test
+    public void testGetSessionIdsToValidate() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(3600);
+        final byte[] key1 = keySerializer.serialize("student:1");
+        final byte[] key2 = keySerializer.serialize("student:2");
+        final byte[] key3 = keySerializer.serialize("student:3");
+        final byte[] key4 = keySerializer.serialize("student:4");
+        when(redisManager.scan(keySerializer.serialize("student:*")))
+                .thenAnswer(invocation -> Collections.singletonList(Arrays.asList(key1, key2, key3, key4)).iterator());
+        when(redisManager.pttl(key1, key2, key3, key4)).thenReturn(Arrays.asList(3000000L, 1000000L, -1L, -2L));
+
+        Collection<Serializable> sessionIds = sessionDAO.getSessionIdsToValidate(1800000L);
+        assertThat(new ArrayList<Serializable>(sessionIds), is(Arrays.<Serializable>asList("2", "3")));
+        verify(redisManager, never()).get(any(byte[].class));
+        verify(redisManager, never()).mget(any(byte[].class));
+    }
+
+    @Test
+    public void testReadSessionInMemory() throws SerializationException, InterruptedException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setSessionInMemoryTimeout(50L);
+        byte[] key = keySerializer.serialize("student:97");
+        when(redisManager.get(key)).thenReturn(valueSerializer.serialize(new StudentSession(97, 2000)));
+        RedisSessionDAO.getSessionsInThread().remove();
+
+        sessionDAO.doReadSession(97);
+        sessionDAO.doReadSession(97);
+        verify(redisManager, times(1)).get(key);
+        Thread.sleep(100L);
+        sessionDAO.doReadSession(98);
+        assertThat(((SessionsInMemory) RedisSessionDAO.getSessionsInThread().get()).size(), is(1));
+        sessionDAO.doReadSession(97);
+        verify(redisManager, times(2)).get(key);
+
+        SessionsInMemory sessionsInMemory = (SessionsInMemory) RedisSessionDAO.getSessionsInThread().get();
+        Thread.sleep(100L);
+        SimpleSession session = new SimpleSession();
+        session.setId(99);
+        sessionDAO.delete(session);
+        assertThat(sessionsInMemory.isEmpty(), is(true));
+        assertThat(RedisSessionDAO.getSessionsInThread().get(), is(nullValue()));
+    }
+
+    @Test
+    public void testReadUnknownSession() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setSessionInMemoryEnabled(false);
+        sessionDAO.setUnknownSessionCacheEnabled(true);
+        byte[] key = keySerializer.serialize("student:94");
+
+        assertThat(sessionDAO.doReadSession(94), is(nullValue()));
+        assertThat(sessionDAO.doReadSession(94), is(nullValue()));
+        verify(redisManager, times(1)).get(key);
+
+        StudentSession session = new StudentSession(93, 2000);
+        sessionDAO.delete(session);
+        assertThat(sessionDAO.doReadSession(93), is(nullValue()));
+        verify(redisManager, never()).get(keySerializer.serialize("student:93"));
+
+        sessionDAO.setUnknownSessionCacheTimeout(0L);
+        sessionDAO.getUnknownSessionIds().add(94);
+        sessionDAO.doReadSession(94);
+        verify(redisManager, times(2)).get(key);
+    }
+
+    @Test
+    public void testReadUnknownSessionWithWriteBehind() throws SerializationException, InterruptedException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setSessionInMemoryEnabled(false);
+        sessionDAO.setUnknownSessionCacheEnabled(true);
+        sessionDAO.setWriteBehindEnabled(true);
+        sessionDAO.setWriteBehindMaxDelay(50L);
+        byte[] key = keySerializer.serialize("student:95");
+
+        assertThat(sessionDAO.doReadSession(95), is(nullValue()));
+        assertThat(sessionDAO.doReadSession(95), is(nullValue()));
+        verify(redisManager, times(2)).get(key);
+
+        Thread.sleep(100L);
+        assertThat(sessionDAO.doReadSession(95), is(nullValue()));
+        verify(redisManager, times(2)).get(key);
+        sessionDAO.destroy();
+    }
+
+    @Test
+    public void testCompareAndSet() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setSessionInMemoryEnabled(false);
+        sessionDAO.setCompareAndSetEnabled(true);
+        byte[] key = keySerializer.serialize("student:92");
+        SimpleSession stored = new SimpleSession();
+        stored.setId(92);
+        stored.setTimeout(2000);
+        when(redisManager.get(key)).thenReturn(VersionedValue.wrap(1L, valueSerializer.serialize(stored)));
+
+        Session session = sessionDAO.doReadSession(92);
+        session.setAttribute("a", 1);
+        SimpleSession latest = new SimpleSession();
+        latest.setId(92);
+        latest.setTimeout(2000);
+        latest.setAttribute("b", 2);
+        when(redisManager.get(key)).thenReturn(VersionedValue.wrap(2L, valueSerializer.serialize(latest)));
+        when(redisManager.compareAndSet(eq(key), any(byte[].class), any(byte[].class), eq(2))).thenReturn(false, true);
+        sessionDAO.update(session);
+
+        verify(redisManager).compareAndSet(eq(key), eq(VersionedValue.header(1L)), any(byte[].class), eq(2));
+        verify(redisManager).compareAndSet(eq(key), eq(VersionedValue.header(2L)), any(byte[].class), eq(2));
+        verify(redisManager, never()).set(any(byte[].class), any(byte[].class), anyInt());
+        assertThat(session.getAttribute("a"), is(1));
+        assertThat(session.getAttribute("b"), is(2));
+    }
+
+    @Test
+    public void testDirtyCheck() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setSessionInMemoryEnabled(false);
+        sessionDAO.setDirtyCheckEnabled(true);
+        byte[] key = keySerializer.serialize("student:91");
+        SimpleSession stored = new SimpleSession();
+        stored.setId(91);
+        stored.setTimeout(2000);
+        when(redisManager.get(key)).thenReturn(valueSerializer.serialize(stored));
+
+        Session session = sessionDAO.doReadSession(91);
+        sessionDAO.update(session);
+        verify(redisManager, never()).set(any(byte[].class), any(byte[].class), anyInt());
+        verify(redisManager).expire(key, 2);
+
+        session.setAttribute("a", 1);
+        sessionDAO.update(session);
+        session.setAttribute("a", 1);
+        sessionDAO.update(session);
+        verify(redisManager, times(1)).set(eq(key), any(byte[].class), eq(2));
+    }
+
+    @Test
+    public void testWriteBehind() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setSessionInMemoryEnabled(false);
+        sessionDAO.setWriteBehindEnabled(true);
+        sessionDAO.setWriteBehindMaxDelay(60000L);
+        StudentSession session = new StudentSession(89, 2000);
+        byte[] key = keySerializer.serialize("student:89");
+        byte[] value = valueSerializer.serialize(session);
+
+        sessionDAO.update(session);
+        verify(redisManager, never()).set(any(byte[].class), any(byte[].class), anyInt());
+        sessionDAO.doReadSession(89);
+        InOrder inOrder = inOrder(redisManager);
+        inOrder.verify(redisManager).set(key, value, 2);
+        inOrder.verify(redisManager).get(key);
+
+        sessionDAO.update(session);
+        sessionDAO.delete(session);
+        assertThat(sessionDAO.getWriteBehindQueue().size(), is(1));
+        sessionDAO.destroy();
+        assertThat(sessionDAO.getWriteBehindQueue().size(), is(0));
+        verify(redisManager).del(key);
+        verify(redisManager, times(1)).set(key, value, 2);
+    }
+
+    @Test
+    public void testWriteBehindFlushDoesNotWaitForOtherSessions() throws InterruptedException {
+        WriteBehindQueue queue = new WriteBehindQueue(1, 10, 0L, "test-writer-");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        queue.submit("a", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, false);
+        assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+
+        AtomicBoolean written = new AtomicBoolean(false);
+        queue.submit("b", () -> written.set(true), false);
+        queue.flush("b");
+        assertThat(written.get(), is(true));
+
+        release.countDown();
+        queue.close();
+        assertThat(queue.size(), is(0));
+    }
+
+    @Test
+    public void testWriteBehindKeepsOrderAfterClose() throws InterruptedException {
+        WriteBehindQueue queue = new WriteBehindQueue(1, 10, 0L, "test-writer-");
+        queue.close();
+        List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread first = new Thread(() -> queue.submit("a", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            written.add(1);
+        }, true));
+        first.start();
+        assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+
+        // a write submitted while the first one is running in another thread waits for it
+        Thread second = new Thread(() -> queue.submit("a", () -> written.add(2), true));
+        second.start();
+        second.join(100L);
+        assertThat(written.isEmpty(), is(true));
+
+        release.countDown();
+        first.join();
+        second.join();
+        assertThat(written, is(Arrays.asList(1, 2)));
+    }
+
+    @Test
+    public void testOffloadAttribute() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setSessionInMemoryEnabled(false);
+        sessionDAO.setAttributeOffloadThreshold(1024);
+        char[] chars = new char[2000];
+        Arrays.fill(chars, 'a');
+        String report = new String(chars);
+        SimpleSession session = new SimpleSession();
+        session.setId(87);
+        session.setTimeout(2000);
+        session.setAttribute("name", "Tom");
+        session.setAttribute("report", report);
+        byte[] key = keySerializer.serialize("student:87");
+        byte[] attributeKey = keySerializer.serialize("shiro:session_attribute:87:report");
+
+        sessionDAO.update(session);
+        ArgumentCaptor<byte[]> value = ArgumentCaptor.forClass(byte[].class);
+        verify(redisManager).set(eq(key), value.capture(), eq(2));
+        verify(redisManager).set(attributeKey, valueSerializer.serialize(report), 2);
+        assertThat(value.getValue().length < report.length(), is(true));
+
+        when(redisManager.get(key)).thenReturn(value.getValue());
+        when(redisManager.get(attributeKey)).thenReturn(valueSerializer.serialize(report));
+        Session readSession = sessionDAO.doReadSession(87);
+        assertThat(readSession.getAttribute("name"), is((Object) "Tom"));
+        verify(redisManager, never()).get(attributeKey);
+        assertThat(readSession.getAttribute("report"), is((Object) report));
+        verify(redisManager).get(attributeKey);
+
+        readSession.setAttribute("name", "Jerry");
+        sessionDAO.update(readSession);
+        verify(redisManager, times(2)).set(eq(key), any(byte[].class), eq(2));
+        verify(redisManager, times(1)).set(eq(attributeKey), any(byte[].class), anyInt());
+        verify(redisManager).expire(attributeKey, 2);
+
+        readSession.removeAttribute("report");
+        sessionDAO.update(readSession);
+        verify(redisManager).del(attributeKey);
+    }
+
+    @Test
+    public void testOffloadAttributeWithWriteBehind() {
+        redisManager = new BasicRedisManager() {
+            @Override
+            public void expire(byte[] key, int expire) {
+            }
+        };
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setSessionInMemoryEnabled(false);
+        sessionDAO.setAttributeOffloadThreshold(1024);
+        sessionDAO.setWriteBehindEnabled(true);
+        sessionDAO.setWriteBehindMaxDelay(60000L);
+        char[] chars = new char[2000];
+        Arrays.fill(chars, 'a');
+        String report = new String(chars);
+        SimpleSession session = new SimpleSession();
+        session.setId(86);
+        session.setTimeout(2000);
+        session.setAttribute("report", report);
+        sessionDAO.update(session);
+
+        Session readSession = sessionDAO.doReadSession(86);
+        Arrays.fill(chars, 'b');
+        String newReport = new String(chars);
+        readSession.setAttribute("report", newReport);
+        sessionDAO.update(readSession);
+        readSession.setAttribute("name", "Tom");
+        sessionDAO.update(readSession);
+
+        Session latestSession = sessionDAO.doReadSession(86);
+        assertThat(latestSession.getAttribute("name"), is((Object) "Tom"));
+        assertThat(latestSession.getAttribute("report"), is((Object) newReport));
+        sessionDAO.destroy();
+    }
+
+    @Test
+    public void testCompactKeys() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setCompactKeysEnabled(true);
+        String sessionId = "0f1e2d3c-4b5a-6978-8796-a5b4c3d2e1f0";
+        SimpleSession session = new SimpleSession();
+        session.setId(sessionId);
+        session.setTimeout(2000);
+        byte[] key = new byte[] {'s', 'h', 'i', 'r', 'o', ':', 's', ':', 0x0f, 0x1e, 0x2d, 0x3c, 0x4b, 0x5a, 0x69, 0x78,
+                (byte) 0x87, (byte) 0x96, (byte) 0xa5, (byte) 0xb4, (byte) 0xc3, (byte) 0xd2, (byte) 0xe1, (byte) 0xf0};
+
+        sessionDAO.update(session);
+        verify(redisManager).set(key, valueSerializer.serialize(session), 2);
+        assertThat(sessionDAO.getSessionId(key), is((Serializable) sessionId));
+
+        StudentSession otherSession = new StudentSession(86, 2000);
+        sessionDAO.update(otherSession);
+        verify(redisManager).set(keySerializer.serialize("student:86"), valueSerializer.serialize(otherSession), 2);
+        assertThat(sessionDAO.getSessionId(keySerializer.serialize("student:86")), is((Serializable) "86"));
+
+        // without session index, keys of both kinds are scanned
+        byte[] otherKey = keySerializer.serialize("student:86");
+        byte[] compactPattern = Arrays.copyOf(key, "shiro:s:".length() + 1);
+        compactPattern[compactPattern.length - 1] = '*';
+        when(redisManager.scan(compactPattern)).thenAnswer(invocation -> Collections.singletonList(Arrays.asList(key)).iterator());
+        when(redisManager.scan(keySerializer.serialize("student:*"))).thenAnswer(invocation -> Collections.singletonList(Arrays.asList(otherKey)).iterator());
+        when(redisManager.mget(key)).thenReturn(Arrays.asList(valueSerializer.serialize(session)));
+        when(redisManager.mget(otherKey)).thenReturn(Arrays.asList(valueSerializer.serialize(otherSession)));
+        when(redisManager.dbSize(any(byte[].class))).thenReturn(1L);
+        Set<Serializable> sessionIds = new HashSet<Serializable>();
+        for (Session activeSession : sessionDAO.getActiveSessions()) {
+            sessionIds.add(activeSession.getId());
+        }
+        assertThat(sessionIds, is(new HashSet<Serializable>(Arrays.<Serializable>asList(sessionId, 86))));
+        assertThat(sessionDAO.getActiveSessionCount(), is(2L));
+    }
+
+    @Test
+    public void testReadSessionFromNearCache() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setSessionNearCacheEnabled(true);
+        SimpleSession session = new SimpleSession();
+        session.setId(95);
+        session.setTimeout(2000);
+        session.setAttribute("name", "Tom");
+        sessionDAO.update(session);
+        byte[] key = keySerializer.serialize("student:95");
+        ArgumentCaptor<byte[]> valueCaptor = ArgumentCaptor.forClass(byte[].class);
+        verify(redisManager).set(eq(key), valueCaptor.capture(), eq(2));
+        byte[] value = valueCaptor.getValue();
+        assertThat(VersionedValue.isVersioned(value), is(true));
+
+        RedisSessionDAO.getSessionsInThread().remove();
+        when(redisManager.getRange(key, 0, VersionedValue.HEADER_LENGTH - 1)).thenReturn(Arrays.copyOf(value, VersionedValue.HEADER_LENGTH));
+        Session cached = sessionDAO.doReadSession(95);
+        assertThat(cached, is((Session) session));
+        assertThat(cached == session, is(false));
+        assertThat(cached.getAttribute("name"), is((Object) "Tom"));
+
+        // every read gets its own copy
+        cached.setAttribute("name", "Jerry");
+        RedisSessionDAO.getSessionsInThread().remove();
+        assertThat(sessionDAO.doReadSession(95).getAttribute("name"), is((Object) "Tom"));
+        verify(redisManager, never()).get(key);
+    }
+
+    @Test
+    public void testReadChangedSessionFromNearCache() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setSessionNearCacheEnabled(true);
+        SimpleSession session = new SimpleSession();
+        session.setId(94);
+        session.setTimeout(2000);
+        sessionDAO.update(session);
+        byte[] key = keySerializer.serialize("student:94");
+        byte[] changedValue = VersionedValue.wrap(VersionedValue.newVersion(), valueSerializer.serialize(new StudentSession(94, 3000)));
+
+        RedisSessionDAO.getSessionsInThread().remove();
+        when(redisManager.getRange(key, 0, VersionedValue.HEADER_LENGTH - 1)).thenReturn(Arrays.copyOf(changedValue, VersionedValue.HEADER_LENGTH));
+        when(redisManager.get(key)).thenReturn(changedValue);
+        assertThat(sessionDAO.doReadSession(94).getTimeout(), is(3000L));
+        verify(redisManager).getRange(key, 0, VersionedValue.HEADER_LENGTH - 1);
+        verify(redisManager).get(key);
+    }
+
+    @Test
+    public void testUpdateHash() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setHashStorageEnabled(true);
+        SimpleSession session = new SimpleSession();
+        session.setId("93");
+        session.setAttribute("name", "Tom");
+        sessionDAO.update(session);
+        byte[] key = keySerializer.serialize("student:93");
+        ArgumentCaptor<Map<byte[], byte[]>> fieldsCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(redisManager).hset(eq(key), fieldsCaptor.capture(), eq(1800));
+        Set<String> fieldNames = getFieldNames(fieldsCaptor.getValue());
+        assertThat(fieldNames.contains(SessionHashCodec.ID), is(true));
+        assertThat(fieldNames.contains(SessionHashCodec.LAST_ACCESS_TIME), is(true));
+        assertThat(fieldNames.contains("s:name"), is(true));
+        // the version is written without the near cache, so that other instances using it see the change
+        assertThat(fieldNames.contains(SessionHashCodec.VERSION), is(true));
+
+        // fields written for a session which is not tracked are remembered, so they are not read from Redis again
+        verify(redisManager, times(1)).hkeys(key);
+        session.setAttribute("name", "Jerry");
+        session.setAttribute("age", 3);
+        sessionDAO.update(session);
+        verify(redisManager, times(1)).hkeys(key);
+        verify(redisManager, times(2)).hset(eq(key), fieldsCaptor.capture(), eq(1800));
+        assertThat(getFieldNames(fieldsCaptor.getValue()), is(new HashSet<String>(Arrays.asList("s:name", "s:age", SessionHashCodec.VERSION))));
+
+        // another instance of the same session hasn't written any field
+        SimpleSession copy = new SimpleSession();
+        copy.setId("93");
+        copy.setAttribute("name", "Jerry");
+        copy.setAttribute("age", 3);
+        sessionDAO.update(copy);
+        verify(redisManager, times(2)).hkeys(key);
+        verify(redisManager, times(3)).hset(eq(key), fieldsCaptor.capture(), eq(1800));
+        assertThat(getFieldNames(fieldsCaptor.getValue()).contains("s:name"), is(true));
+    }
+
+    @Test
+    public void testUpdateHashOnlyWritesChangedFields() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setHashStorageEnabled(true);
+        SimpleSession storedSession = new SimpleSession();
+        storedSession.setId("92");
+        storedSession.setAttribute("name", "Tom");
+        storedSession.setAttribute("cart", "apple");
+        byte[] key = keySerializer.serialize("student:92");
+        Map<byte[], byte[]> hash = new HashMap<byte[], byte[]>();
+        for (Map.Entry<String, byte[]> field : new SessionHashCodec(valueSerializer).encode(storedSession).entrySet()) {
+            hash.put(SessionHashCodec.toBytes(field.getKey()), field.getValue());
+        }
+        when(redisManager.hgetAll(key)).thenReturn(hash);
+
+        RedisSessionDAO.getSessionsInThread().remove();
+        Session session = sessionDAO.doReadSession("92");
+        assertThat(session.getAttribute("name"), is((Object) "Tom"));
+        session.setAttribute("cart", "banana");
+        session.removeAttribute("name");
+        sessionDAO.update(session);
+
+        verify(redisManager).hdel(key, SessionHashCodec.toBytes("s:name"));
+        ArgumentCaptor<Map<byte[], byte[]>> fieldsCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(redisManager).hset(eq(key), fieldsCaptor.capture(), eq(1800));
+        assertThat(getFieldNames(fieldsCaptor.getValue()), is((Set<String>) new HashSet<String>(Arrays.asList("s:cart", SessionHashCodec.VERSION))));
+
+        sessionDAO.update(session);
+        verify(redisManager).expire(key, 1800);
+        verify(redisManager, never()).hkeys(any(byte[].class));
+    }
+
+    @Test
+    public void testLazyAttributes() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setHashStorageEnabled(true);
+        sessionDAO.setLazyAttributesEnabled(true);
+        ObjectSerializer lazySerializer = spy(new ObjectSerializer());
+        sessionDAO.setValueSerializer(lazySerializer);
+        SimpleSession storedSession = new SimpleSession();
+        storedSession.setId("88");
+        storedSession.setAttribute("name", "Tom");
+        storedSession.setAttribute("cart", "apple");
+        byte[] key = keySerializer.serialize("student:88");
+        Map<byte[], byte[]> hash = new HashMap<byte[], byte[]>();
+        for (Map.Entry<String, byte[]> field : new SessionHashCodec(valueSerializer).encode(storedSession).entrySet()) {
+            hash.put(SessionHashCodec.toBytes(field.getKey()), field.getValue());
+        }
+        when(redisManager.hgetAll(key)).thenReturn(hash);
+
+        RedisSessionDAO.getSessionsInThread().remove();
+        Session session = sessionDAO.doReadSession("88");
+        verify(lazySerializer, times(1)).deserialize(any(byte[].class));
+        assertThat(session.getAttributeKeys().size(), is(2));
+        assertThat(session.getAttribute("name"), is((Object) "Tom"));
+        verify(lazySerializer, times(2)).deserialize(any(byte[].class));
+
+        sessionDAO.update(session);
+        verify(lazySerializer, never()).serialize("apple");
+        verify(redisManager, never()).hset(any(byte[].class), any(Map.class), anyInt());
+        verify(redisManager).expire(key, 1800);
+    }
+
+    @Test
+    public void testTouchWithinTouchInterval() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setTouchInterval(60);
+        SimpleSession storedSession = new SimpleSession();
+        storedSession.setId("91");
+        byte[] key = keySerializer.serialize("student:91");
+        when(redisManager.get(key)).thenReturn(valueSerializer.serialize(storedSession));
+
+        RedisSessionDAO.getSessionsInThread().remove();
+        Session session = sessionDAO.doReadSession("91");
+        session.touch();
+        sessionDAO.update(session);
+        verify(redisManager).expire(key, 1800);
+        verify(redisManager, never()).set(eq(key), any(byte[].class), any(int.class));
+
+        session.setAttribute("name", "Tom");
+        sessionDAO.update(session);
+        ArgumentCaptor<byte[]> valueCaptor = ArgumentCaptor.forClass(byte[].class);
+        verify(redisManager).set(eq(key), valueCaptor.capture(), eq(1800));
+        assertThat(valueSerializer.deserialize(valueCaptor.getValue()).getClass().getName(), is(SimpleSession.class.getName()));
+    }
+
+    @Test
+    public void testTouchHashWithinTouchInterval() throws SerializationException {
+        RedisSessionDAO sessionDAO = mountRedisSessionDAO(null);
+        sessionDAO.setHashStorageEnabled(true);
+        sessionDAO.setTouchInterval(60);
+        sessionDAO.setTouchRefreshExpire(false);
+        SimpleSession storedSession = new SimpleSession();
+        storedSession.setId("90");
+        storedSession.setLastAccessTime(new Date(System.currentTimeMillis() - 1000));
+        byte[] key = keySerializer.serialize("student:90");
+        Map<byte[], byte[]> hash = new HashMap<byte[], byte[]>();
+        for (Map.Entry<String, byte[]> field : new SessionHashCodec(valueSerializer).encode(storedSession).entrySet()) {
+            hash.put(SessionHashCodec.toBytes(field.getKey()), field.getValue());
+        }
+        when(redisManager.hgetAll(key)).thenReturn(hash);
+
+        RedisSessionDAO.getSessionsInThread().remove();
+        Session session = sessionDAO.doReadSession("90");
+        session.touch();
+        sessionDAO.update(session);
+        verify(redisManager, never()).expire(any(byte[].class), any(int.class));
+        verify(redisManager, never()).hset(any(byte[].class), any(Map.class), any(int.class));
+    }
+
+    private Set<String> getFieldNames(Map<byte[], byte[]> fields) {
+        Set<String> fieldNames = new HashSet<String>();
+        for (byte[] field : fields.keySet()) {
+            fieldNames.add(SessionHashCodec.fromBytes(field));
+        }
+        return fieldNames;
+    }
 }
 
 class StudentSession implements Session, Serializable {
@@ -0,0 +1,64 @@
+package org.crazycake.shiro;
+
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.SessionListener;
+import org.apache.shiro.session.mgt.DefaultSessionManager;
+import org.crazycake.shiro.common.RedisMessageListener;
+import org.crazycake.shiro.common.RedisSubscription;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RedisSessionExpirationListenerTest {
+
+    private IRedisManager redisManager;
+    private RedisSessionDAO sessionDAO;
+    private SessionListener sessionListener;
+    private RedisSessionExpirationListener expirationListener;
+
+    @BeforeEach
+    public void setUp() {
+        redisManager = mock(IRedisManager.class);
+        sessionDAO = new RedisSessionDAO();
+        sessionDAO.setRedisManager(redisManager);
+        sessionListener = mock(SessionListener.class);
+        DefaultSessionManager sessionManager = new DefaultSessionManager();
+        sessionManager.setSessionDAO(sessionDAO);
+        sessionManager.setSessionListeners(Collections.singletonList(sessionListener));
+        expirationListener = new RedisSessionExpirationListener(sessionManager);
+    }
+
+    @Test
+    public void testSubscribeExpiredKeys() {
+        RedisSubscription subscription = mock(RedisSubscription.class);
+        when(redisManager.subscribe(any(RedisMessageListener.class), any(byte[].class))).thenReturn(subscription);
+        expirationListener.setDatabase(2);
+        expirationListener.init();
+        verify(redisManager).subscribe(expirationListener, "__keyevent@2__:expired".getBytes(StandardCharsets.UTF_8));
+        expirationListener.destroy();
+        verify(subscription).close();
+    }
+
+    @Test
+    public void testOnExpiration() {
+        expirationListener.onMessage(null, "shiro:session:abc".getBytes(StandardCharsets.UTF_8));
+        ArgumentCaptor<Session> session = ArgumentCaptor.forClass(Session.class);
+        verify(sessionListener).onExpiration(session.capture());
+        assertThat(session.getValue().getId(), is("abc"));
+
+        expirationListener.onMessage(null, "shiro:cache:abc".getBytes(StandardCharsets.UTF_8));
+        verify(sessionListener).onExpiration(any(Session.class));
+        verify(sessionListener, never()).onStop(any(Session.class));
+    }
+}
@@ -0,0 +1,42 @@
+package org.crazycake.shiro;
+
+import org.apache.shiro.session.ExpiredSessionException;
+import org.apache.shiro.session.mgt.DefaultSessionKey;
+import org.apache.shiro.session.mgt.DefaultSessionManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RedisSessionValidationSchedulerTest {
+
+    private DefaultSessionManager sessionManager;
+    private RedisSessionDAO sessionDAO;
+
+    @BeforeEach
+    public void setUp() {
+        sessionManager = mock(DefaultSessionManager.class);
+        sessionDAO = mock(RedisSessionDAO.class);
+        when(sessionManager.getSessionDAO()).thenReturn(sessionDAO);
+        when(sessionManager.getGlobalSessionTimeout()).thenReturn(1800000L);
+    }
+
+    @Test
+    public void testValidateSessionsWhichMightHaveExpired() {
+        when(sessionDAO.getSessionIdsToValidate(1800000L)).thenReturn(Arrays.<Serializable>asList("a", "b"));
+        when(sessionManager.getSession(new DefaultSessionKey("b"))).thenThrow(new ExpiredSessionException());
+
+        new RedisSessionValidationScheduler(sessionManager).run();
+        verify(sessionManager, times(2)).getSession(any(DefaultSessionKey.class));
+        verify(sessionManager, never()).validateSessions();
+        verify(sessionDAO, never()).getActiveSessions();
+    }
+}